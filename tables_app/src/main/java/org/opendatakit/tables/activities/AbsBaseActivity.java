@@ -295,6 +295,9 @@ public abstract class AbsBaseActivity extends BaseActivity {
 
   @Override
   public void databaseUnavailable() {
+    // we cannot know what changes while we are disconnected
+    Tables.getInstance().getSchemaCache().invalidateAll();
+    Tables.getInstance().getQueryResultCache().invalidateAll();
     FragmentManager mgr = this.getFragmentManager();
     int idxLast = mgr.getBackStackEntryCount() - 1;
     if (idxLast >= 0) {
@@ -4,6 +4,7 @@ import android.content.ActivityNotFoundException;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Looper;
 import org.json.JSONObject;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.application.AppAwareApplication;
@@ -21,11 +22,17 @@ import org.opendatakit.views.ExecutorContext;
 import org.opendatakit.views.ExecutorProcessor;
 import org.opendatakit.views.ODKWebView;
 import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.utils.Constants;
+import org.opendatakit.tables.views.webkits.ResponseChannel;
 import org.opendatakit.tables.views.webkits.TableDataExecutorProcessor;
+import org.opendatakit.tables.views.webkits.WebViewPool;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
 
 /**
  * @author mitchellsundt@gmail.com
@@ -57,7 +64,20 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
 
   private LinkedList<String> queuedActions = new LinkedList<String>();
 
-  LinkedList<String> queueResponseJSON = new LinkedList<String>();
+  final ResponseChannel queueResponseJSON = new ResponseChannel(ResponseChannel.DEFAULT_CAPACITY);
+
+  /**
+   * Tables whose query results should not carry color metadata. Read from
+   * the executor's threads.
+   */
+  private final Set<String> tablesWithoutColorMetadata =
+      Collections.synchronizedSet(new HashSet<String>());
+  /**
+   * Tables whose query results carry their color metadata in the compact
+   * (palette and run-length) encoding.
+   */
+  private final Set<String> tablesWithCompactColorMetadata =
+      Collections.synchronizedSet(new HashSet<String>());
 
   /**
    * Member variables that do not need to be preserved across orientation
@@ -69,6 +89,9 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
   // no need to preserve
   private PropertyManager mPropertyManager;
 
+  // web views for the fragments; bound to this activity, so not preserved
+  private WebViewPool mWebViewPool;
+
   public abstract String getTableId();
   public abstract String getInstanceId();
   public abstract ODKWebView getWebKitView();
@@ -93,7 +116,7 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
     }
 
     if ( !queueResponseJSON.isEmpty() ) {
-      String[] qra = queueResponseJSON.toArray(new String[queueResponseJSON.size()]);
+      String[] qra = queueResponseJSON.toArray();
       outState.putStringArray(RESPONSE_JSON, qra);
     }
   }
@@ -103,6 +126,7 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
     super.onCreate(savedInstanceState);
 
     mPropertyManager = new PropertyManager(this);
+    mWebViewPool = new WebViewPool(this);
 
     if (savedInstanceState != null) {
       // if we are restoring, assume that initialization has already occurred.
@@ -125,8 +149,7 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
 
       if (savedInstanceState.containsKey(RESPONSE_JSON)) {
         String[] pendingResponseJSON = savedInstanceState.getStringArray(RESPONSE_JSON);
-        queueResponseJSON.clear();
-        queueResponseJSON.addAll(Arrays.asList(pendingResponseJSON));
+        queueResponseJSON.restore(Arrays.asList(pendingResponseJSON));
       }
     }
   }
@@ -344,6 +367,10 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
     WebLogger.getLogger(getAppName()).i(t, "onActivityResult");
     ODKWebView view = getWebKitView();
 
+    // Survey, a doAction target, the sync or a conflict resolver may have
+    // written to any of the tables.
+    Tables.getInstance().getQueryResultCache().invalidateApp(getAppName());
+
     if (requestCode == Constants.RequestCodes.LAUNCH_DOACTION) {
       try {
         String jsonObject = null;
@@ -430,12 +457,18 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
     if ( responseJSON == null ) {
       WebLogger.getLogger(getAppName()).e(t, "signalResponseAvailable -- got null responseJSON!");
     } else {
-      WebLogger.getLogger(getAppName()).e(t, "signalResponseAvailable -- got "
-          + responseJSON.length() + " long responseJSON!");
-    }
-    if ( responseJSON != null) {
-      this.queueResponseJSON.push(responseJSON);
+      // the executor's threads wait for room; the UI thread must not, as the
+      // web view is signalled on it. Nor is there any point in waiting if no
+      // web view is attached to take the responses.
       final ODKWebView webView = getWebKitView();
+      boolean mayWait = (webView != null) && (Looper.myLooper() != Looper.getMainLooper());
+      long waitedNanos = this.queueResponseJSON.put(responseJSON, mayWait);
+      if ( waitedNanos != 0 ) {
+        WebLogger.getLogger(getAppName()).d(t, "signalResponseAvailable -- waited "
+            + (waitedNanos / 1000000L) + " ms for the web view; max depth "
+            + queueResponseJSON.getMaxDepth() + ", mean time queued "
+            + queueResponseJSON.getMeanQueuedMillis() + " ms");
+      }
       if (webView != null) {
         runOnUiThread(new Runnable() {
           @Override
@@ -448,11 +481,73 @@ public abstract class AbsBaseWebActivity extends AbsBaseActivity implements IOdk
   }
 
   @Override public String getResponseJSON() {
-    if ( queueResponseJSON.isEmpty() ) {
-      return null;
+    return queueResponseJSON.poll();
+  }
+
+  /**
+   * @return the pool of web views that the web fragments of this activity
+   *         borrow.
+   */
+  public WebViewPool getWebViewPool() {
+    return mWebViewPool;
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mWebViewPool.destroy();
+  }
+
+  /**
+   * @return the responses waiting for the web view, with their statistics.
+   */
+  public ResponseChannel getResponseChannel() {
+    return queueResponseJSON;
+  }
+
+  /**
+   * Set whether the results of the queries that follow against a table carry
+   * its color metadata (row, status and column colors). Views that do not
+   * display the colors, or that query repeatedly, can turn it off to save the
+   * cost of evaluating the color rules on every row. On by default.
+   *
+   * @param tableId
+   * @param enabled
+   */
+  public void setColorMetadataEnabled(String tableId, boolean enabled) {
+    if ( enabled ) {
+      tablesWithoutColorMetadata.remove(tableId);
+    } else {
+      tablesWithoutColorMetadata.add(tableId);
+    }
+  }
+
+  public boolean isColorMetadataEnabled(String tableId) {
+    return !tablesWithoutColorMetadata.contains(tableId);
+  }
+
+  /**
+   * Set whether the color metadata of the queries that follow against a
+   * table is sent compactly: a palette of the distinct foreground and
+   * background pairs (colorPalette) and, for each of rowColorRuns,
+   * statusColorRuns and columnColorRuns, run-length encoded palette indexes
+   * covering every row. It replaces rowColors, statusColors and columnColors,
+   * which repeat the row id and both colors of each colored row. Off by
+   * default.
+   *
+   * @param tableId
+   * @param compact
+   */
+  public void setCompactColorMetadata(String tableId, boolean compact) {
+    if ( compact ) {
+      tablesWithCompactColorMetadata.add(tableId);
+    } else {
+      tablesWithCompactColorMetadata.remove(tableId);
     }
-    String responseJSON = queueResponseJSON.removeFirst();
-    return responseJSON;
+  }
+
+  public boolean isCompactColorMetadata(String tableId) {
+    return tablesWithCompactColorMetadata.contains(tableId);
   }
 
   @Override public ExecutorProcessor newExecutorProcessor(ExecutorContext context) {
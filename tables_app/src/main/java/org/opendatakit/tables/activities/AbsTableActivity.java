@@ -16,11 +16,10 @@
 package org.opendatakit.tables.activities;
 
 import org.opendatakit.consts.IntentConsts;
-import org.opendatakit.application.CommonApplication;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.tables.application.Tables;
 
 import android.os.Bundle;
 
@@ -65,26 +64,15 @@ public abstract class AbsTableActivity extends AbsBaseActivity {
   public synchronized OrderedColumns getColumnDefinitions() {
     if ( this.mColumnDefinitions == null ) {
       WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] building mColumnDefinitions.");
-      CommonApplication app = (CommonApplication) getApplication();
+      Tables app = Tables.getInstance();
       if ( app.getDatabase() != null ) {
-        DbHandle db = null;
         try {
-          db = app.getDatabase().openDatabase(getAppName());
-          mColumnDefinitions = app.getDatabase().getUserDefinedColumns(getAppName(), db, getTableId());
+          // shared with the other screens; only fetched if not already cached
+          mColumnDefinitions = app.getSchemaCache().getColumnDefinitions(getAppName(), getTableId());
         } catch (ServicesAvailabilityException e) {
           WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to access database.");
           WebLogger.getLogger(getAppName()).printStackTrace(e);
           throw new IllegalStateException("database went down -- handle this! " + e.toString());
-        } finally {
-          if (db != null) {
-            try {
-              app.getDatabase().closeDatabase(getAppName(), db);
-            } catch (ServicesAvailabilityException e) {
-              WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to close database.");
-              WebLogger.getLogger(getAppName()).printStackTrace(e);
-              throw new IllegalStateException("database went down -- handle this! " + e.toString());
-            }
-          }
         }
       }
     }
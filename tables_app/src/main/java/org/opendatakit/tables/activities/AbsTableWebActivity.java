@@ -17,11 +17,10 @@ package org.opendatakit.tables.activities;
 
 import android.os.Bundle;
 import org.opendatakit.consts.IntentConsts;
-import org.opendatakit.application.CommonApplication;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.tables.application.Tables;
 
 /**
  * This class is the base for any Activity that will display information about
@@ -64,26 +63,15 @@ public abstract class AbsTableWebActivity extends AbsBaseWebActivity {
   public synchronized OrderedColumns getColumnDefinitions() {
     if ( this.mColumnDefinitions == null ) {
       WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] building mColumnDefinitions.");
-      CommonApplication app = (CommonApplication) getApplication();
+      Tables app = Tables.getInstance();
       if ( app.getDatabase() != null ) {
-        DbHandle db = null;
         try {
-          db = app.getDatabase().openDatabase(getAppName());
-          mColumnDefinitions = app.getDatabase().getUserDefinedColumns(getAppName(), db, getTableId());
+          // shared with the other screens; only fetched if not already cached
+          mColumnDefinitions = app.getSchemaCache().getColumnDefinitions(getAppName(), getTableId());
         } catch (ServicesAvailabilityException e) {
           WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to access database.");
           WebLogger.getLogger(getAppName()).printStackTrace(e);
           throw new IllegalStateException("this should re-bind database layer " + e.toString());
-        } finally {
-          if (db != null) {
-            try {
-              app.getDatabase().closeDatabase(getAppName(), db);
-            } catch (ServicesAvailabilityException e) {
-              WebLogger.getLogger(getAppName()).e(TAG, "[onCreate] unable to close database.");
-              WebLogger.getLogger(getAppName()).printStackTrace(e);
-              throw new IllegalStateException("this should re-bind database layer " + e.toString());
-            }
-          }
         }
       }
     }
@@ -15,9 +15,16 @@
  */
 package org.opendatakit.tables.activities;
 
+import java.util.Map;
+
 import android.app.AlertDialog;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.widget.Toast;
@@ -26,9 +33,13 @@ import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.fragments.SpreadsheetFragment;
 import org.opendatakit.tables.utils.IntentUtil;
+import org.opendatakit.tables.views.SpreadsheetDrawStats;
 
 public class DisplayPrefsActivity extends BasePreferenceActivity {
 
@@ -126,6 +137,69 @@ public class DisplayPrefsActivity extends BasePreferenceActivity {
 //    });
 //    genCat.addPreference(fontSizePref);
 
+    final PropertiesSingleton props = CommonToolProperties.get(this, appName);
+
+    // the spreadsheet implementation; takes effect when the spreadsheet is next shown
+    Boolean useGrid = props.getBooleanProperty(SpreadsheetFragment.KEY_USE_GRID_SPREADSHEET);
+    CheckBoxPreference useGridPref = new CheckBoxPreference(this);
+    useGridPref.setPersistent(false);
+    useGridPref.setTitle(getString(R.string.use_grid_spreadsheet));
+    useGridPref.setSummary(getString(R.string.use_grid_spreadsheet_summary));
+    useGridPref.setChecked(useGrid != null && useGrid);
+    useGridPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        props.setBooleanProperty(SpreadsheetFragment.KEY_USE_GRID_SPREADSHEET,
+            (Boolean) newValue);
+        return true;
+      }
+    });
+    genCat.addPreference(useGridPref);
+
+    // spreadsheet draw statistics, for diagnosing slow scrolling
+    Boolean showDrawStats = props.getBooleanProperty(SpreadsheetFragment.KEY_SHOW_DRAW_STATS);
+    CheckBoxPreference showDrawStatsPref = new CheckBoxPreference(this);
+    showDrawStatsPref.setPersistent(false);
+    showDrawStatsPref.setTitle(getString(R.string.show_draw_stats));
+    showDrawStatsPref.setSummary(getString(R.string.show_draw_stats_summary));
+    showDrawStatsPref.setChecked(showDrawStats != null && showDrawStats);
+    showDrawStatsPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        boolean enabled = (Boolean) newValue;
+        props.setBooleanProperty(SpreadsheetFragment.KEY_SHOW_DRAW_STATS, enabled);
+        SpreadsheetDrawStats.get().setOverlayEnabled(enabled);
+        return true;
+      }
+    });
+    genCat.addPreference(showDrawStatsPref);
+
+    Preference writeDrawStatsPref = new Preference(this);
+    writeDrawStatsPref.setTitle(getString(R.string.write_draw_stats));
+    writeDrawStatsPref.setSummary(getString(R.string.write_draw_stats_summary));
+    writeDrawStatsPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+      @Override
+      public boolean onPreferenceClick(Preference preference) {
+        // taken on the UI thread, which records them, and written off of it
+        final Map<String, Object> stats = SpreadsheetDrawStats.get().toMap();
+        new AsyncTask<Void, Void, Boolean>() {
+          @Override
+          protected Boolean doInBackground(Void... params) {
+            return SpreadsheetDrawStats.writeToDebugFolder(appName, stats);
+          }
+
+          @Override
+          protected void onPostExecute(Boolean written) {
+            Toast.makeText(DisplayPrefsActivity.this, getString(written ?
+                R.string.draw_stats_written : R.string.draw_stats_not_written),
+                Toast.LENGTH_SHORT).show();
+          }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+      }
+    });
+    genCat.addPreference(writeDrawStatsPref);
+
     setPreferenceScreen(root);
   }
 }
\ No newline at end of file
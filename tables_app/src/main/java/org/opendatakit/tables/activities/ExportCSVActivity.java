@@ -179,7 +179,7 @@ public class ExportCSVActivity extends AbstractImportExportActivity {
         List<String> rawTableIds = Collections.emptyList();
         ArrayList<String> localizedNames = new ArrayList<String>();
         db = Tables.getInstance().getDatabase().openDatabase(appName);
-        rawTableIds = Tables.getInstance().getDatabase().getAllTableIds(appName, db);
+        rawTableIds = Tables.getInstance().getSchemaCache().getTableIds(appName, db);
         for (String tableId : rawTableIds) {
           String localizedDisplayName;
           localizedDisplayName = TableUtil.get().getLocalizedDisplayName(Tables.getInstance(), appName, db, tableId);
@@ -415,6 +415,10 @@ public class MainActivity extends AbsBaseWebActivity implements
    */
   @Override
   protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+    if (requestCode == Constants.RequestCodes.LAUNCH_SYNC) {
+      // sync may have created, deleted or changed tables
+      Tables.getInstance().getSchemaCache().invalidateApp(getAppName());
+    }
     String tableId = this.getActionTableId();
     if (tableId != null) {
       switch (requestCode) {
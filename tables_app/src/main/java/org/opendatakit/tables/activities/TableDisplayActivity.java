@@ -20,6 +20,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -27,6 +28,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
+import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.webkitserver.utilities.UrlUtils;
@@ -35,7 +37,9 @@ import org.opendatakit.views.ODKWebView;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.tables.R;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.PagedUserTable;
 import org.opendatakit.tables.data.PossibleTableViewTypes;
+import org.opendatakit.tables.tasks.LoadTableTask;
 import org.opendatakit.tables.fragments.AbsBaseFragment;
 import org.opendatakit.tables.fragments.DetailViewFragment;
 import org.opendatakit.tables.fragments.ListViewFragment;
@@ -144,6 +148,9 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     }
 
     this.setContentView(R.layout.activity_table_display_activity);
+
+    // the list, detail and map list views are web views; have one ready
+    getWebViewPool().prewarm(1);
   }
 
   @Override
@@ -197,6 +204,33 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
    */
   private UserTable mUserTable = null;
 
+  /**
+   * The paged view onto the same query that backs the spreadsheet. Unlike
+   * {@link #mUserTable}, rows are only fetched as they are needed.
+   */
+  private PagedUserTable mPagedUserTable = null;
+
+  /**
+   * The column the spreadsheet's rows have been re-ordered by in memory, or
+   * null. It is applied again whenever the table is reloaded.
+   */
+  private ColumnDefinition mInMemorySortColumn = null;
+
+  /**
+   * The task loading the table in the background, if one is running.
+   */
+  private LoadTableTask mLoadTableTask = null;
+
+  /**
+   * Whether the table has been loaded since it was last refreshed.
+   */
+  private boolean mTableLoaded = false;
+
+  /**
+   * Whether the display fragment should be re-created once loading finishes.
+   */
+  private boolean mCreateNewWhenLoaded = false;
+
   private String getDefaultFileNameForViewFragmentType(ViewFragmentType fragmentType) {
     if ( mPossibleTableViewTypes == null || fragmentType == null ) {
       return null;
@@ -220,14 +254,14 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
    *
    * @return
    */
-  public UserTable getUserTable() {
+  public synchronized UserTable getUserTable() {
     if ( mUserTable == null ) {
       DbHandle db = null;
       try {
         db = Tables.getInstance().getDatabase().openDatabase(getAppName());
         SQLQueryStruct sqlQueryStruct = IntentUtil.getSQLQueryStructFromBundle(this.getIntent().getExtras());
         String[] emptyArray = {};
-        UserTable result = Tables.getInstance().getDatabase().simpleQuery(this.getAppName(), db,
+        UserTable result = Tables.getInstance().getQueryResultCache().query(this.getAppName(), db,
             this.getTableId(), getColumnDefinitions(), sqlQueryStruct.whereClause,
             (sqlQueryStruct.selectionArgs == null) ? emptyArray : sqlQueryStruct.selectionArgs,
             (sqlQueryStruct.groupBy == null) ? emptyArray : sqlQueryStruct.groupBy,
@@ -253,6 +287,60 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     return mUserTable;
   }
 
+  /**
+   * Get the {@link UserTable} held by this activity only if it has already
+   * been read; this never accesses the database.
+   *
+   * @return the table, or null if it has not been read.
+   */
+  public synchronized UserTable getUserTableIfLoaded() {
+    return mUserTable;
+  }
+
+  /**
+   * Drop the cached {@link UserTable} without refreshing the display. It is
+   * re-read the next time it is requested. Used when the data has changed in
+   * a way the current fragment has already accounted for.
+   */
+  public synchronized void invalidateUserTable() {
+    mUserTable = null;
+  }
+
+  /**
+   * Keep a {@link UserTable} that was read off of the UI thread.
+   *
+   * @param userTable
+   */
+  private synchronized void setUserTable(UserTable userTable) {
+    mUserTable = userTable;
+  }
+
+  /**
+   * Get the {@link PagedUserTable} over the query held by this activity.
+   * Creating it does not access the database.
+   *
+   * @return
+   */
+  public PagedUserTable getPagedUserTable() {
+    if ( mPagedUserTable == null ) {
+      SQLQueryStruct sqlQueryStruct = IntentUtil.getSQLQueryStructFromBundle(this.getIntent().getExtras());
+      mPagedUserTable = new PagedUserTable(getAppName(), getTableId(), getColumnDefinitions(),
+          sqlQueryStruct);
+    }
+    return mPagedUserTable;
+  }
+
+  /**
+   * Remember the column the spreadsheet's rows have been re-ordered by in
+   * memory, so that the order survives reloads of the table.
+   *
+   * @param cd
+   *          the column, or null for the query's order.
+   */
+  public void setInMemorySortColumn(ColumnDefinition cd) {
+    mInMemorySortColumn = cd;
+  }
+
   @Override
   public String getUrlBaseLocation(boolean ifChanged) {
     // TODO: do we need to track the ifChanged status?
@@ -278,6 +366,7 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
   protected void onDestroy() {
     super.onDestroy();
     WebLogger.getLogger(getAppName()).d(TAG, "[onDestroy]");
+    cancelLoadTableTask();
   }
 
   @Override public ODKWebView getWebKitView() {
@@ -422,6 +511,7 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
   protected void onActivityResult(int requestCode, int resultCode, Intent data) {
     // for most returns, we just refresh the data set and redraw the page
     // for others, we need to take more intensive action
+    boolean fromSurvey = false;
     switch (requestCode) {
       case Constants.RequestCodes.ADD_ROW_SURVEY:
       case Constants.RequestCodes.EDIT_ROW_SURVEY:
@@ -432,12 +522,17 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
           WebLogger.getLogger(getAppName()).d(TAG,
                   "[onActivityResult] result canceled, refreshing backing table");
         }
+        fromSurvey = true;
         break;
     }
 
     super.onActivityResult(requestCode, resultCode, data);
 
     try {
+      // Survey only changes rows, so only the rows it saved need be merged
+      if ( fromSurvey && mergeSavedRows() ) {
+        return;
+      }
       // verify that the data table doesn't contain checkpoints...
       // always refresh, as table properties may have done something
       refreshDataAndDisplayFragment();
@@ -446,10 +541,51 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     }
   }
 
+  /**
+   * Merge the rows saved since the spreadsheet's rows were read into them,
+   * and redraw only what changed.
+   *
+   * @return false if the rows could not be merged, in which case the whole
+   *         table needs to be reloaded.
+   */
+  private boolean mergeSavedRows() {
+    if ( mCurrentFragmentType != ViewFragmentType.SPREADSHEET || mPagedUserTable == null
+        || mLoadTableTask != null ) {
+      return false;
+    }
+    PagedUserTable.MergedChanges changes = mPagedUserTable.mergeChangesSinceWatermark();
+    if ( changes == null ) {
+      return false;
+    }
+    WebLogger.getLogger(getAppName()).d(TAG,
+        "[mergeSavedRows] merged " + changes.changedRows.length + " changed rows");
+    if ( changes.rowsMoved ) {
+      invalidateUserTable();
+      // rebuild the fragment over the same rows
+      showCurrentDisplayFragment(true);
+      return true;
+    }
+    if ( changes.changedRows.length == 0 ) {
+      return true;
+    }
+    SpreadsheetFragment spreadsheetFragment = (SpreadsheetFragment) getFragmentManager()
+        .findFragmentByTag(ViewFragmentType.SPREADSHEET.name());
+    if ( spreadsheetFragment == null
+        || !spreadsheetFragment.refreshChangedRows(changes.changedRows) ) {
+      return false;
+    }
+    invalidateUserTable();
+    return true;
+  }
+
   public void refreshDataAndDisplayFragment() {
     WebLogger.getLogger(getAppName()).d(TAG, "[refreshDataAndDisplayFragment]");
+    // abandon any load in progress; it would be stale.
+    cancelLoadTableTask();
     // drop cached table, if any...
-    mUserTable = null;
+    invalidateUserTable();
+    mPagedUserTable = null;
+    mTableLoaded = false;
     // drop default filenames...
     mPossibleTableViewTypes = null;
     showCurrentDisplayFragment(true);
@@ -472,6 +608,65 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     showCurrentDisplayFragment(false);
   }
 
+  /**
+   * Start loading the table in the background, if that is not already
+   * underway, and show the loading indicator until it is done.
+   *
+   * @param createNew
+   *          whether to re-create the display fragment once loaded.
+   */
+  private void startLoadingTable(boolean createNew) {
+    mCreateNewWhenLoaded = mCreateNewWhenLoaded || createNew;
+    showLoadingIndicator();
+    if ( mLoadTableTask == null ) {
+      WebLogger.getLogger(getAppName()).d(TAG, "[startLoadingTable]");
+      SQLQueryStruct sqlQueryStruct = IntentUtil.getSQLQueryStructFromBundle(this.getIntent().getExtras());
+      ViewFragmentType requestedType = (mCurrentFragmentType != null) ?
+          mCurrentFragmentType : mOriginalFragmentType;
+      mLoadTableTask = new LoadTableTask(this, getAppName(), getTableId(), sqlQueryStruct,
+          requestedType, mInMemorySortColumn);
+      mLoadTableTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+  }
+
+  private void cancelLoadTableTask() {
+    if ( mLoadTableTask != null ) {
+      mLoadTableTask.cancel(false);
+      mLoadTableTask = null;
+    }
+  }
+
+  /**
+   * Invoked on the UI thread by {@link LoadTableTask} once the table is ready
+   * to display.
+   *
+   * @param task
+   * @param result
+   */
+  public void onTableLoaded(LoadTableTask task, LoadTableTask.Result result) {
+    if ( task != mLoadTableTask || isFinishing() ) {
+      // a stale load; a newer one has been started or we are going away.
+      return;
+    }
+    WebLogger.getLogger(getAppName()).d(TAG, "[onTableLoaded]");
+    // the task keeps reading ahead, but we no longer need to track it.
+    mLoadTableTask = null;
+    mTableLoaded = true;
+    mPossibleTableViewTypes = result.possibleTableViewTypes;
+    if ( result.userTable != null ) {
+      setUserTable(result.userTable);
+    }
+    if ( result.pagedUserTable != null ) {
+      mPagedUserTable = result.pagedUserTable;
+    } else if ( mCurrentFragmentType == ViewFragmentType.SPREADSHEET ) {
+      // loading failed; fall back to creating it on demand.
+      getPagedUserTable();
+    }
+    boolean createNew = mCreateNewWhenLoaded;
+    mCreateNewWhenLoaded = false;
+    showCurrentDisplayFragment(createNew);
+  }
+
   private void possiblySupplyDefaults() {
 
     if ( mPossibleTableViewTypes == null && Tables.getInstance().getDatabase() != null ) {
@@ -531,6 +726,15 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
    * present in Intent.
    */
   private void showCurrentDisplayFragment(boolean createNew) {
+    // the paged table is only read for the spreadsheet
+    boolean needsPagedTable = ( mCurrentFragmentType == ViewFragmentType.SPREADSHEET
+        && mPagedUserTable == null );
+    if ( (!mTableLoaded || needsPagedTable) && Tables.getInstance().getDatabase() != null ) {
+      // nothing has been read yet; do that off of the UI thread and come
+      // back here when it is done.
+      startLoadingTable(createNew);
+      return;
+    }
     possiblySupplyDefaults();
     updateChildViewVisibility(mCurrentFragmentType);
     FragmentManager fragmentManager = this.getFragmentManager();
@@ -664,6 +868,7 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     // itself. So, we need to hide and show the others as appropriate.
     View onePaneContent = this.findViewById(R.id.activity_table_display_activity_one_pane_content);
     View mapContent = this.findViewById(R.id.activity_table_display_activity_map_content);
+    this.findViewById(R.id.activity_table_display_activity_loading).setVisibility(View.GONE);
     switch (viewFragmentType) {
     case DETAIL:
     case LIST:
@@ -681,6 +886,17 @@ public class TableDisplayActivity extends AbsTableWebActivity implements
     }
   }
 
+  /**
+   * Hide the display fragments and show the loading indicator in their place.
+   */
+  private void showLoadingIndicator() {
+    this.findViewById(R.id.activity_table_display_activity_one_pane_content)
+        .setVisibility(View.GONE);
+    this.findViewById(R.id.activity_table_display_activity_map_content)
+        .setVisibility(View.GONE);
+    this.findViewById(R.id.activity_table_display_activity_loading).setVisibility(View.VISIBLE);
+  }
+
   /**
    * Invoked by TableMapInnerFragment when an item has been selected
    */
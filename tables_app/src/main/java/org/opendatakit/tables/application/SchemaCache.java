@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.tables.application;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+/**
+ * The column definitions of each table and the list of table ids of each app,
+ * shared by all the activities, fragments and web views of the process.
+ * <p>
+ * These change only when tables are created, imported or deleted, or when
+ * their columns change, but were otherwise fetched from the database service
+ * by every screen that is opened. Whoever makes such a change (or, as with
+ * sync and initialization, asks another component to make it) must call
+ * {@link #invalidateTable(String, String)} or {@link #invalidateApp(String)}.
+ * <p>
+ * Reads do not block each other. A value fetched while an invalidation
+ * happens is returned to its caller but not kept.
+ * <p>
+ * Thread safe.
+ */
+public final class SchemaCache {
+
+  private final ConcurrentHashMap<String, OrderedColumns> mColumnDefinitions =
+      new ConcurrentHashMap<String, OrderedColumns>();
+  private final ConcurrentHashMap<String, List<String>> mTableIds =
+      new ConcurrentHashMap<String, List<String>>();
+  /** incremented by every invalidation */
+  private final AtomicLong mGeneration = new AtomicLong();
+
+  private static String key(String appName, String tableId) {
+    return appName + "/" + tableId;
+  }
+
+  /**
+   * Get the column definitions of a table.
+   *
+   * @param appName
+   * @param db
+   *          an open database handle, used if they are not cached.
+   * @param tableId
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  public OrderedColumns getColumnDefinitions(String appName, DbHandle db, String tableId)
+      throws ServicesAvailabilityException {
+    String key = key(appName, tableId);
+    OrderedColumns answer = mColumnDefinitions.get(key);
+    if (answer != null) {
+      return answer;
+    }
+    long generation = mGeneration.get();
+    answer = getDatabase().getUserDefinedColumns(appName, db, tableId);
+    mColumnDefinitions.put(key, answer);
+    if (generation != mGeneration.get()) {
+      // invalidated while we were reading; don't keep what we read
+      mColumnDefinitions.remove(key, answer);
+    }
+    return answer;
+  }
+
+  /**
+   * Get the column definitions of a table, opening the database only if they
+   * are not cached.
+   *
+   * @param appName
+   * @param tableId
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  public OrderedColumns getColumnDefinitions(String appName, String tableId)
+      throws ServicesAvailabilityException {
+    OrderedColumns answer = mColumnDefinitions.get(key(appName, tableId));
+    if (answer != null) {
+      return answer;
+    }
+    DbHandle db = null;
+    try {
+      db = getDatabase().openDatabase(appName);
+      return getColumnDefinitions(appName, db, tableId);
+    } finally {
+      if (db != null) {
+        getDatabase().closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * Get the ids of the tables of an app.
+   *
+   * @param appName
+   * @param db
+   *          an open database handle, used if they are not cached.
+   * @return an unmodifiable list.
+   * @throws ServicesAvailabilityException
+   */
+  public List<String> getTableIds(String appName, DbHandle db)
+      throws ServicesAvailabilityException {
+    List<String> answer = mTableIds.get(appName);
+    if (answer != null) {
+      return answer;
+    }
+    long generation = mGeneration.get();
+    answer = Collections.unmodifiableList(getDatabase().getAllTableIds(appName, db));
+    mTableIds.put(appName, answer);
+    if (generation != mGeneration.get()) {
+      mTableIds.remove(appName, answer);
+    }
+    return answer;
+  }
+
+  /**
+   * Get the ids of the tables of an app, opening the database only if they
+   * are not cached.
+   *
+   * @param appName
+   * @return an unmodifiable list.
+   * @throws ServicesAvailabilityException
+   */
+  public List<String> getTableIds(String appName) throws ServicesAvailabilityException {
+    List<String> answer = mTableIds.get(appName);
+    if (answer != null) {
+      return answer;
+    }
+    DbHandle db = null;
+    try {
+      db = getDatabase().openDatabase(appName);
+      return getTableIds(appName, db);
+    } finally {
+      if (db != null) {
+        getDatabase().closeDatabase(appName, db);
+      }
+    }
+  }
+
+  /**
+   * Forget the column definitions of a table and the table ids of its app,
+   * e.g. after it is created, imported or deleted.
+   *
+   * @param appName
+   * @param tableId
+   */
+  public void invalidateTable(String appName, String tableId) {
+    mGeneration.incrementAndGet();
+    mColumnDefinitions.remove(key(appName, tableId));
+    mTableIds.remove(appName);
+  }
+
+  /**
+   * Forget everything cached for an app, e.g. after it is synced or
+   * initialized.
+   *
+   * @param appName
+   */
+  public void invalidateApp(String appName) {
+    mGeneration.incrementAndGet();
+    String prefix = key(appName, "");
+    for (String key : mColumnDefinitions.keySet()) {
+      if (key.startsWith(prefix)) {
+        mColumnDefinitions.remove(key);
+      }
+    }
+    mTableIds.remove(appName);
+  }
+
+  /**
+   * Forget everything, e.g. when the database service goes away.
+   */
+  public void invalidateAll() {
+    mGeneration.incrementAndGet();
+    mColumnDefinitions.clear();
+    mTableIds.clear();
+  }
+
+  private static UserDbInterface getDatabase() {
+    return Tables.getInstance().getDatabase();
+  }
+}
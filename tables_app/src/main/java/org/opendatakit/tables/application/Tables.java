@@ -18,6 +18,7 @@ import org.opendatakit.application.CommonApplication;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.QueryResultCache;
 
 public class Tables extends CommonApplication {
 
@@ -25,6 +26,9 @@ public class Tables extends CommonApplication {
 
   private static Tables singleton = null;
 
+  private final SchemaCache mSchemaCache = new SchemaCache();
+  private final QueryResultCache mQueryResultCache = new QueryResultCache();
+
   public static Tables getInstance() {
     return singleton;
   }
@@ -56,6 +60,20 @@ public class Tables extends CommonApplication {
     return -1; // R.id.webkit;
   }
 
+  /**
+   * @return the column definitions and table ids cached for the whole process.
+   */
+  public SchemaCache getSchemaCache() {
+    return mSchemaCache;
+  }
+
+  /**
+   * @return the results of recent queries, shared by the whole process.
+   */
+  public QueryResultCache getQueryResultCache() {
+    return mQueryResultCache;
+  }
+
   public String getVersionedAppName() {
     String versionDetail = this.getVersionDetail();
     return getString(R.string.app_name) + versionDetail;
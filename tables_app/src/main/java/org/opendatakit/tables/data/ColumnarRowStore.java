@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.application.Tables;
+
+/**
+ * A compact, column-oriented copy of a query result.
+ * <p>
+ * A {@link UserTable} keeps every row as an array of strings, so a value that
+ * is repeated throughout a column (a select-one choice, the sync state, the
+ * savepoint type, ...) is held once per row. Here each column is stored
+ * separately: integer and number columns whose values print back exactly as
+ * they were read are held in primitive arrays, and every other column is
+ * dictionary encoded, as one int code per row into a table of the column's
+ * distinct values. The display text of each distinct value is computed once,
+ * when the store is built.
+ * <p>
+ * Values and display text are read straight from the columns. The few
+ * callers that need an actual {@link Row} (e.g. to evaluate color rules) get
+ * one that is re-read from the database by id, a block of rows at a time;
+ * only a bounded number of blocks are kept. A row in conflict is two rows
+ * with the same id, so the rows read back are matched to the stored ones by
+ * id, conflict type and savepoint timestamp together.
+ * <p>
+ * Those block reads are synchronous. The spreadsheet's color evaluator asks
+ * for rows while drawing, so a grouped spreadsheet reads a block on the UI
+ * thread the first time one of its rows comes into view, and again once the
+ * block has been dropped.
+ */
+public class ColumnarRowStore {
+
+  private static final String TAG = ColumnarRowStore.class.getSimpleName();
+
+  /** Number of rows re-read together when a {@link Row} is requested. */
+  public static final int ROW_BLOCK_SIZE = 64;
+  /** Maximum number of blocks of {@link Row} objects held at once. */
+  public static final int MAX_ROW_BLOCKS = 8;
+
+  private static final int NULL_CODE = -1;
+  private static final String[] EMPTY_ARRAY = {};
+
+  private final String mAppName;
+  private final String mTableId;
+  private final OrderedColumns mColumnDefinitions;
+  private final int mNumberOfRows;
+  private final Map<String, Column> mColumns = new HashMap<String, Column>();
+  private final Column mRowIds;
+  private final Column mConflictTypes;
+  private final Column mSavepointTimestamps;
+
+  /** block index -> rows of the block, in access order */
+  private final LinkedHashMap<Integer, Row[]> mRowBlocks;
+
+  /**
+   * One stored column.
+   */
+  private static abstract class Column {
+    abstract String getRawValue(int rowIndex);
+
+    abstract String getDisplayText(int rowIndex);
+  }
+
+  private static final class DictionaryColumn extends Column {
+    final int[] codes;
+    final String[] values;
+    /** display text of each value, or null where it is the value itself */
+    final String[] displayTexts;
+
+    DictionaryColumn(int[] codes, String[] values, String[] displayTexts) {
+      this.codes = codes;
+      this.values = values;
+      this.displayTexts = displayTexts;
+    }
+
+    @Override
+    String getRawValue(int rowIndex) {
+      int code = codes[rowIndex];
+      return (code == NULL_CODE) ? null : values[code];
+    }
+
+    @Override
+    String getDisplayText(int rowIndex) {
+      int code = codes[rowIndex];
+      if (code == NULL_CODE) {
+        return null;
+      }
+      return (displayTexts[code] == null) ? values[code] : displayTexts[code];
+    }
+  }
+
+  private static final class IntegerColumn extends Column {
+    final long[] values;
+    final BitSet isNull;
+
+    IntegerColumn(long[] values, BitSet isNull) {
+      this.values = values;
+      this.isNull = isNull;
+    }
+
+    @Override
+    String getRawValue(int rowIndex) {
+      return isNull.get(rowIndex) ? null : Long.toString(values[rowIndex]);
+    }
+
+    @Override
+    String getDisplayText(int rowIndex) {
+      return getRawValue(rowIndex);
+    }
+  }
+
+  private static final class NumberColumn extends Column {
+    final double[] values;
+    final BitSet isNull;
+
+    NumberColumn(double[] values, BitSet isNull) {
+      this.values = values;
+      this.isNull = isNull;
+    }
+
+    @Override
+    String getRawValue(int rowIndex) {
+      return isNull.get(rowIndex) ? null : Double.toString(values[rowIndex]);
+    }
+
+    @Override
+    String getDisplayText(int rowIndex) {
+      return getRawValue(rowIndex);
+    }
+  }
+
+  /**
+   * Copy a query result into a new store. The source can be released
+   * afterwards.
+   *
+   * @param appName
+   * @param tableId
+   * @param columnDefinitions
+   * @param source
+   * @throws ServicesAvailabilityException
+   */
+  public ColumnarRowStore(String appName, String tableId, OrderedColumns columnDefinitions,
+      UserTable source) throws ServicesAvailabilityException {
+    this.mAppName = appName;
+    this.mTableId = tableId;
+    this.mColumnDefinitions = columnDefinitions;
+    this.mNumberOfRows = source.getNumberOfRows();
+    this.mRowBlocks = new LinkedHashMap<Integer, Row[]>(MAX_ROW_BLOCKS + 1, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Row[]> eldest) {
+        return size() > MAX_ROW_BLOCKS;
+      }
+    };
+
+    for (String elementKey : columnDefinitions.getRetentionColumnNames()) {
+      ColumnDefinition cd = columnDefinitions.find(elementKey);
+      mColumns.put(elementKey, encodeColumn(source, elementKey, cd.getType()));
+    }
+    for (String elementKey : Tables.getInstance().getDatabase().getAdminColumns()) {
+      mColumns.put(elementKey, encodeColumn(source, elementKey, null));
+    }
+    mRowIds = mColumns.get(DataTableColumns.ID);
+    mConflictTypes = mColumns.get(DataTableColumns.CONFLICT_TYPE);
+    mSavepointTimestamps = mColumns.get(DataTableColumns.SAVEPOINT_TIMESTAMP);
+  }
+
+  public int getNumberOfRows() {
+    return mNumberOfRows;
+  }
+
+  /**
+   * @param rowIndex
+   * @param elementKey
+   * @return the value as read from the database, or null.
+   */
+  public String getRawValue(int rowIndex, String elementKey) {
+    Column column = mColumns.get(elementKey);
+    return (column == null) ? null : column.getRawValue(rowIndex);
+  }
+
+  /**
+   * @param rowIndex
+   * @param elementKey
+   * @return the value as it is displayed, or null.
+   */
+  public String getDisplayTextOfData(int rowIndex, String elementKey) {
+    Column column = mColumns.get(elementKey);
+    return (column == null) ? null : column.getDisplayText(rowIndex);
+  }
+
+  /**
+   * Get the row at the given index, re-reading it (and the rest of its block)
+   * from the database if it is not already held.
+   *
+   * @param rowIndex
+   * @return the row, or null if it could not be read (e.g. it has since been
+   *         deleted).
+   */
+  public synchronized Row getRowAtIndex(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= mNumberOfRows) {
+      return null;
+    }
+    int blockIndex = rowIndex / ROW_BLOCK_SIZE;
+    Row[] block = mRowBlocks.get(blockIndex);
+    if (block == null) {
+      block = readBlock(blockIndex);
+      if (block == null) {
+        return null;
+      }
+      mRowBlocks.put(blockIndex, block);
+    }
+    return block[rowIndex % ROW_BLOCK_SIZE];
+  }
+
+  private Row[] readBlock(int blockIndex) {
+    int first = blockIndex * ROW_BLOCK_SIZE;
+    int last = Math.min(mNumberOfRows, first + ROW_BLOCK_SIZE);
+    StringBuilder where = new StringBuilder();
+    where.append(DataTableColumns.ID).append(" IN (");
+    String[] args = new String[last - first];
+    for (int i = first; i < last; ++i) {
+      where.append((i == first) ? "?" : ",?");
+      args[i - first] = mRowIds.getRawValue(i);
+    }
+    where.append(")");
+
+    DbHandle db = null;
+    try {
+      db = Tables.getInstance().getDatabase().openDatabase(mAppName);
+      UserTable table = Tables.getInstance().getDatabase().simpleQuery(mAppName, db, mTableId,
+          mColumnDefinitions, where.toString(), args, EMPTY_ARRAY, null, EMPTY_ARRAY,
+          EMPTY_ARRAY, null, null);
+      Map<String, Row> byKey = new HashMap<String, Row>();
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        Row row = table.getRowAtIndex(i);
+        String key = rowKey(row.getDataByKey(DataTableColumns.ID),
+            row.getDataByKey(DataTableColumns.CONFLICT_TYPE),
+            row.getDataByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
+        if (!byKey.containsKey(key)) {
+          byKey.put(key, row);
+        }
+      }
+      Row[] block = new Row[ROW_BLOCK_SIZE];
+      for (int i = first; i < last; ++i) {
+        block[i - first] = byKey.get(rowKey(args[i - first], mConflictTypes.getRawValue(i),
+            mSavepointTimestamps.getRawValue(i)));
+      }
+      return block;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[readBlock] unable to read block " + blockIndex);
+      return null;
+    } finally {
+      if (db != null) {
+        try {
+          Tables.getInstance().getDatabase().closeDatabase(mAppName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(mAppName).printStackTrace(e);
+          WebLogger.getLogger(mAppName).e(TAG, "unable to close database");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a key telling apart the versions of a row that share its id: the
+   *         local and server versions of a row in conflict, and checkpoints.
+   */
+  private static String rowKey(String rowId, String conflictType, String savepointTimestamp) {
+    return rowId + '\n' + conflictType + '\n' + savepointTimestamp;
+  }
+
+  /**
+   * Encode one column of the source.
+   *
+   * @param type
+   *          the column's type, or null for a metadata column.
+   */
+  private Column encodeColumn(UserTable source, String elementKey, ElementType type) {
+    ElementDataType dataType = (type == null) ? null : type.getDataType();
+    Column column = null;
+    if (dataType == ElementDataType.integer) {
+      column = encodeIntegerColumn(source, elementKey, type);
+    } else if (dataType == ElementDataType.number) {
+      column = encodeNumberColumn(source, elementKey, type);
+    }
+    if (column == null) {
+      column = encodeDictionaryColumn(source, elementKey, type);
+    }
+    return column;
+  }
+
+  /**
+   * @return the column, or null if some value would not print back exactly as
+   *         it was read or displayed.
+   */
+  private Column encodeIntegerColumn(UserTable source, String elementKey, ElementType type) {
+    long[] values = new long[mNumberOfRows];
+    BitSet isNull = new BitSet(mNumberOfRows);
+    for (int i = 0; i < mNumberOfRows; ++i) {
+      String raw = source.getRowAtIndex(i).getDataByKey(elementKey);
+      if (raw == null) {
+        isNull.set(i);
+        continue;
+      }
+      try {
+        values[i] = Long.parseLong(raw);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (!Long.toString(values[i]).equals(raw)
+          || !raw.equals(source.getDisplayTextOfData(i, type, elementKey))) {
+        return null;
+      }
+    }
+    return new IntegerColumn(values, isNull);
+  }
+
+  /**
+   * @return the column, or null if some value would not print back exactly as
+   *         it was read or displayed.
+   */
+  private Column encodeNumberColumn(UserTable source, String elementKey, ElementType type) {
+    double[] values = new double[mNumberOfRows];
+    BitSet isNull = new BitSet(mNumberOfRows);
+    for (int i = 0; i < mNumberOfRows; ++i) {
+      String raw = source.getRowAtIndex(i).getDataByKey(elementKey);
+      if (raw == null) {
+        isNull.set(i);
+        continue;
+      }
+      try {
+        values[i] = Double.parseDouble(raw);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (!Double.toString(values[i]).equals(raw)
+          || !raw.equals(source.getDisplayTextOfData(i, type, elementKey))) {
+        return null;
+      }
+    }
+    return new NumberColumn(values, isNull);
+  }
+
+  private Column encodeDictionaryColumn(UserTable source, String elementKey, ElementType type) {
+    int[] codes = new int[mNumberOfRows];
+    Map<String, Integer> valueToCode = new HashMap<String, Integer>();
+    List<String> values = new ArrayList<String>();
+    List<String> displayTexts = new ArrayList<String>();
+    for (int i = 0; i < mNumberOfRows; ++i) {
+      String raw = source.getRowAtIndex(i).getDataByKey(elementKey);
+      if (raw == null) {
+        codes[i] = NULL_CODE;
+        continue;
+      }
+      Integer code = valueToCode.get(raw);
+      if (code == null) {
+        code = values.size();
+        valueToCode.put(raw, code);
+        values.add(raw);
+        // the display text depends only on the value and the column's type
+        String displayText = (type == null) ? raw :
+            source.getDisplayTextOfData(i, type, elementKey);
+        displayTexts.add(raw.equals(displayText) ? null : displayText);
+      }
+      codes[i] = code;
+    }
+    return new DictionaryColumn(codes, values.toArray(new String[values.size()]),
+        displayTexts.toArray(new String[displayTexts.size()]));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.database.data.Row;
+
+/**
+ * The rows of an ungrouped query result, indexed by the values of the
+ * group-by columns, so that groups can be expanded and collapsed in place.
+ * <p>
+ * The index is built in a single pass over the rows. Each group is shown as
+ * its first row while it is collapsed, which is what the grouped query
+ * displays, and as all of its rows once it is expanded. Expanding or
+ * collapsing a group only rebuilds the list of visible row indexes; the rows
+ * themselves are never re-read. The rows are held in a
+ * {@link ColumnarRowStore}, as there may be a great many of them.
+ * <p>
+ * The index is built on a background thread and then handed to the UI
+ * thread, which is the only thread to use it from then on, expanding and
+ * collapsing groups included, so it needs no locking.
+ */
+public class GroupedRowIndex {
+
+  private final ColumnarRowStore mRows;
+  private final String[] mGroupByElementKeys;
+
+  /** group index -> indexes into mRows of the rows in the group */
+  private final int[][] mGroupRows;
+  /** group key tuple -> group index */
+  private final Map<List<String>, Integer> mKeyToGroup;
+  private final boolean[] mExpanded;
+
+  /** visible position -> index into mRows */
+  private int[] mVisibleRows;
+  /** visible position -> group index */
+  private int[] mVisibleGroups;
+
+  /**
+   * @param rows
+   *          the result of the query without its group by.
+   * @param groupByElementKeys
+   *          the columns the rows are grouped by.
+   */
+  public GroupedRowIndex(ColumnarRowStore rows, String[] groupByElementKeys) {
+    this.mRows = rows;
+    this.mGroupByElementKeys = groupByElementKeys;
+    this.mKeyToGroup = new HashMap<List<String>, Integer>();
+
+    int numberOfRows = rows.getNumberOfRows();
+    // groups are numbered in the order they are first seen
+    int[] rowGroup = new int[numberOfRows];
+    List<Integer> groupSizes = new ArrayList<Integer>();
+    for (int i = 0; i < numberOfRows; ++i) {
+      List<String> key = getGroupKey(i);
+      Integer group = mKeyToGroup.get(key);
+      if (group == null) {
+        group = groupSizes.size();
+        mKeyToGroup.put(key, group);
+        groupSizes.add(0);
+      }
+      rowGroup[i] = group;
+      groupSizes.set(group, groupSizes.get(group) + 1);
+    }
+    mGroupRows = new int[groupSizes.size()][];
+    int[] filled = new int[groupSizes.size()];
+    for (int g = 0; g < mGroupRows.length; ++g) {
+      mGroupRows[g] = new int[groupSizes.get(g)];
+    }
+    for (int i = 0; i < numberOfRows; ++i) {
+      int g = rowGroup[i];
+      mGroupRows[g][filled[g]++] = i;
+    }
+    mExpanded = new boolean[mGroupRows.length];
+    rebuildVisibleRows();
+  }
+
+  /**
+   * Find the group a row belongs to. The row need not come from this index;
+   * e.g. it may be a row of the grouped query.
+   *
+   * @param row
+   * @return the group index, or -1 if no group has the row's values.
+   */
+  public int getGroupOfRow(Row row) {
+    String[] values = new String[mGroupByElementKeys.length];
+    for (int i = 0; i < mGroupByElementKeys.length; ++i) {
+      values[i] = row.getDataByKey(mGroupByElementKeys[i]);
+    }
+    Integer group = mKeyToGroup.get(Arrays.asList(values));
+    return (group == null) ? -1 : group;
+  }
+
+  private List<String> getGroupKey(int rowIndex) {
+    String[] values = new String[mGroupByElementKeys.length];
+    for (int i = 0; i < mGroupByElementKeys.length; ++i) {
+      values[i] = mRows.getRawValue(rowIndex, mGroupByElementKeys[i]);
+    }
+    return Arrays.asList(values);
+  }
+
+  public int getNumberOfGroups() {
+    return mGroupRows.length;
+  }
+
+  /**
+   * @param groupIndex
+   * @return the number of rows in the group.
+   */
+  public int getGroupSize(int groupIndex) {
+    return mGroupRows[groupIndex].length;
+  }
+
+  public boolean isExpanded(int groupIndex) {
+    return mExpanded[groupIndex];
+  }
+
+  /**
+   * Expand or collapse a group.
+   *
+   * @param groupIndex
+   * @param expanded
+   */
+  public void setExpanded(int groupIndex, boolean expanded) {
+    if (mExpanded[groupIndex] != expanded) {
+      mExpanded[groupIndex] = expanded;
+      rebuildVisibleRows();
+    }
+  }
+
+  /**
+   * @return the number of rows currently shown.
+   */
+  public int getNumberOfVisibleRows() {
+    return mVisibleRows.length;
+  }
+
+  /**
+   * @param visibleIndex
+   * @return the group of the row shown at the given position.
+   */
+  public int getGroupOfVisibleRow(int visibleIndex) {
+    return mVisibleGroups[visibleIndex];
+  }
+
+  /**
+   * @param visibleIndex
+   * @return the row shown at the given position, or null if there is none.
+   */
+  public Row getRowAtIndex(int visibleIndex) {
+    if (visibleIndex < 0 || visibleIndex >= mVisibleRows.length) {
+      return null;
+    }
+    return mRows.getRowAtIndex(mVisibleRows[visibleIndex]);
+  }
+
+  /**
+   * @param visibleIndex
+   * @param elementKey
+   * @return the display text of the cell, or null if there is no such row.
+   */
+  public String getDisplayTextOfData(int visibleIndex, String elementKey) {
+    if (visibleIndex < 0 || visibleIndex >= mVisibleRows.length) {
+      return null;
+    }
+    return mRows.getDisplayTextOfData(mVisibleRows[visibleIndex], elementKey);
+  }
+
+  private void rebuildVisibleRows() {
+    int count = 0;
+    for (int g = 0; g < mGroupRows.length; ++g) {
+      count += mExpanded[g] ? mGroupRows[g].length : 1;
+    }
+    int[] visibleRows = new int[count];
+    int[] visibleGroups = new int[count];
+    int k = 0;
+    for (int g = 0; g < mGroupRows.length; ++g) {
+      int shown = mExpanded[g] ? mGroupRows[g].length : 1;
+      for (int j = 0; j < shown; ++j) {
+        visibleRows[k] = mGroupRows[g][j];
+        visibleGroups[k] = g;
+        ++k;
+      }
+    }
+    mVisibleRows = visibleRows;
+    mVisibleGroups = visibleGroups;
+  }
+}
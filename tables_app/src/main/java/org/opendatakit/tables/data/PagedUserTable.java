@@ -0,0 +1,975 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+/**
+ * A read-only, paged view onto the result of a query against a table.
+ * <p>
+ * Rather than materializing the entire result set in a single
+ * {@link UserTable}, fixed-size windows of rows are fetched with LIMIT/OFFSET
+ * the first time any row within them is requested. The most recently used
+ * pages are retained in a bounded LRU; older pages are dropped and will be
+ * re-fetched if they are scrolled back into view.
+ * <p>
+ * The rows can also be re-sorted in memory, without re-running the query
+ * (see {@link #sortInMemory} and {@link #readSortKeys}). Row indexes passed to
+ * this class are then positions in the sorted order.
+ * <p>
+ * The greatest savepoint timestamp in the table is noted when the rows are
+ * counted. Rows saved after that (e.g. by ODK Survey) can then be merged into
+ * the cached rows, see {@link #mergeChangesSinceWatermark()}.
+ */
+public class PagedUserTable {
+
+  private static final String TAG = PagedUserTable.class.getSimpleName();
+
+  /** Number of rows fetched by a single query. */
+  public static final int DEFAULT_PAGE_SIZE = 200;
+  /** Maximum number of pages held in memory at once. */
+  public static final int DEFAULT_MAX_CACHED_PAGES = 10;
+
+  private static final String[] EMPTY_ARRAY = {};
+
+  private final String mAppName;
+  private final String mTableId;
+  private final OrderedColumns mColumnDefinitions;
+  private final SQLQueryStruct mQuery;
+  private final int mPageSize;
+  private final RowSource mSource;
+
+  /**
+   * Page index to page, in access order so that the eldest entry is the least
+   * recently used page.
+   */
+  private final LinkedHashMap<Integer, Page> mPages;
+
+  /**
+   * Rows that have been re-read since their page was fetched, by index in the
+   * query's order. Each holds a single-row table. These take precedence over
+   * the pages.
+   */
+  private final Map<Integer, UserTable> mPatchedRows = new HashMap<Integer, UserTable>();
+
+  /**
+   * The number of rows in the result set, or -1 if it has not yet been
+   * determined.
+   */
+  private int mNumberOfRows = -1;
+
+  /**
+   * The index in the query's order of the row at each sorted position, or
+   * null if the rows have not been sorted in memory.
+   */
+  private int[] mSortedOrder = null;
+  /** The column the rows were sorted by in memory, or null. */
+  private ColumnDefinition mSortColumn = null;
+  private boolean mSortAscending = true;
+
+  /**
+   * The greatest savepoint timestamp in the table as of the rows held here,
+   * or null if it has not been read (or the table was empty). Rows saved
+   * since have a later timestamp.
+   */
+  private String mWatermark = null;
+
+  /**
+   * Incremented whenever the cached pages are discarded, so that a page read
+   * in the background from before then is not kept.
+   */
+  private int mGeneration = 0;
+
+  /**
+   * The rows changed by {@link PagedUserTable#mergeChangesSinceWatermark()}.
+   */
+  public static final class MergedChanges {
+    /** The positions of the rows that were re-read in place. */
+    public final int[] changedRows;
+    /**
+     * Whether rows were added or re-sorted, so that the rows at other positions
+     * may have changed too.
+     */
+    public final boolean rowsMoved;
+
+    MergedChanges(int[] changedRows, boolean rowsMoved) {
+      this.changedRows = changedRows;
+      this.rowsMoved = rowsMoved;
+    }
+  }
+
+  /**
+   * The sort values of every row, read by {@link PagedUserTable#readSortKeys}
+   * to be applied with {@link PagedUserTable#applySort}.
+   */
+  public static final class SortKeys {
+    final ColumnDefinition column;
+    final RowSortKeys keys;
+    final int generation;
+    final int numberOfRows;
+
+    SortKeys(ColumnDefinition column, RowSortKeys keys, int generation, int numberOfRows) {
+      this.column = column;
+      this.keys = keys;
+      this.generation = generation;
+      this.numberOfRows = numberOfRows;
+    }
+  }
+
+  /**
+   * Where the rows are read from: the database, or a stand-in for it in
+   * tests. Every method may be called on any thread.
+   */
+  interface RowSource {
+    DbHandle openDatabase() throws ServicesAvailabilityException;
+
+    void closeDatabase(DbHandle db) throws ServicesAvailabilityException;
+
+    /**
+     * Run the query, sharing the result with the other views of the same
+     * query (see {@link org.opendatakit.tables.data.QueryResultCache}).
+     */
+    UserTable query(DbHandle db, SQLQueryStruct query, int limit, int offset)
+        throws ServicesAvailabilityException;
+
+    /**
+     * Run a query against the table that is not shared.
+     */
+    UserTable simpleQuery(DbHandle db, String whereClause, String[] selectionArgs,
+        String[] groupBy, String having, String[] orderByElementKeys,
+        String[] orderByDirections, Integer limit, Integer offset)
+        throws ServicesAvailabilityException;
+
+    UserTable getRowsWithId(DbHandle db, String rowId) throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Reads the rows of a table from the database.
+   */
+  private static final class DatabaseRowSource implements RowSource {
+    private final String appName;
+    private final String tableId;
+    private final OrderedColumns columnDefinitions;
+
+    DatabaseRowSource(String appName, String tableId, OrderedColumns columnDefinitions) {
+      this.appName = appName;
+      this.tableId = tableId;
+      this.columnDefinitions = columnDefinitions;
+    }
+
+    @Override
+    public DbHandle openDatabase() throws ServicesAvailabilityException {
+      return Tables.getInstance().getDatabase().openDatabase(appName);
+    }
+
+    @Override
+    public void closeDatabase(DbHandle db) throws ServicesAvailabilityException {
+      Tables.getInstance().getDatabase().closeDatabase(appName, db);
+    }
+
+    @Override
+    public UserTable query(DbHandle db, SQLQueryStruct query, int limit, int offset)
+        throws ServicesAvailabilityException {
+      return Tables.getInstance().getQueryResultCache().query(appName, db, tableId,
+          columnDefinitions, query.whereClause,
+          (query.selectionArgs == null) ? EMPTY_ARRAY : query.selectionArgs,
+          (query.groupBy == null) ? EMPTY_ARRAY : query.groupBy,
+          query.having,
+          (query.orderByElementKey == null) ? EMPTY_ARRAY :
+              new String[] { query.orderByElementKey },
+          (query.orderByDirection == null) ? EMPTY_ARRAY :
+              new String[] { query.orderByDirection },
+          limit, offset);
+    }
+
+    @Override
+    public UserTable simpleQuery(DbHandle db, String whereClause, String[] selectionArgs,
+        String[] groupBy, String having, String[] orderByElementKeys,
+        String[] orderByDirections, Integer limit, Integer offset)
+        throws ServicesAvailabilityException {
+      return Tables.getInstance().getDatabase().simpleQuery(appName, db, tableId,
+          columnDefinitions, whereClause, selectionArgs, groupBy, having, orderByElementKeys,
+          orderByDirections, limit, offset);
+    }
+
+    @Override
+    public UserTable getRowsWithId(DbHandle db, String rowId)
+        throws ServicesAvailabilityException {
+      return Tables.getInstance().getDatabase().getRowsWithId(appName, db, tableId,
+          columnDefinitions, rowId);
+    }
+  }
+
+  /**
+   * A single window of rows.
+   */
+  private static final class Page {
+    final UserTable table;
+
+    Page(UserTable table) {
+      this.table = table;
+    }
+  }
+
+  public PagedUserTable(String appName, String tableId, OrderedColumns columnDefinitions,
+      SQLQueryStruct query) {
+    this(appName, tableId, columnDefinitions, query, DEFAULT_PAGE_SIZE, DEFAULT_MAX_CACHED_PAGES);
+  }
+
+  public PagedUserTable(String appName, String tableId, OrderedColumns columnDefinitions,
+      SQLQueryStruct query, int pageSize, final int maxCachedPages) {
+    this(appName, tableId, columnDefinitions, query, pageSize, maxCachedPages,
+        new DatabaseRowSource(appName, tableId, columnDefinitions));
+  }
+
+  PagedUserTable(String appName, String tableId, OrderedColumns columnDefinitions,
+      SQLQueryStruct query, int pageSize, final int maxCachedPages, RowSource source) {
+    this.mAppName = appName;
+    this.mTableId = tableId;
+    this.mColumnDefinitions = columnDefinitions;
+    this.mQuery = query;
+    this.mPageSize = pageSize;
+    this.mSource = source;
+    this.mPages = new LinkedHashMap<Integer, Page>(maxCachedPages + 1, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+        return size() > maxCachedPages;
+      }
+    };
+  }
+
+  public String getAppName() {
+    return mAppName;
+  }
+
+  public String getTableId() {
+    return mTableId;
+  }
+
+  public OrderedColumns getColumnDefinitions() {
+    return mColumnDefinitions;
+  }
+
+  public int getPageSize() {
+    return mPageSize;
+  }
+
+  /**
+   * @return false if the query orders its rows descending. Rows sorted in
+   *         memory are ordered the same way.
+   */
+  public boolean isQueryAscending() {
+    return !"DESC".equalsIgnoreCase(mQuery.orderByDirection);
+  }
+
+  /**
+   * Get the number of rows in the result set. The first call sizes the result
+   * set against the database.
+   *
+   * @return the number of rows, or 0 if the database could not be accessed.
+   */
+  public synchronized int getNumberOfRows() {
+    if (mNumberOfRows == -1) {
+      DbHandle db = null;
+      try {
+        db = mSource.openDatabase();
+        // read before the rows, so that a row saved in between is merged
+        // later rather than missed.
+        mWatermark = readWatermark(db);
+        mNumberOfRows = countRows(db);
+      } catch (ServicesAvailabilityException e) {
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+        WebLogger.getLogger(mAppName).e(TAG, "[getNumberOfRows] unable to access database");
+        return 0;
+      } finally {
+        closeQuietly(db);
+      }
+    }
+    return mNumberOfRows;
+  }
+
+  /**
+   * Get the row at the given index of the result set, fetching the page that
+   * contains it if necessary.
+   *
+   * @param index
+   * @return the row, or null if it could not be retrieved.
+   */
+  public synchronized Row getRowAtIndex(int index) {
+    index = toQueryIndex(index);
+    UserTable patched = mPatchedRows.get(index);
+    if (patched != null) {
+      return patched.getRowAtIndex(0);
+    }
+    Page page = getPage(index / mPageSize);
+    if (page == null) {
+      return null;
+    }
+    return page.table.getRowAtIndex(index % mPageSize);
+  }
+
+  /**
+   * Get the rows of a page as the query returned them, fetching the page if
+   * necessary. Rows re-read or re-sorted in memory are not reflected, so this
+   * is only meant for a table that is never merged, refreshed or sorted.
+   *
+   * @param pageIndex
+   * @return the rows, or null if they could not be retrieved.
+   */
+  public synchronized UserTable getPageRows(int pageIndex) {
+    Page page = getPage(pageIndex);
+    return (page == null) ? null : page.table;
+  }
+
+  /**
+   * Whether the row at the given index is already in memory, so that reading
+   * it will not query the database. This never accesses the database.
+   *
+   * @param index
+   * @return
+   */
+  public synchronized boolean isRowInMemory(int index) {
+    index = toQueryIndex(index);
+    return mPatchedRows.containsKey(index) || mPages.containsKey(index / mPageSize);
+  }
+
+  /**
+   * Get the display text for the given cell, fetching the page that contains
+   * it if necessary.
+   *
+   * @param index
+   * @param type
+   * @param elementKey
+   * @return the display text, or null if the row could not be retrieved.
+   */
+  public synchronized String getDisplayTextOfData(int index, ElementType type, String elementKey) {
+    index = toQueryIndex(index);
+    UserTable patched = mPatchedRows.get(index);
+    if (patched != null) {
+      return patched.getDisplayTextOfData(0, type, elementKey);
+    }
+    Page page = getPage(index / mPageSize);
+    if (page == null) {
+      return null;
+    }
+    return page.table.getDisplayTextOfData(index % mPageSize, type, elementKey);
+  }
+
+  /**
+   * Read the page with the given index if it is not already in memory. This
+   * is meant to be called from a background thread: the lock on this table is
+   * not held while the database is queried, so rows already in memory can
+   * still be read on the UI thread in the meantime.
+   *
+   * @param pageIndex
+   */
+  public void prefetchPage(int pageIndex) {
+    int generation;
+    synchronized (this) {
+      if (pageIndex < 0 || mPages.containsKey(pageIndex)) {
+        return;
+      }
+      generation = mGeneration;
+    }
+    DbHandle db = null;
+    UserTable table;
+    try {
+      db = mSource.openDatabase();
+      table = query(db, mPageSize, pageIndex * mPageSize);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[prefetchPage] unable to fetch page " + pageIndex);
+      return;
+    } finally {
+      closeQuietly(db);
+    }
+    synchronized (this) {
+      // the page may have been read on the UI thread in the meantime, or the
+      // table invalidated.
+      if (generation == mGeneration && !mPages.containsKey(pageIndex)) {
+        mPages.put(pageIndex, new Page(table));
+      }
+    }
+  }
+
+  /**
+   * Read the pages holding the given range of rows, if they are not already
+   * in memory. As with {@link #prefetchPage(int)}, this is meant to be called
+   * from a background thread. If the rows have been sorted in memory, the
+   * range is of sorted positions, and may span many pages.
+   *
+   * @param firstIndex
+   * @param lastIndex
+   */
+  public void prefetchRows(int firstIndex, int lastIndex) {
+    Set<Integer> pageIndexes = new TreeSet<Integer>();
+    synchronized (this) {
+      for (int i = firstIndex; i <= lastIndex; ++i) {
+        pageIndexes.add(toQueryIndex(i) / mPageSize);
+      }
+    }
+    for (int pageIndex : pageIndexes) {
+      prefetchPage(pageIndex);
+    }
+  }
+
+  /**
+   * Whether a change to the given column leaves every row at the same index
+   * in the result set. This is conservative: any filter, grouping or sort
+   * that might involve the column is assumed to move rows.
+   *
+   * @param elementKey
+   * @return
+   */
+  public synchronized boolean isRowOrderIndependentOf(String elementKey) {
+    if (mQuery.groupBy != null && mQuery.groupBy.length != 0) {
+      return false;
+    }
+    if (elementKey.equals(mQuery.orderByElementKey)
+        || (mSortColumn != null && elementKey.equals(mSortColumn.getElementKey()))) {
+      return false;
+    }
+    if (mQuery.whereClause != null && mQuery.whereClause.contains(elementKey)) {
+      return false;
+    }
+    if (mQuery.having != null && mQuery.having.contains(elementKey)) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Re-read a single row from the database and use it in place of the copy
+   * in its page.
+   *
+   * @param index
+   *          the index of the row in the result set.
+   * @param rowId
+   *          the id of the row.
+   * @return true if the row was re-read. False if the database was
+   *         unavailable or the row did not come back as exactly one row (e.g.
+   *         it was deleted, or is now in conflict); the caller should then
+   *         fall back to refreshing the whole table.
+   */
+  public synchronized boolean refreshRow(int index, String rowId) {
+    DbHandle db = null;
+    try {
+      db = mSource.openDatabase();
+      UserTable table = mSource.getRowsWithId(db, rowId);
+      if (table == null || table.getNumberOfRows() != 1) {
+        return false;
+      }
+      mPatchedRows.put(toQueryIndex(index), table);
+      return true;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[refreshRow] unable to re-read row " + rowId);
+      return false;
+    } finally {
+      closeQuietly(db);
+    }
+  }
+
+  /**
+   * Drop all cached pages and the row count. They will be re-fetched on the
+   * next access.
+   */
+  public synchronized void invalidate() {
+    mPages.clear();
+    mPatchedRows.clear();
+    mNumberOfRows = -1;
+    mSortedOrder = null;
+    mSortColumn = null;
+    mWatermark = null;
+    ++mGeneration;
+  }
+
+  /**
+   * Bring the cached rows up to date with the rows saved since they were
+   * read, without discarding them.
+   * <p>
+   * Only the rows whose savepoint timestamp is later than the watermark are
+   * read. Each one that is held here is re-read at its position, which
+   * confirms the save has not moved it; rows that are not held must be new,
+   * and are only accepted at the end of the result set. The row count is then
+   * confirmed with two single-row probes. If the rows were sorted in memory,
+   * they are re-sorted only if a sort value changed or rows were added.
+   * <p>
+   * Anything that cannot be confirmed this way (a grouped query, a row that
+   * moved or left the filter, an edit to a row that is not held, a deletion,
+   * or more changed rows than fit in a page) makes the merge fail.
+   *
+   * @return the changes, or null if they could not be merged, in which case
+   *         this table should be discarded and the query re-run.
+   */
+  public synchronized MergedChanges mergeChangesSinceWatermark() {
+    if (mNumberOfRows == -1) {
+      return null;
+    }
+    if ((mQuery.groupBy != null && mQuery.groupBy.length != 0)
+        || (mQuery.having != null && mQuery.having.length() != 0)) {
+      return null;
+    }
+    boolean hasWhere = (mQuery.whereClause != null && mQuery.whereClause.length() != 0);
+    DbHandle db = null;
+    try {
+      db = mSource.openDatabase();
+      UserTable changed = queryChangedRows(db, false);
+      if (changed.getNumberOfRows() == 0) {
+        // a deletion leaves no newer savepoint; only the row count shows it
+        if (!hasRowCount(db, mNumberOfRows)) {
+          return null;
+        }
+        return new MergedChanges(new int[0], false);
+      }
+      if (changed.getNumberOfRows() > mPageSize) {
+        return null;
+      }
+      UserTable matching = hasWhere ? queryChangedRows(db, true) : changed;
+      Set<String> matchingIds = new HashSet<String>();
+      for (int i = 0; i < matching.getNumberOfRows(); ++i) {
+        if (!matchingIds.add(matching.getRowAtIndex(i).getDataByKey(DataTableColumns.ID))) {
+          // more than one savepoint of the row, e.g. a checkpoint.
+          return null;
+        }
+      }
+
+      Map<String, Integer> held = getHeldRowIndexes();
+      Map<Integer, UserTable> patches = new HashMap<Integer, UserTable>();
+      List<String> addedIds = new ArrayList<String>();
+      boolean sortValueChanged = false;
+      String watermark = mWatermark;
+      for (int i = 0; i < changed.getNumberOfRows(); ++i) {
+        Row row = changed.getRowAtIndex(i);
+        String rowId = row.getDataByKey(DataTableColumns.ID);
+        String timestamp = row.getDataByKey(DataTableColumns.SAVEPOINT_TIMESTAMP);
+        if (timestamp != null && (watermark == null || timestamp.compareTo(watermark) > 0)) {
+          watermark = timestamp;
+        }
+        Integer queryIndex = held.get(rowId);
+        if (queryIndex == null) {
+          if (matchingIds.contains(rowId)) {
+            addedIds.add(rowId);
+          }
+          continue;
+        }
+        if (!matchingIds.contains(rowId)) {
+          return null;
+        }
+        UserTable fresh = query(db, 1, queryIndex);
+        if (!isRow(fresh, rowId)) {
+          return null;
+        }
+        if (mSortColumn != null) {
+          String key = mSortColumn.getElementKey();
+          String before = getHeldRow(queryIndex).getDataByKey(key);
+          String after = fresh.getRowAtIndex(0).getDataByKey(key);
+          sortValueChanged |= (before == null) ? (after != null) : !before.equals(after);
+        }
+        patches.put(queryIndex, fresh);
+      }
+
+      int numberOfRows = mNumberOfRows + addedIds.size();
+      if (!hasRowCount(db, numberOfRows)) {
+        return null;
+      }
+      for (int i = mNumberOfRows; i < numberOfRows; ++i) {
+        UserTable fresh = query(db, 1, i);
+        if (fresh.getNumberOfRows() != 1
+            || !addedIds.contains(fresh.getRowAtIndex(0).getDataByKey(DataTableColumns.ID))) {
+          return null;
+        }
+        patches.put(i, fresh);
+      }
+
+      // everything is confirmed; apply it.
+      int previousNumberOfRows = mNumberOfRows;
+      mPatchedRows.putAll(patches);
+      mNumberOfRows = numberOfRows;
+      mWatermark = watermark;
+      // a page read in the background may predate the changes.
+      ++mGeneration;
+      boolean rowsMoved = !addedIds.isEmpty();
+      if (mSortColumn != null && (rowsMoved || sortValueChanged)) {
+        if (!sortInMemory(mSortColumn, mSortAscending)) {
+          return null;
+        }
+        rowsMoved = true;
+      }
+
+      int[] changedRows = new int[patches.size() - addedIds.size()];
+      int k = 0;
+      for (int i = 0; i < mNumberOfRows; ++i) {
+        int queryIndex = toQueryIndex(i);
+        if (queryIndex < previousNumberOfRows && patches.containsKey(queryIndex)) {
+          changedRows[k++] = i;
+        }
+      }
+      return new MergedChanges(changedRows, rowsMoved);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[mergeChangesSinceWatermark] unable to access database");
+      return null;
+    } finally {
+      closeQuietly(db);
+    }
+  }
+
+  /**
+   * Re-order the rows by the given column without querying the database.
+   * This is only possible when every page is in memory; otherwise the sort
+   * values must first be read with {@link #readSortKeys(ColumnDefinition)}.
+   * The column's values are parsed once according to its type and the rows
+   * are ordered through an index, so the pages themselves are untouched.
+   *
+   * @param cd
+   *          the column to sort by, or null to restore the query's order.
+   * @param ascending
+   * @return true if the rows were re-ordered. False if not every row is in
+   *         memory.
+   */
+  public synchronized boolean sortInMemory(ColumnDefinition cd, boolean ascending) {
+    if (cd == null) {
+      mSortedOrder = null;
+      mSortColumn = null;
+      return true;
+    }
+    int numberOfRows = getNumberOfRows();
+    String elementKey = cd.getElementKey();
+    RowSortKeys keys = RowSortKeys.create(cd, numberOfRows);
+    for (int i = 0; i < numberOfRows; ++i) {
+      Row row = getHeldRow(i);
+      if (row == null) {
+        return false;
+      }
+      keys.set(i, row.getDataByKey(elementKey));
+    }
+    mSortedOrder = keys.sort(ascending);
+    mSortColumn = cd;
+    mSortAscending = ascending;
+    return true;
+  }
+
+  /**
+   * Read the value of the given column of every row, so that the rows can be
+   * re-ordered by it with {@link #applySort(SortKeys, boolean)}. Pages in
+   * memory are used as they are; the others are read a page at a time and
+   * dropped once their values are taken, so neither the pages held nor the
+   * shared query results are displaced. This is meant to be called from a
+   * background thread: the lock on this table is not held while the database
+   * is queried.
+   *
+   * @param cd
+   * @return the values, or null if the database could not be accessed or the
+   *         rows changed while they were being read.
+   */
+  public SortKeys readSortKeys(ColumnDefinition cd) {
+    int numberOfRows;
+    int generation;
+    synchronized (this) {
+      getNumberOfRows();
+      if (mNumberOfRows == -1) {
+        return null;
+      }
+      numberOfRows = mNumberOfRows;
+      generation = mGeneration;
+    }
+    String elementKey = cd.getElementKey();
+    RowSortKeys keys = RowSortKeys.create(cd, numberOfRows);
+    DbHandle db = null;
+    try {
+      for (int first = 0; first < numberOfRows; first += mPageSize) {
+        int last = Math.min(numberOfRows, first + mPageSize);
+        synchronized (this) {
+          if (generation != mGeneration) {
+            return null;
+          }
+          if (mPages.containsKey(first / mPageSize)) {
+            for (int i = first; i < last; ++i) {
+              Row row = getHeldRow(i);
+              if (row == null) {
+                return null;
+              }
+              keys.set(i, row.getDataByKey(elementKey));
+            }
+            continue;
+          }
+        }
+        if (db == null) {
+          db = mSource.openDatabase();
+        }
+        UserTable page = queryUncached(db, mPageSize, first);
+        if (page.getNumberOfRows() != last - first) {
+          return null;
+        }
+        synchronized (this) {
+          for (int i = first; i < last; ++i) {
+            UserTable patched = mPatchedRows.get(i);
+            Row row = (patched != null) ? patched.getRowAtIndex(0)
+                : page.getRowAtIndex(i - first);
+            keys.set(i, row.getDataByKey(elementKey));
+          }
+        }
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[readSortKeys] unable to access database");
+      return null;
+    } finally {
+      closeQuietly(db);
+    }
+    return new SortKeys(cd, keys, generation, numberOfRows);
+  }
+
+  /**
+   * Re-order the rows by the values read by
+   * {@link #readSortKeys(ColumnDefinition)}.
+   *
+   * @param sortKeys
+   * @param ascending
+   * @return false if the rows have changed since the values were read.
+   */
+  public synchronized boolean applySort(SortKeys sortKeys, boolean ascending) {
+    if (sortKeys.generation != mGeneration || sortKeys.numberOfRows != mNumberOfRows) {
+      return false;
+    }
+    mSortedOrder = sortKeys.keys.sort(ascending);
+    mSortColumn = sortKeys.column;
+    mSortAscending = ascending;
+    return true;
+  }
+
+  /**
+   * @return the column the rows have been sorted by in memory, or null if
+   *         they are in the query's order.
+   */
+  public synchronized ColumnDefinition getSortColumn() {
+    return mSortColumn;
+  }
+
+  /**
+   * @param queryIndex
+   * @return the row at the given index in the query's order, if it is in
+   *         memory, else null.
+   */
+  private Row getHeldRow(int queryIndex) {
+    UserTable patched = mPatchedRows.get(queryIndex);
+    if (patched != null) {
+      return patched.getRowAtIndex(0);
+    }
+    Page page = mPages.get(queryIndex / mPageSize);
+    if (page == null || queryIndex % mPageSize >= page.table.getNumberOfRows()) {
+      return null;
+    }
+    return page.table.getRowAtIndex(queryIndex % mPageSize);
+  }
+
+  /**
+   * @return the index in the query's order of each row in memory, by row id.
+   */
+  private Map<String, Integer> getHeldRowIndexes() {
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    for (Map.Entry<Integer, Page> entry : mPages.entrySet()) {
+      UserTable table = entry.getValue().table;
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+        indexes.put(table.getRowAtIndex(i).getDataByKey(DataTableColumns.ID),
+            entry.getKey() * mPageSize + i);
+      }
+    }
+    for (Map.Entry<Integer, UserTable> entry : mPatchedRows.entrySet()) {
+      indexes.put(entry.getValue().getRowAtIndex(0).getDataByKey(DataTableColumns.ID),
+          entry.getKey());
+    }
+    return indexes;
+  }
+
+  private static boolean isRow(UserTable table, String rowId) {
+    return table.getNumberOfRows() == 1
+        && rowId.equals(table.getRowAtIndex(0).getDataByKey(DataTableColumns.ID));
+  }
+
+  private int toQueryIndex(int index) {
+    if (mSortedOrder == null || index < 0 || index >= mSortedOrder.length) {
+      return index;
+    }
+    return mSortedOrder[index];
+  }
+
+  private Page getPage(int pageIndex) {
+    Page page = mPages.get(pageIndex);
+    if (page != null) {
+      return page;
+    }
+    DbHandle db = null;
+    try {
+      db = mSource.openDatabase();
+      page = new Page(query(db, mPageSize, pageIndex * mPageSize));
+      mPages.put(pageIndex, page);
+      return page;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+      WebLogger.getLogger(mAppName).e(TAG, "[getPage] unable to fetch page " + pageIndex);
+      return null;
+    } finally {
+      closeQuietly(db);
+    }
+  }
+
+  /**
+   * Determine the size of the result set.
+   * <p>
+   * The database interface only exposes row queries, not aggregates, so the
+   * first page is fetched (and kept) and, if it is full, the end of the result
+   * set is found by probing single-row windows: double the offset until a
+   * probe comes back empty, then binary search between the last hit and the
+   * first miss. This is a handful of one-row queries rather than a transfer of
+   * the whole table.
+   */
+  private int countRows(DbHandle db) throws ServicesAvailabilityException {
+    Page first = new Page(query(db, mPageSize, 0));
+    mPages.put(0, first);
+    int firstPageRows = first.table.getNumberOfRows();
+    if (firstPageRows < mPageSize) {
+      return firstPageRows;
+    }
+    // invariant: a row exists at offset low and does not exist at offset high
+    int low = mPageSize - 1;
+    int high = 2 * mPageSize;
+    while (hasRowAt(db, high)) {
+      low = high;
+      if (high > Integer.MAX_VALUE / 2) {
+        return Integer.MAX_VALUE;
+      }
+      high *= 2;
+    }
+    while (high - low > 1) {
+      int mid = (low + high) >>> 1;
+      if (hasRowAt(db, mid)) {
+        low = mid;
+      } else {
+        high = mid;
+      }
+    }
+    return low + 1;
+  }
+
+  /**
+   * Read the greatest savepoint timestamp in the table, regardless of the
+   * query's filter.
+   */
+  private String readWatermark(DbHandle db) throws ServicesAvailabilityException {
+    UserTable latest = mSource.simpleQuery(db, null, EMPTY_ARRAY, EMPTY_ARRAY, null,
+        new String[] { DataTableColumns.SAVEPOINT_TIMESTAMP }, new String[] { "DESC" }, 1, 0);
+    if (latest.getNumberOfRows() == 0) {
+      return null;
+    }
+    return latest.getRowAtIndex(0).getDataByKey(DataTableColumns.SAVEPOINT_TIMESTAMP);
+  }
+
+  /**
+   * Read the rows saved since the watermark.
+   *
+   * @param db
+   * @param filtered
+   *          whether to apply the query's filter, or read every changed row.
+   */
+  private UserTable queryChangedRows(DbHandle db, boolean filtered)
+      throws ServicesAvailabilityException {
+    String since = DataTableColumns.SAVEPOINT_TIMESTAMP + " > ?";
+    String where = (mWatermark == null) ? null : since;
+    String[] args = (mWatermark == null) ? EMPTY_ARRAY : new String[] { mWatermark };
+    if (filtered) {
+      String[] selectionArgs = (mQuery.selectionArgs == null) ? EMPTY_ARRAY : mQuery.selectionArgs;
+      if (mWatermark == null) {
+        where = mQuery.whereClause;
+        args = selectionArgs;
+      } else {
+        where = "(" + mQuery.whereClause + ") AND " + since;
+        args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = mWatermark;
+      }
+    }
+    return mSource.simpleQuery(db, where, args, EMPTY_ARRAY, null, EMPTY_ARRAY, EMPTY_ARRAY,
+        null, null);
+  }
+
+  /**
+   * Confirm the size of the result set with two single-row probes.
+   */
+  private boolean hasRowCount(DbHandle db, int numberOfRows)
+      throws ServicesAvailabilityException {
+    return (numberOfRows == 0 || hasRowAt(db, numberOfRows - 1))
+        && !hasRowAt(db, numberOfRows);
+  }
+
+  private boolean hasRowAt(DbHandle db, int offset) throws ServicesAvailabilityException {
+    return query(db, 1, offset).getNumberOfRows() != 0;
+  }
+
+  /**
+   * Read rows without going through the shared query results, for a scan of
+   * the whole result that would otherwise flush them.
+   */
+  private UserTable queryUncached(DbHandle db, int limit, int offset) throws
+      ServicesAvailabilityException {
+    return mSource.simpleQuery(db, mQuery.whereClause,
+        (mQuery.selectionArgs == null) ? EMPTY_ARRAY : mQuery.selectionArgs,
+        (mQuery.groupBy == null) ? EMPTY_ARRAY : mQuery.groupBy,
+        mQuery.having,
+        (mQuery.orderByElementKey == null) ? EMPTY_ARRAY :
+            new String[] { mQuery.orderByElementKey },
+        (mQuery.orderByDirection == null) ? EMPTY_ARRAY :
+            new String[] { mQuery.orderByDirection },
+        limit, offset);
+  }
+
+  private UserTable query(DbHandle db, int limit, int offset) throws
+      ServicesAvailabilityException {
+    // pages are shared with the other views of the same query
+    return mSource.query(db, mQuery, limit, offset);
+  }
+
+  private void closeQuietly(DbHandle db) {
+    if (db != null) {
+      try {
+        mSource.closeDatabase(db);
+      } catch (ServicesAvailabilityException e) {
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+        WebLogger.getLogger(mAppName).e(TAG, "unable to close database");
+      }
+    }
+  }
+}
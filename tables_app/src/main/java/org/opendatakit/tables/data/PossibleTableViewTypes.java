@@ -21,11 +21,9 @@ import java.util.Set;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.data.TableViewType;
 import org.opendatakit.exception.ServicesAvailabilityException;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.service.DbHandle;
 
 import org.opendatakit.tables.activities.TableDisplayActivity;
-import org.opendatakit.tables.application.Tables;
 
 /**
  * Contains information about which {@see TableViewType}s are valid for a
@@ -47,8 +45,9 @@ public class PossibleTableViewTypes {
 
   public PossibleTableViewTypes(String appName, DbHandle db, String tableId, OrderedColumns orderedDefns) throws
       ServicesAvailabilityException {
-    TableViewType defaultViewType = TableUtil.get().getDefaultViewType(Tables.getInstance(),
-        appName, db, tableId);
+    TablePresentation presentation = TablePresentationLoader.get().load(appName, db, tableId,
+        orderedDefns);
+    TableViewType defaultViewType = presentation.getDefaultViewType();
     if ( defaultViewType != null ) {
       switch (defaultViewType) {
       case SPREADSHEET:
@@ -68,14 +67,12 @@ public class PossibleTableViewTypes {
     }
 
     mSpreadsheetIsValid = true; // always
-    mListFileName = TableUtil.get().getListViewFilename(Tables.getInstance(), appName, db, tableId);
+    mListFileName = presentation.getListViewFileName();
     mListIsValid = (null != mListFileName);
-    mMapListFileName = TableUtil.get().getMapListViewFilename(Tables.getInstance(), appName, db,
-        tableId);
+    mMapListFileName = presentation.getMapListViewFileName();
     mMapIsValid = (null != mMapListFileName) && orderedDefns.mapViewIsPossible();
 
-    mDetailFileName = TableUtil.get().getDetailViewFilename(Tables.getInstance(), appName, db,
-        tableId);
+    mDetailFileName = presentation.getDetailViewFileName();
   }
   
   /**
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.application.Tables;
+
+/**
+ * The results of recent queries, shared by all the views of the process.
+ * <p>
+ * The list, detail, map list and spreadsheet views of a table read the same
+ * rows again on every reload, view switch and rotation. Results are kept,
+ * least recently used first, within a memory budget; the size of a result is
+ * estimated from its number of rows and columns. Concurrent identical queries
+ * are coalesced: only the first reads the database, and the others wait for
+ * and share its result. The queries that pages make through the data bridge
+ * are run by the library and do not go through it; only the queries that
+ * pages register by name are served from it.
+ * <p>
+ * Whoever writes to a table must call {@link #invalidateTable(String, String)}
+ * (or {@link #invalidateApp(String)} if the tables written are not known).
+ * A result read while an invalidation happens is returned to its callers but
+ * not kept. The results are shared, so callers must not modify them.
+ * <p>
+ * Thread safe.
+ */
+public final class QueryResultCache {
+
+  /** The most memory, estimated, that the cached results may take. */
+  public static final long MEMORY_BUDGET_BYTES = 4L * 1024L * 1024L;
+  /** Results estimated at more than this are not cached. */
+  public static final long MAX_RESULT_BYTES = MEMORY_BUDGET_BYTES / 4;
+  /** estimated size of one value of a row, including the row's overhead */
+  private static final long ESTIMATED_BYTES_PER_VALUE = 64;
+  /** the metadata columns of a row, in addition to the user-defined ones */
+  private static final int ESTIMATED_ADMIN_COLUMNS = 12;
+
+  private static final String[] EMPTY_ARRAY = {};
+
+  private static final class Key {
+    final String appName;
+    final String tableId;
+    final List<Object> query;
+
+    Key(String appName, String tableId, List<Object> query) {
+      this.appName = appName;
+      this.tableId = tableId;
+      this.query = query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return appName.equals(other.appName) && tableId.equals(other.tableId)
+          && query.equals(other.query);
+    }
+
+    @Override
+    public int hashCode() {
+      return (appName.hashCode() * 31 + tableId.hashCode()) * 31 + query.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    final UserTable result;
+    final long estimatedBytes;
+
+    Entry(UserTable result, long estimatedBytes) {
+      this.result = result;
+      this.estimatedBytes = estimatedBytes;
+    }
+  }
+
+  /** A read of the database that other callers may wait for. */
+  private static final class InFlight {
+    final CountDownLatch done = new CountDownLatch(1);
+    UserTable result;
+    ServicesAvailabilityException error;
+  }
+
+  /** least recently used first */
+  private final LinkedHashMap<Key, Entry> mResults = new LinkedHashMap<Key, Entry>(16, 0.75f,
+      true);
+  private final Map<Key, InFlight> mInFlight = new HashMap<Key, InFlight>();
+  private long mEstimatedBytes = 0;
+  /** incremented by every invalidation */
+  private long mGeneration = 0;
+
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mCoalesced = 0;
+
+  /**
+   * Query a table, as with simpleQuery, using the cached result if there is
+   * one.
+   *
+   * @param appName
+   * @param db
+   *          an open database handle, used if the result is not cached.
+   * @param tableId
+   * @param orderedDefns
+   * @param whereClause
+   * @param selectionArgs
+   * @param groupBy
+   * @param having
+   * @param orderByElementKeys
+   * @param orderByDirections
+   * @param limit
+   * @param offset
+   * @return the result, which must not be modified.
+   * @throws ServicesAvailabilityException
+   */
+  public UserTable query(String appName, DbHandle db, String tableId,
+      OrderedColumns orderedDefns, String whereClause, String[] selectionArgs,
+      String[] groupBy, String having, String[] orderByElementKeys,
+      String[] orderByDirections, Integer limit, Integer offset)
+      throws ServicesAvailabilityException {
+    selectionArgs = (selectionArgs == null) ? EMPTY_ARRAY : selectionArgs;
+    groupBy = (groupBy == null) ? EMPTY_ARRAY : groupBy;
+    orderByElementKeys = (orderByElementKeys == null) ? EMPTY_ARRAY : orderByElementKeys;
+    orderByDirections = (orderByDirections == null) ? EMPTY_ARRAY : orderByDirections;
+    Key key = new Key(appName, tableId, Arrays.<Object> asList(whereClause,
+        Arrays.asList(selectionArgs), Arrays.asList(groupBy), having,
+        Arrays.asList(orderByElementKeys), Arrays.asList(orderByDirections), limit, offset));
+
+    InFlight inFlight;
+    boolean reader = false;
+    long generation;
+    synchronized (this) {
+      Entry entry = mResults.get(key);
+      if (entry != null) {
+        ++mHits;
+        return entry.result;
+      }
+      inFlight = mInFlight.get(key);
+      if (inFlight == null) {
+        inFlight = new InFlight();
+        mInFlight.put(key, inFlight);
+        reader = true;
+        ++mMisses;
+      } else {
+        ++mCoalesced;
+      }
+      generation = mGeneration;
+    }
+
+    if (!reader) {
+      UserTable result = awaitResult(inFlight);
+      if (result != null) {
+        return result;
+      }
+      // interrupted, or the read failed unexpectedly; read it ourselves, without caching it
+      return Tables.getInstance().getDatabase().simpleQuery(appName, db, tableId, orderedDefns,
+          whereClause, selectionArgs, groupBy, having, orderByElementKeys, orderByDirections,
+          limit, offset);
+    }
+
+    try {
+      inFlight.result = Tables.getInstance().getDatabase().simpleQuery(appName, db, tableId,
+          orderedDefns, whereClause, selectionArgs, groupBy, having, orderByElementKeys,
+          orderByDirections, limit, offset);
+    } catch (ServicesAvailabilityException e) {
+      inFlight.error = e;
+      throw e;
+    } finally {
+      synchronized (this) {
+        if (mInFlight.get(key) == inFlight) {
+          mInFlight.remove(key);
+        }
+        if (inFlight.result != null && generation == mGeneration) {
+          put(key, inFlight.result, orderedDefns);
+        }
+      }
+      inFlight.done.countDown();
+    }
+    return inFlight.result;
+  }
+
+  /**
+   * @return the result of the read, or null if it failed unexpectedly or we
+   *         were interrupted while waiting.
+   */
+  private UserTable awaitResult(InFlight inFlight) throws ServicesAvailabilityException {
+    try {
+      inFlight.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (inFlight.error != null) {
+      throw inFlight.error;
+    }
+    return inFlight.result;
+  }
+
+  private void put(Key key, UserTable result, OrderedColumns orderedDefns) {
+    long estimatedBytes = (long) result.getNumberOfRows()
+        * (orderedDefns.getRetentionColumnNames().size() + ESTIMATED_ADMIN_COLUMNS)
+        * ESTIMATED_BYTES_PER_VALUE;
+    if (estimatedBytes > MAX_RESULT_BYTES) {
+      return;
+    }
+    Entry replaced = mResults.put(key, new Entry(result, estimatedBytes));
+    if (replaced != null) {
+      mEstimatedBytes -= replaced.estimatedBytes;
+    }
+    mEstimatedBytes += estimatedBytes;
+    Iterator<Entry> eldest = mResults.values().iterator();
+    while (mEstimatedBytes > MEMORY_BUDGET_BYTES && eldest.hasNext()) {
+      mEstimatedBytes -= eldest.next().estimatedBytes;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Forget the results of queries on a table, e.g. after rows of it are
+   * added, changed or deleted.
+   *
+   * @param appName
+   * @param tableId
+   */
+  public synchronized void invalidateTable(String appName, String tableId) {
+    ++mGeneration;
+    removeMatching(appName, tableId);
+  }
+
+  /**
+   * Forget the results of queries on any table of an app, e.g. after an
+   * unknown set of tables is written.
+   *
+   * @param appName
+   */
+  public synchronized void invalidateApp(String appName) {
+    ++mGeneration;
+    removeMatching(appName, null);
+  }
+
+  /**
+   * Forget everything, e.g. when the database service goes away.
+   */
+  public synchronized void invalidateAll() {
+    ++mGeneration;
+    mResults.clear();
+    mEstimatedBytes = 0;
+    // reads already under way finish, but later identical queries read again
+    mInFlight.clear();
+  }
+
+  private void removeMatching(String appName, String tableId) {
+    Iterator<Map.Entry<Key, Entry>> it = mResults.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, Entry> e = it.next();
+      if (matches(e.getKey(), appName, tableId)) {
+        mEstimatedBytes -= e.getValue().estimatedBytes;
+        it.remove();
+      }
+    }
+    Iterator<Key> inFlight = mInFlight.keySet().iterator();
+    while (inFlight.hasNext()) {
+      if (matches(inFlight.next(), appName, tableId)) {
+        inFlight.remove();
+      }
+    }
+  }
+
+  private static boolean matches(Key key, String appName, String tableId) {
+    return key.appName.equals(appName) && (tableId == null || key.tableId.equals(tableId));
+  }
+
+  public synchronized long getEstimatedBytes() {
+    return mEstimatedBytes;
+  }
+
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  /**
+   * @return the number of queries that waited for an identical one already
+   *         reading the database.
+   */
+  public synchronized long getCoalesced() {
+    return mCoalesced;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.ColumnDefinition;
+
+/**
+ * The values of one column of a result set, extracted so that the rows can be
+ * sorted without going back to the database.
+ * <p>
+ * Each value is parsed once, according to the column's data type, into a
+ * primitive array; comparisons while sorting are then array reads. Null and
+ * unparseable values sort before everything else, as SQLite sorts nulls.
+ */
+abstract class RowSortKeys {
+
+  /** Whether the value of each row is null (or could not be parsed). */
+  protected final boolean[] mIsNull;
+
+  protected RowSortKeys(int numberOfRows) {
+    this.mIsNull = new boolean[numberOfRows];
+  }
+
+  /**
+   * Create the keys for the given column.
+   *
+   * @param cd
+   * @param numberOfRows
+   * @return
+   */
+  static RowSortKeys create(ColumnDefinition cd, int numberOfRows) {
+    ElementDataType type = cd.getType().getDataType();
+    if (type == ElementDataType.integer || type == ElementDataType.bool) {
+      return new IntegerKeys(numberOfRows);
+    } else if (type == ElementDataType.number) {
+      return new NumberKeys(numberOfRows);
+    } else {
+      return new StringKeys(numberOfRows);
+    }
+  }
+
+  /**
+   * Record the raw (database) value of a row.
+   *
+   * @param index
+   * @param rawValue
+   */
+  void set(int index, String rawValue) {
+    if (rawValue == null || !parse(index, rawValue)) {
+      mIsNull[index] = true;
+    }
+  }
+
+  /**
+   * Store the parsed value of a row.
+   *
+   * @return false if the value could not be parsed.
+   */
+  protected abstract boolean parse(int index, String rawValue);
+
+  /**
+   * Compare the values of two rows, both of which are non-null.
+   */
+  protected abstract int compareValues(int a, int b);
+
+  int compare(int a, int b) {
+    if (mIsNull[a]) {
+      return mIsNull[b] ? 0 : -1;
+    }
+    if (mIsNull[b]) {
+      return 1;
+    }
+    return compareValues(a, b);
+  }
+
+  /**
+   * Get the order of the rows sorted by these keys. The sort is stable, so
+   * rows with equal values keep their order from the query.
+   *
+   * @param ascending
+   * @return the index of the row at each sorted position.
+   */
+  int[] sort(boolean ascending) {
+    int n = mIsNull.length;
+    int[] order = new int[n];
+    for (int i = 0; i < n; ++i) {
+      order[i] = i;
+    }
+    int[] scratch = new int[n];
+    mergeSort(order, scratch, 0, n, ascending ? 1 : -1);
+    return order;
+  }
+
+  private void mergeSort(int[] order, int[] scratch, int from, int to, int sign) {
+    if (to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(order, scratch, from, mid, sign);
+    mergeSort(order, scratch, mid, to, sign);
+    if (sign * compare(order[mid - 1], order[mid]) <= 0) {
+      // already in order
+      return;
+    }
+    System.arraycopy(order, from, scratch, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; ++k) {
+      if (j >= to || (i < mid && sign * compare(scratch[i], scratch[j]) <= 0)) {
+        order[k] = scratch[i++];
+      } else {
+        order[k] = scratch[j++];
+      }
+    }
+  }
+
+  private static final class IntegerKeys extends RowSortKeys {
+    private final long[] mValues;
+
+    IntegerKeys(int numberOfRows) {
+      super(numberOfRows);
+      mValues = new long[numberOfRows];
+    }
+
+    @Override
+    protected boolean parse(int index, String rawValue) {
+      try {
+        mValues[index] = Long.parseLong(rawValue.trim());
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected int compareValues(int a, int b) {
+      long x = mValues[a];
+      long y = mValues[b];
+      return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+  }
+
+  private static final class NumberKeys extends RowSortKeys {
+    private final double[] mValues;
+
+    NumberKeys(int numberOfRows) {
+      super(numberOfRows);
+      mValues = new double[numberOfRows];
+    }
+
+    @Override
+    protected boolean parse(int index, String rawValue) {
+      try {
+        mValues[index] = Double.parseDouble(rawValue.trim());
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    @Override
+    protected int compareValues(int a, int b) {
+      return Double.compare(mValues[a], mValues[b]);
+    }
+  }
+
+  private static final class StringKeys extends RowSortKeys {
+    private final String[] mValues;
+
+    StringKeys(int numberOfRows) {
+      super(numberOfRows);
+      mValues = new String[numberOfRows];
+    }
+
+    @Override
+    protected boolean parse(int index, String rawValue) {
+      mValues[index] = rawValue;
+      return true;
+    }
+
+    @Override
+    protected int compareValues(int a, int b) {
+      return mValues[a].compareTo(mValues[b]);
+    }
+  }
+}
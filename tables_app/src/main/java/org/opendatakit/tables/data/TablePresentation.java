@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.data.TableViewType;
+
+/**
+ * Everything needed to present a table that is configured in its key value
+ * store: the column order and index column, the display names, choices and
+ * widths of the columns, the font size, the color rules, and the default view
+ * type and view files.
+ * <p>
+ * Loaded by {@link TablePresentationLoader} as of a single revision of the
+ * table's key value store. Immutable.
+ */
+public final class TablePresentation {
+
+  private final String mRevId;
+  private final String mIndexColumn;
+  private final List<String> mColumnOrder;
+  private final Map<String, String> mDisplayNames;
+  private final Map<String, ArrayList<Map<String, Object>>> mDisplayChoices;
+  private final Map<String, Integer> mColumnWidths;
+  private final int mFontSize;
+  private final TableViewType mDefaultViewType;
+  private final String mListViewFileName;
+  private final String mMapListViewFileName;
+  private final String mDetailViewFileName;
+
+  private final ColorRuleGroup mTableColorRuleGroup;
+  private final ColorRuleGroup mStatusColumnRuleGroup;
+  private final Map<String, ColorRuleGroup> mColumnColorRuleGroups;
+
+  TablePresentation(String revId, String indexColumn, List<String> columnOrder,
+      Map<String, String> displayNames,
+      Map<String, ArrayList<Map<String, Object>>> displayChoices,
+      Map<String, Integer> columnWidths, int fontSize, TableViewType defaultViewType,
+      String listViewFileName, String mapListViewFileName, String detailViewFileName,
+      ColorRuleGroup tableColorRuleGroup, ColorRuleGroup statusColumnRuleGroup,
+      Map<String, ColorRuleGroup> columnColorRuleGroups) {
+    this.mRevId = revId;
+    this.mIndexColumn = indexColumn;
+    this.mColumnOrder = Collections.unmodifiableList(new ArrayList<String>(columnOrder));
+    this.mDisplayNames = Collections.unmodifiableMap(new HashMap<String, String>(displayNames));
+    this.mDisplayChoices = Collections.unmodifiableMap(
+        new HashMap<String, ArrayList<Map<String, Object>>>(displayChoices));
+    this.mColumnWidths = Collections.unmodifiableMap(new HashMap<String, Integer>(columnWidths));
+    this.mFontSize = fontSize;
+    this.mDefaultViewType = defaultViewType;
+    this.mListViewFileName = listViewFileName;
+    this.mMapListViewFileName = mapListViewFileName;
+    this.mDetailViewFileName = detailViewFileName;
+    this.mTableColorRuleGroup = tableColorRuleGroup;
+    this.mStatusColumnRuleGroup = statusColumnRuleGroup;
+    this.mColumnColorRuleGroups = Collections.unmodifiableMap(
+        new HashMap<String, ColorRuleGroup>(columnColorRuleGroups));
+  }
+
+  /**
+   * @return the revision of the key value store this was loaded from.
+   */
+  public String getRevId() {
+    return mRevId;
+  }
+
+  /**
+   * @return the element key of the index (frozen) column, or null if there is
+   *         none.
+   */
+  public String getIndexColumn() {
+    return mIndexColumn;
+  }
+
+  /**
+   * @return the element keys of the displayed columns, in display order.
+   */
+  public List<String> getColumnOrder() {
+    return mColumnOrder;
+  }
+
+  public String getLocalizedDisplayName(String elementKey) {
+    return mDisplayNames.get(elementKey);
+  }
+
+  public ArrayList<Map<String, Object>> getDisplayChoicesList(String elementKey) {
+    return mDisplayChoices.get(elementKey);
+  }
+
+  /**
+   * @return element key -> width of the column.
+   */
+  public Map<String, Integer> getColumnWidths() {
+    return mColumnWidths;
+  }
+
+  public int getSpreadsheetViewFontSize() {
+    return mFontSize;
+  }
+
+  /**
+   * @return the default view type, or null if none is set.
+   */
+  public TableViewType getDefaultViewType() {
+    return mDefaultViewType;
+  }
+
+  public String getListViewFileName() {
+    return mListViewFileName;
+  }
+
+  public String getMapListViewFileName() {
+    return mMapListViewFileName;
+  }
+
+  public String getDetailViewFileName() {
+    return mDetailViewFileName;
+  }
+
+  /**
+   * @return the table's row color rules, or null if it has none.
+   */
+  public ColorRuleGroup getTableColorRuleGroup() {
+    return mTableColorRuleGroup;
+  }
+
+  /**
+   * @return the table's status column color rules, or null if it has none.
+   */
+  public ColorRuleGroup getStatusColumnRuleGroup() {
+    return mStatusColumnRuleGroup;
+  }
+
+  /**
+   * @param elementKey
+   * @return the column's color rules, or null if it has none.
+   */
+  public ColorRuleGroup getColumnColorRuleGroup(String elementKey) {
+    return mColumnColorRuleGroups.get(elementKey);
+  }
+
+  /**
+   * @return element key -> color rules, for only those columns that have
+   *         rules.
+   */
+  public Map<String, ColorRuleGroup> getColumnColorRuleGroups() {
+    return mColumnColorRuleGroups;
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.data.TableViewType;
+import org.opendatakit.data.utilities.ColumnUtil;
+import org.opendatakit.data.utilities.TableUtil;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.utilities.ODKFileUtils;
+
+/**
+ * Loads the {@link TablePresentation} of a table.
+ * <p>
+ * Each load reads all of the table's key value store entries, and with them
+ * its revision, in one call. If the revision is that of the presentation last
+ * loaded, in memory or on disk, that is used. Only when the revision has
+ * changed are the individual settings read again through {@link TableUtil}
+ * and {@link ColumnUtil}, which apply the defaults and localization.
+ * <p>
+ * The color rule groups are not written to disk. They are loaded for only the
+ * columns that have color rule entries, and the entries read by the load say
+ * which those are.
+ * <p>
+ * Thread safe.
+ */
+public final class TablePresentationLoader {
+
+  private static final String TAG = TablePresentationLoader.class.getSimpleName();
+
+  private static final TablePresentationLoader sInstance = new TablePresentationLoader();
+
+  /** directory, within the application's cache directory, of the saved presentations */
+  private static final String CACHE_DIR_NAME = "presentation";
+
+  private static final String KEY_REV_ID = "revId";
+  private static final String KEY_LOCALE = "locale";
+  private static final String KEY_INDEX_COLUMN = "indexColumn";
+  private static final String KEY_COLUMN_ORDER = "columnOrder";
+  private static final String KEY_DISPLAY_NAMES = "displayNames";
+  private static final String KEY_DISPLAY_CHOICES = "displayChoices";
+  private static final String KEY_COLUMN_WIDTHS = "columnWidths";
+  private static final String KEY_FONT_SIZE = "fontSize";
+  private static final String KEY_DEFAULT_VIEW_TYPE = "defaultViewType";
+  private static final String KEY_LIST_VIEW_FILE_NAME = "listViewFileName";
+  private static final String KEY_MAP_LIST_VIEW_FILE_NAME = "mapListViewFileName";
+  private static final String KEY_DETAIL_VIEW_FILE_NAME = "detailViewFileName";
+
+  public static TablePresentationLoader get() {
+    return sInstance;
+  }
+
+  private static final class ColorRules {
+    ColorRuleGroup tableRules = null;
+    ColorRuleGroup statusRules = null;
+    final Map<String, ColorRuleGroup> columnRules = new HashMap<String, ColorRuleGroup>();
+  }
+
+  /** appName/tableId/locale -> presentation */
+  private final Map<String, TablePresentation> mLoaded = new HashMap<String, TablePresentation>();
+
+  private TablePresentationLoader() {
+  }
+
+  /**
+   * Get the presentation of a table as of the current revision of its key
+   * value store.
+   *
+   * @param appName
+   * @param db
+   * @param tableId
+   * @param orderedDefns
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  public TablePresentation load(String appName, DbHandle db, String tableId,
+      OrderedColumns orderedDefns) throws ServicesAvailabilityException {
+    UserDbInterface dbInterface = Tables.getInstance().getDatabase();
+    TableMetaDataEntries metadata = dbInterface.getTableMetadata(appName, db, tableId, null,
+        null, null, null);
+    String revId = metadata.getRevId();
+    // display names are localized, so are only valid for the locale they were loaded in
+    String locale = Locale.getDefault().toString();
+    String cacheKey = appName + File.separator + tableId + File.separator + locale;
+
+    if (revId != null) {
+      synchronized (this) {
+        TablePresentation loaded = mLoaded.get(cacheKey);
+        if (loaded != null && revId.equals(loaded.getRevId())) {
+          return loaded;
+        }
+      }
+    }
+
+    ColorRules colorRules = loadColorRules(appName, db, tableId, dbInterface.getAdminColumns(),
+        metadata.getEntries());
+
+    File cacheFile = getCacheFile(appName, tableId);
+    TablePresentation presentation = (revId == null) ? null :
+        readCacheFile(appName, cacheFile, revId, locale, colorRules);
+    if (presentation == null) {
+      presentation = loadSettings(appName, db, tableId, orderedDefns, revId, colorRules);
+      if (revId != null) {
+        writeCacheFile(appName, cacheFile, presentation, locale);
+      }
+    }
+
+    if (revId != null) {
+      synchronized (this) {
+        mLoaded.put(cacheKey, presentation);
+      }
+    }
+    return presentation;
+  }
+
+  private ColorRules loadColorRules(String appName, DbHandle db, String tableId,
+      String[] adminColumns, List<KeyValueStoreEntry> entries)
+      throws ServicesAvailabilityException {
+    boolean hasTableRules = false;
+    Set<String> columnsWithRules = new HashSet<String>();
+    for (KeyValueStoreEntry entry : entries) {
+      if (LocalKeyValueStoreConstants.TableColorRules.PARTITION.equals(entry.partition)) {
+        hasTableRules = true;
+      } else if (LocalKeyValueStoreConstants.ColumnColorRules.PARTITION.equals(entry.partition)
+          && entry.value != null) {
+        // the aspect of a column's rules is its element key
+        columnsWithRules.add(entry.aspect);
+      }
+    }
+
+    ColorRules colorRules = new ColorRules();
+    if (hasTableRules) {
+      colorRules.tableRules = nonEmpty(ColorRuleGroup.getTableColorRuleGroup(
+          Tables.getInstance(), appName, db, tableId, adminColumns));
+    }
+    // always read: the default sync state rules apply when none are stored.
+    colorRules.statusRules = nonEmpty(ColorRuleGroup.getStatusColumnRuleGroup(
+        Tables.getInstance(), appName, db, tableId, adminColumns));
+    for (String elementKey : columnsWithRules) {
+      ColorRuleGroup crg = nonEmpty(ColorRuleGroup.getColumnColorRuleGroup(Tables.getInstance(),
+          appName, db, tableId, elementKey, adminColumns));
+      if (crg != null) {
+        colorRules.columnRules.put(elementKey, crg);
+      }
+    }
+    return colorRules;
+  }
+
+  private static ColorRuleGroup nonEmpty(ColorRuleGroup crg) {
+    return (crg == null || crg.getColorRules().isEmpty()) ? null : crg;
+  }
+
+  /**
+   * Read each of the settings individually.
+   */
+  private TablePresentation loadSettings(String appName, DbHandle db, String tableId,
+      OrderedColumns orderedDefns, String revId, ColorRules colorRules)
+      throws ServicesAvailabilityException {
+    Tables context = Tables.getInstance();
+    String indexColumn = TableUtil.get().getIndexColumn(context, appName, db, tableId);
+    ArrayList<String> columnOrder = TableUtil.get().getColumnOrder(context, appName, db,
+        tableId, orderedDefns);
+
+    Map<String, String> displayNames = new HashMap<String, String>();
+    Map<String, ArrayList<Map<String, Object>>> displayChoices =
+        new HashMap<String, ArrayList<Map<String, Object>>>();
+    for (String elementKey : columnOrder) {
+      displayNames.put(elementKey, ColumnUtil.get().getLocalizedDisplayName(context, appName,
+          db, tableId, elementKey));
+      displayChoices.put(elementKey, ColumnUtil.get().getDisplayChoicesList(context, appName,
+          db, tableId, elementKey));
+    }
+    Map<String, Integer> columnWidths = ColumnUtil.get().getColumnWidths(context, appName, db,
+        tableId, orderedDefns);
+    int fontSize = TableUtil.get().getSpreadsheetViewFontSize(context, appName, db, tableId);
+
+    TableViewType defaultViewType = TableUtil.get().getDefaultViewType(context, appName, db,
+        tableId);
+    String listViewFileName = TableUtil.get().getListViewFilename(context, appName, db, tableId);
+    String mapListViewFileName = TableUtil.get().getMapListViewFilename(context, appName, db,
+        tableId);
+    String detailViewFileName = TableUtil.get().getDetailViewFilename(context, appName, db,
+        tableId);
+
+    return new TablePresentation(revId, indexColumn, columnOrder, displayNames, displayChoices,
+        columnWidths, fontSize, defaultViewType, listViewFileName, mapListViewFileName,
+        detailViewFileName, colorRules.tableRules, colorRules.statusRules,
+        colorRules.columnRules);
+  }
+
+  private static File getCacheFile(String appName, String tableId) {
+    File dir = new File(new File(Tables.getInstance().getCacheDir(), CACHE_DIR_NAME), appName);
+    return new File(dir, tableId + ".json");
+  }
+
+  /**
+   * @return the saved presentation, or null if there is none for this
+   *         revision and locale.
+   */
+  @SuppressWarnings("unchecked")
+  private TablePresentation readCacheFile(String appName, File cacheFile, String revId,
+      String locale, ColorRules colorRules) {
+    if (!cacheFile.exists()) {
+      return null;
+    }
+    try {
+      Map<String, Object> saved = ODKFileUtils.mapper.readValue(cacheFile, Map.class);
+      if (!revId.equals(saved.get(KEY_REV_ID)) || !locale.equals(saved.get(KEY_LOCALE))) {
+        return null;
+      }
+      String defaultViewType = (String) saved.get(KEY_DEFAULT_VIEW_TYPE);
+      return new TablePresentation(revId,
+          (String) saved.get(KEY_INDEX_COLUMN),
+          (List<String>) saved.get(KEY_COLUMN_ORDER),
+          (Map<String, String>) saved.get(KEY_DISPLAY_NAMES),
+          (Map<String, ArrayList<Map<String, Object>>>) saved.get(KEY_DISPLAY_CHOICES),
+          (Map<String, Integer>) saved.get(KEY_COLUMN_WIDTHS),
+          ((Number) saved.get(KEY_FONT_SIZE)).intValue(),
+          (defaultViewType == null) ? null : TableViewType.valueOf(defaultViewType),
+          (String) saved.get(KEY_LIST_VIEW_FILE_NAME),
+          (String) saved.get(KEY_MAP_LIST_VIEW_FILE_NAME),
+          (String) saved.get(KEY_DETAIL_VIEW_FILE_NAME),
+          colorRules.tableRules, colorRules.statusRules, colorRules.columnRules);
+    } catch (Exception e) {
+      // unreadable or from an older format; it will be rewritten
+      WebLogger.getLogger(appName).w(TAG, "unable to read " + cacheFile.getName() + ": " +
+          e.toString());
+      return null;
+    }
+  }
+
+  private synchronized void writeCacheFile(String appName, File cacheFile, TablePresentation presentation,
+      String locale) {
+    Map<String, ArrayList<Map<String, Object>>> displayChoices =
+        new HashMap<String, ArrayList<Map<String, Object>>>();
+    Map<String, String> displayNames = new HashMap<String, String>();
+    for (String elementKey : presentation.getColumnOrder()) {
+      displayNames.put(elementKey, presentation.getLocalizedDisplayName(elementKey));
+      displayChoices.put(elementKey, presentation.getDisplayChoicesList(elementKey));
+    }
+    Map<String, Object> saved = new HashMap<String, Object>();
+    saved.put(KEY_REV_ID, presentation.getRevId());
+    saved.put(KEY_LOCALE, locale);
+    saved.put(KEY_INDEX_COLUMN, presentation.getIndexColumn());
+    saved.put(KEY_COLUMN_ORDER, presentation.getColumnOrder());
+    saved.put(KEY_DISPLAY_NAMES, displayNames);
+    saved.put(KEY_DISPLAY_CHOICES, displayChoices);
+    saved.put(KEY_COLUMN_WIDTHS, presentation.getColumnWidths());
+    saved.put(KEY_FONT_SIZE, presentation.getSpreadsheetViewFontSize());
+    saved.put(KEY_DEFAULT_VIEW_TYPE, (presentation.getDefaultViewType() == null) ? null :
+        presentation.getDefaultViewType().name());
+    saved.put(KEY_LIST_VIEW_FILE_NAME, presentation.getListViewFileName());
+    saved.put(KEY_MAP_LIST_VIEW_FILE_NAME, presentation.getMapListViewFileName());
+    saved.put(KEY_DETAIL_VIEW_FILE_NAME, presentation.getDetailViewFileName());
+
+    File dir = cacheFile.getParentFile();
+    File tempFile = new File(dir, cacheFile.getName() + ".tmp");
+    try {
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new IOException("unable to create " + dir.getAbsolutePath());
+      }
+      // write and rename, so that a reader never sees a partial file
+      ODKFileUtils.mapper.writeValue(tempFile, saved);
+      if (!tempFile.renameTo(cacheFile)) {
+        throw new IOException("unable to rename " + tempFile.getName());
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "unable to save the presentation of the table");
+      tempFile.delete();
+    }
+  }
+}
@@ -18,6 +18,7 @@ package org.opendatakit.tables.fragments;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.data.PagedUserTable;
 
 import android.app.Activity;
 import android.app.Fragment;
@@ -67,6 +68,15 @@ public abstract class AbsTableDisplayFragment extends AbsBaseFragment {
     return result;
   }
   
+  /**
+   * Get the {@link PagedUserTable} being held by the {@link TableDisplayActivity}.
+   * @return
+   */
+  public PagedUserTable getPagedUserTable() {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    return activity.getPagedUserTable();
+  }
+
   /** Return the type of this fragment. */
   public abstract TableDisplayActivity.ViewFragmentType getFragmentType();
 
@@ -16,16 +16,20 @@
 package org.opendatakit.tables.fragments;
 
 import android.app.Fragment;
+import android.graphics.Color;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.WebView;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
+import org.opendatakit.tables.activities.AbsBaseWebActivity;
 import org.opendatakit.tables.application.Tables;
 import org.opendatakit.tables.views.webkits.OdkTablesWebView;
+import org.opendatakit.tables.views.webkits.WebViewPool;
 
 /**
  * Base class for {@link Fragment}s that display information about a table
@@ -38,6 +42,13 @@ public abstract class AbsWebTableFragment extends AbsTableDisplayFragment
 
   private static final String TAG = AbsWebTableFragment.class.getSimpleName();
 
+  /**
+   * Whether the page was loaded when the view was created, so that the
+   * database becoming available as the fragment resumes does not load it a
+   * second time.
+   */
+  private boolean mPageLoadedWithView = false;
+
   @Override
   public View onCreateView(
       LayoutInflater inflater,
@@ -46,13 +57,51 @@ public abstract class AbsWebTableFragment extends AbsTableDisplayFragment
     WebLogger.getLogger(getAppName()).d(TAG, "[onCreateView]");
     
     ViewGroup v = (ViewGroup) inflater.inflate(
-        R.layout.web_view_container,
+        R.layout.pooled_web_view_container,
         container,
         false);
 
+    // borrow an already-constructed web view rather than inflating a new one
+    OdkTablesWebView webView = getWebViewPool().acquire();
+    webView.setId(R.id.webkit);
+    webView.setBackgroundColor(Color.BLACK);
+    webView.setVisibility(View.GONE);
+    v.addView(webView, 0, new LinearLayout.LayoutParams(
+        LinearLayout.LayoutParams.MATCH_PARENT,
+        LinearLayout.LayoutParams.MATCH_PARENT));
+
+    // a pooled web view has no page loaded
+    mPageLoadedWithView = ( Tables.getInstance().getDatabase() != null );
+    if ( mPageLoadedWithView ) {
+      webView.reloadPage();
+    } else {
+      webView.setForceLoadDuringReload();
+    }
+
     return v;
   }
 
+  @Override
+  public void onPause() {
+    // a later database connection may follow changes made elsewhere
+    mPageLoadedWithView = false;
+    super.onPause();
+  }
+
+  @Override
+  public void onDestroyView() {
+    if ( getView() != null ) {
+      getWebViewPool().release(getWebKit());
+      // nothing takes the responses until another web view is attached
+      ((AbsBaseWebActivity) getActivity()).getResponseChannel().releaseProducers();
+    }
+    super.onDestroyView();
+  }
+
+  private WebViewPool getWebViewPool() {
+    return ((AbsBaseWebActivity) getActivity()).getWebViewPool();
+  }
+
   @Override
   public OdkTablesWebView getWebKit() {
     return (OdkTablesWebView) getView().findViewById(R.id.webkit);
@@ -81,12 +130,17 @@ public abstract class AbsWebTableFragment extends AbsTableDisplayFragment
 
     if ( getView() != null ) {
       setWebKitVisibility();
-      getWebKit().reloadPage();
+      if ( mPageLoadedWithView ) {
+        mPageLoadedWithView = false;
+      } else {
+        getWebKit().reloadPage();
+      }
     }
   }
 
   @Override
   public void databaseUnavailable() {
+    mPageLoadedWithView = false;
     if ( getView() != null ) {
       setWebKitVisibility();
       getWebKit().setForceLoadDuringReload();
@@ -185,6 +185,10 @@ public class InitializationFragment extends Fragment implements InitializationLi
     }
 
     Tables.getInstance().clearInitializationTask();
+    // initialization may have created or changed tables
+    String appName = ((IAppAwareActivity) getActivity()).getAppName();
+    Tables.getInstance().getSchemaCache().invalidateApp(appName);
+    Tables.getInstance().getQueryResultCache().invalidateApp(appName);
 
     if (overallSuccess && result.isEmpty()) {
       // do not require an OK if everything went well
@@ -15,10 +15,15 @@
  */
 package org.opendatakit.tables.fragments;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
 
+import android.app.Activity;
 import android.os.Bundle;
+import org.opendatakit.tables.activities.AbsBaseWebActivity;
+import org.opendatakit.tables.views.webkits.ExtendedTableControl;
 import org.opendatakit.tables.views.webkits.OdkTablesWebView;
 
 /**
@@ -28,7 +33,8 @@ import org.opendatakit.tables.views.webkits.OdkTablesWebView;
  * @author sudar.sam@gmail.com
  *
  */
-public class MapListViewFragment extends ListViewFragment implements IMapListViewCallbacks {
+public class MapListViewFragment extends ListViewFragment implements IMapListViewCallbacks,
+    ExtendedTableControl {
 
   private static final String TAG = MapListViewFragment.class.getSimpleName();
 
@@ -43,6 +49,21 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
   protected int mSelectedItemIndex;
   public static final int INVALID_INDEX = -1;
 
+  /**
+   * The dispatchString and action of the queued action outcome that tells the
+   * page the selection has changed. Its jsonValue is
+   * { status: -1, result: { mapIndex: index } }.
+   */
+  public static final String SELECTION_ACTION = "org.opendatakit.tables.selectItem";
+  private static final String KEY_MAP_INDEX = "mapIndex";
+
+  /**
+   * Whether the loaded page has said it handles selection changes itself.
+   * If not, the page is reloaded when the selection changes. Set from the
+   * javascript bridge thread.
+   */
+  private volatile boolean mPageHandlesSelection = false;
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -66,10 +87,59 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
     WebLogger.getLogger(getAppName()).d(TAG, "[resetView]");
 
     OdkTablesWebView currentView = (OdkTablesWebView) this.getView().findViewById(R.id.webkit);
+    // the new page must say again if it handles selection changes.
+    mPageHandlesSelection = false;
     // Just reload the page.
     currentView.reloadPage();
   }
 
+  /**
+   * Set whether the loaded page handles selection changes, which are then
+   * queued to it as action outcomes (see {@link #SELECTION_ACTION}) rather
+   * than by reloading it.
+   *
+   * @param handlesSelection
+   */
+  public void setPageHandlesSelection(boolean handlesSelection) {
+    this.mPageHandlesSelection = handlesSelection;
+  }
+
+  /**
+   * Tell the loaded page that the selected item has changed, without
+   * reloading it.
+   *
+   * @param index
+   *          the selected index, or {@link #INVALID_INDEX} if none.
+   * @return false if the page does not handle selection changes, or could not
+   *         be told.
+   */
+  @Override
+  public boolean selectItem(int index) {
+    if (!mPageHandlesSelection || getView() == null
+        || !(getActivity() instanceof AbsBaseWebActivity)) {
+      return false;
+    }
+    String outcome;
+    try {
+      JSONObject result = new JSONObject();
+      result.put(KEY_MAP_INDEX, index);
+      JSONObject jsonValue = new JSONObject();
+      jsonValue.put("status", Activity.RESULT_OK);
+      jsonValue.put("result", result);
+      JSONObject action = new JSONObject();
+      action.put("dispatchString", SELECTION_ACTION);
+      action.put("action", SELECTION_ACTION);
+      action.put("jsonValue", jsonValue);
+      outcome = action.toString();
+    } catch (JSONException e) {
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      return false;
+    }
+    ((AbsBaseWebActivity) getActivity()).queueActionOutcome(outcome);
+    getWebKit().signalQueuedActionAvailable();
+    return true;
+  }
+
   /**
    *
    * @return true if the user has selected a row that should be displayed as
@@ -94,7 +164,9 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
     this.mSelectedItemIndex = index;
     // TODO: Make map index work with async API
     //this.mTableDataReference.setSelectedMapIndex(index);
-    this.resetView();
+    if (!selectItem(index)) {
+      this.resetView();
+    }
   }
 
   /**
@@ -106,7 +178,9 @@ public class MapListViewFragment extends ListViewFragment implements IMapListVie
     this.mSelectedItemIndex = INVALID_INDEX;
     // TODO: Make map index work with async API
     //this.mTableDataReference.setNoItemSelected();
-    this.resetView();
+    if (!selectItem(INVALID_INDEX)) {
+      this.resetView();
+    }
   }
 
   public int getIndexOfSelectedItem() {
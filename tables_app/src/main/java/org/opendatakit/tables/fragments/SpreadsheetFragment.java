@@ -24,10 +24,15 @@ import java.util.TimeZone;
 import org.opendatakit.data.utilities.ColumnUtil;
 import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
 import org.opendatakit.data.JoinColumn;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.utilities.*;
 import org.opendatakit.database.service.DbHandle;
@@ -35,6 +40,9 @@ import org.opendatakit.tables.R;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity.ViewFragmentType;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.ColumnarRowStore;
+import org.opendatakit.tables.data.GroupedRowIndex;
+import org.opendatakit.tables.data.PagedUserTable;
 import org.opendatakit.tables.utils.ActivityUtil;
 import org.opendatakit.tables.utils.Constants;
 import org.opendatakit.tables.utils.Constants.IntentKeys;
@@ -43,6 +51,8 @@ import org.opendatakit.tables.utils.ParseUtil;
 import org.opendatakit.tables.utils.SQLQueryStruct;
 import org.opendatakit.tables.views.CellInfo;
 import org.opendatakit.tables.views.CellValueView;
+import org.opendatakit.tables.views.SpreadsheetDrawStats;
+import org.opendatakit.tables.views.SpreadsheetGridView;
 import org.opendatakit.tables.views.SpreadsheetUserTable;
 import org.opendatakit.tables.views.SpreadsheetUserTable.SpreadsheetCell;
 import org.opendatakit.tables.views.SpreadsheetView;
@@ -52,12 +62,14 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.ContextMenu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -90,7 +102,33 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
   private static final int MENU_ITEM_ID_OPEN_JOIN_TABLE = 10;
   private static final int MENU_ITEM_ID_EDIT_COLUMN_COLOR_RULES = 11;
 
+  /**
+   * Boolean property that, when true, displays the spreadsheet with a
+   * {@link SpreadsheetGridView} rather than a {@link SpreadsheetView}.
+   */
+  public static final String KEY_USE_GRID_SPREADSHEET = "tables.use_grid_spreadsheet";
+
+  /**
+   * Boolean property that, when true, draws the {@link SpreadsheetDrawStats}
+   * over the spreadsheet.
+   */
+  public static final String KEY_SHOW_DRAW_STATS = "tables.show_draw_stats";
+
   private SpreadsheetUserTable spreadsheetTable;
+  private SpreadsheetView.Display spreadsheetView;
+  /** Holds the spreadsheet view so that it can be rebuilt in place. */
+  private FrameLayout spreadsheetContainer;
+  /**
+   * The ungrouped rows of a grouped query, once a group has been drilled
+   * into. While set, groups are expanded and collapsed within this fragment.
+   */
+  private GroupedRowIndex groupedRowIndex;
+
+  /** Indexing the rows of the groups, if under way. */
+  private BuildGroupedRowIndexTask groupedRowIndexTask;
+
+  /** Reading the sort values of the rows that are not held, if under way. */
+  private SortRowsTask sortRowsTask;
 
   private CellInfo mLastDataCellMenued;
   private CellInfo mLastHeaderCellMenued;
@@ -105,12 +143,22 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
       Bundle savedInstanceState) {
     try {
       spreadsheetTable = new SpreadsheetUserTable(this);
+      spreadsheetView = null;
+      spreadsheetContainer = null;
+      if (groupedRowIndex != null) {
+        spreadsheetTable.setGroupedRowIndex(groupedRowIndex);
+      }
       if (!spreadsheetTable.hasData()) {
         TextView textView = new TextView(getActivity());
         textView.setText(getString(R.string.no_data));
         return textView;
       } else {
-        return this.buildSpreadsheetView();
+        View view = this.buildSpreadsheetView();
+        spreadsheetView = (SpreadsheetView.Display) view;
+        spreadsheetContainer = new FrameLayout(getActivity());
+        spreadsheetContainer.addView(view);
+        startBuildingGroupedRowIndex();
+        return spreadsheetContainer;
       }
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(getAppName()).printStackTrace(e);
@@ -122,6 +170,13 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
     }
   }
   
+  @Override
+  public void onDestroyView() {
+    cancelSortRowsTask();
+    cancelGroupedRowIndexTask();
+    super.onDestroyView();
+  }
+
   @Override
   public void databaseAvailable() {
     if ( Tables.getInstance().getDatabase() != null && getView() != null ) {
@@ -133,13 +188,24 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
   }
 
   /**
-   * Build a {@link SpreadsheetView} view to display.
+   * Build the view to display. This is a {@link SpreadsheetView} unless the
+   * {@link #KEY_USE_GRID_SPREADSHEET} property is set, in which case it is a
+   * {@link SpreadsheetGridView}. Either implements
+   * {@link SpreadsheetView.Display}.
    *
    * @return
    * @throws ServicesAvailabilityException
    */
-  SpreadsheetView buildSpreadsheetView() throws ServicesAvailabilityException {
-    return new SpreadsheetView((TableDisplayActivity) this.getActivity(), this, spreadsheetTable);
+  View buildSpreadsheetView() throws ServicesAvailabilityException {
+    TableDisplayActivity activity = (TableDisplayActivity) this.getActivity();
+    PropertiesSingleton props = CommonToolProperties.get(activity, getAppName());
+    Boolean useGrid = props.getBooleanProperty(KEY_USE_GRID_SPREADSHEET);
+    Boolean showDrawStats = props.getBooleanProperty(KEY_SHOW_DRAW_STATS);
+    SpreadsheetDrawStats.get().setOverlayEnabled(showDrawStats != null && showDrawStats);
+    if (useGrid != null && useGrid) {
+      return new SpreadsheetGridView(activity, this, spreadsheetTable);
+    }
+    return new SpreadsheetView(activity, this, spreadsheetTable);
   }
 
   void addGroupByColumn(ColumnDefinition cd) {
@@ -232,6 +298,132 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
     this.startActivityForResult(intent, Constants.RequestCodes.LAUNCH_VIEW);
   }
 
+  /**
+   * Start indexing the groups of the grouped query being displayed in the
+   * background, unless that has been done or is under way. Until it is done,
+   * groups are opened in a new activity rather than expanded in place.
+   * Nothing is done if the groups cannot be drilled into in place, as there
+   * is a having clause, which can only be applied by the database.
+   */
+  private void startBuildingGroupedRowIndex() {
+    if (groupedRowIndex != null || groupedRowIndexTask != null) {
+      return;
+    }
+    SQLQueryStruct queryStruct = IntentUtil.getSQLQueryStructFromBundle(this.getActivity()
+        .getIntent().getExtras());
+    if (queryStruct.groupBy == null || queryStruct.groupBy.length == 0
+        || (queryStruct.having != null && queryStruct.having.length() != 0)) {
+      return;
+    }
+    groupedRowIndexTask = new BuildGroupedRowIndexTask(getAppName(), getTableId(),
+        getColumnDefinitions(), queryStruct);
+    groupedRowIndexTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  private void cancelGroupedRowIndexTask() {
+    if (groupedRowIndexTask != null) {
+      groupedRowIndexTask.cancel(false);
+      groupedRowIndexTask = null;
+    }
+  }
+
+  /**
+   * Reads the rows of the grouped query without its group by, off of the UI
+   * thread, and indexes them by group.
+   */
+  private class BuildGroupedRowIndexTask extends AsyncTask<Void, Void, GroupedRowIndex> {
+    private final String appName;
+    private final String tableId;
+    private final OrderedColumns orderedDefns;
+    private final SQLQueryStruct queryStruct;
+
+    BuildGroupedRowIndexTask(String appName, String tableId, OrderedColumns orderedDefns,
+        SQLQueryStruct queryStruct) {
+      this.appName = appName;
+      this.tableId = tableId;
+      this.orderedDefns = orderedDefns;
+      this.queryStruct = queryStruct;
+    }
+
+    @Override
+    protected GroupedRowIndex doInBackground(Void... params) {
+      String[] emptyArray = {};
+      DbHandle db = null;
+      try {
+        db = Tables.getInstance().getDatabase().openDatabase(appName);
+        UserTable table = Tables.getInstance().getQueryResultCache().query(appName, db,
+            tableId, orderedDefns, queryStruct.whereClause,
+            (queryStruct.selectionArgs == null) ? emptyArray : queryStruct.selectionArgs,
+            emptyArray, null,
+            (queryStruct.orderByElementKey == null) ? emptyArray :
+                new String[] { queryStruct.orderByElementKey },
+            (queryStruct.orderByDirection == null) ? emptyArray :
+                new String[] { queryStruct.orderByDirection }, null, null);
+        ColumnarRowStore rows = new ColumnarRowStore(appName, tableId, orderedDefns, table);
+        return new GroupedRowIndex(rows, queryStruct.groupBy);
+      } catch (ServicesAvailabilityException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        WebLogger.getLogger(appName).e(TAG, "Unable to read the rows of the groups");
+        return null;
+      } finally {
+        if (db != null) {
+          try {
+            Tables.getInstance().getDatabase().closeDatabase(appName, db);
+          } catch (ServicesAvailabilityException e) {
+            WebLogger.getLogger(appName).printStackTrace(e);
+          }
+        }
+      }
+    }
+
+    @Override
+    protected void onPostExecute(GroupedRowIndex index) {
+      if (isCancelled() || groupedRowIndexTask != this) {
+        return;
+      }
+      groupedRowIndexTask = null;
+      groupedRowIndex = index;
+    }
+  }
+
+  /**
+   * Expand the group of the given cell in place, or collapse it if it is
+   * already expanded. Falls back to opening the group in a new activity if it
+   * cannot be drilled into in place, or its rows have not been indexed yet.
+   *
+   * @param cell
+   */
+  private void toggleGroup(SpreadsheetCell cell) {
+    GroupedRowIndex index = groupedRowIndex;
+    int group = (index == null || cell.row == null) ? -1 : index.getGroupOfRow(cell.row);
+    if (group == -1 || spreadsheetContainer == null) {
+      openCollectionView(cell);
+      return;
+    }
+    index.setExpanded(group, !index.isExpanded(group));
+    spreadsheetTable.setGroupedRowIndex(index);
+    rebuildSpreadsheetView();
+  }
+
+  /**
+   * Replace the spreadsheet view with a new one over the same
+   * {@link SpreadsheetUserTable}, without reloading the data. Used when the
+   * number of rows shown has changed.
+   */
+  private void rebuildSpreadsheetView() {
+    try {
+      View view = this.buildSpreadsheetView();
+      spreadsheetContainer.removeAllViews();
+      spreadsheetContainer.addView(view);
+      spreadsheetView = (SpreadsheetView.Display) view;
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      WebLogger.getLogger(getAppName()).e(TAG,
+          "Error while constructing spreadsheet view: " + e.toString());
+      Toast.makeText(getActivity(), R.string.error_accessing_database, Toast.LENGTH_LONG).show();
+    }
+  }
+
   void openCellEditDialog(SpreadsheetCell cell) {
     CellEditDialog dialog = new CellEditDialog(cell);
     dialog.show();
@@ -242,6 +434,115 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
     activity.refreshDataAndDisplayFragment();
   }
 
+  /**
+   * Update the display after the sort column has changed. The rows are
+   * re-ordered in memory: at once if they are all held, else once the sort
+   * values of the others have been read in the background. The whole table
+   * is reloaded only if the rows cannot be re-ordered in memory.
+   *
+   * @param cd
+   *          the new sort column, or null if there is none.
+   */
+  private void resort(ColumnDefinition cd) {
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    // kept across reloads of the table
+    activity.setInMemorySortColumn(cd);
+    cancelSortRowsTask();
+    if (spreadsheetView == null || !spreadsheetTable.canSortInMemory()) {
+      init();
+      return;
+    }
+    if (spreadsheetTable.sortInMemory(cd)) {
+      spreadsheetView.invalidateContent();
+      return;
+    }
+    sortRowsTask = new SortRowsTask(spreadsheetTable, cd);
+    sortRowsTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  private void cancelSortRowsTask() {
+    if (sortRowsTask != null) {
+      sortRowsTask.cancel(false);
+      sortRowsTask = null;
+    }
+  }
+
+  /**
+   * Reads the sort values of every row of the spreadsheet off of the UI
+   * thread, and then re-orders the rows by them.
+   */
+  private class SortRowsTask extends AsyncTask<Void, Void, PagedUserTable.SortKeys> {
+    private final SpreadsheetUserTable table;
+    private final ColumnDefinition column;
+
+    SortRowsTask(SpreadsheetUserTable table, ColumnDefinition column) {
+      this.table = table;
+      this.column = column;
+    }
+
+    @Override
+    protected PagedUserTable.SortKeys doInBackground(Void... params) {
+      return table.readSortKeys(column);
+    }
+
+    @Override
+    protected void onPostExecute(PagedUserTable.SortKeys sortKeys) {
+      if (isCancelled() || sortRowsTask != this) {
+        return;
+      }
+      sortRowsTask = null;
+      if (table != spreadsheetTable || spreadsheetView == null) {
+        // the spreadsheet was rebuilt over the reloaded table in the meantime
+        return;
+      }
+      if (sortKeys == null || !table.applySort(sortKeys)) {
+        init();
+        return;
+      }
+      spreadsheetView.invalidateContent();
+    }
+  }
+
+  /**
+   * Redraw rows whose data has been re-read in place, recomputing only their
+   * display text and colors.
+   *
+   * @param rowIndexes
+   * @return false if there is no spreadsheet showing the rows (e.g. it is
+   *         grouped), in which case it needs to be rebuilt.
+   */
+  public boolean refreshChangedRows(int[] rowIndexes) {
+    if (spreadsheetView == null || spreadsheetTable == null || groupedRowIndex != null) {
+      return false;
+    }
+    for (int rowIndex : rowIndexes) {
+      spreadsheetTable.invalidateRow(rowIndex);
+      spreadsheetView.invalidateRow(rowIndex);
+    }
+    return true;
+  }
+
+  /**
+   * Update the display after a single cell has been edited. Only the edited
+   * row is re-read and redrawn, unless the edit could have changed which rows
+   * are shown or their order, in which case the whole table is reloaded.
+   *
+   * @param cell
+   *          the cell that was edited.
+   */
+  private void refreshEditedRow(SpreadsheetCell cell) {
+    String rowId = cell.row.getDataByKey(DataTableColumns.ID);
+    if (spreadsheetView == null
+        || !spreadsheetTable.patchRow(cell.rowNum, rowId, cell.elementKey)) {
+      init();
+      return;
+    }
+    // anything else built from the full table is now stale.
+    TableDisplayActivity activity = (TableDisplayActivity) getActivity();
+    activity.invalidateUserTable();
+    spreadsheetView.invalidateRow(cell.rowNum);
+  }
+
   private void deleteRow(String rowId) throws ServicesAvailabilityException,
       ActionNotAuthorizedException {
     DbHandle db = null;
@@ -250,6 +551,7 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
       Tables.getInstance().getDatabase().deleteRowWithId(getAppName(), db, getTableId(),
           getColumnDefinitions(), rowId);
     } finally {
+      Tables.getInstance().getQueryResultCache().invalidateTable(getAppName(), getTableId());
       if (db != null) {
         Tables.getInstance().getDatabase().closeDatabase(getAppName(), db);
       }
@@ -264,7 +566,7 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
     switch (item.getItemId()) {
     case MENU_ITEM_ID_HISTORY_IN:
       cell = spreadsheetTable.getSpreadsheetCell(activity, this.mLastDataCellMenued);
-      openCollectionView(cell);
+      toggleGroup(cell);
       return true;
 //    case MENU_ITEM_ID_EDIT_CELL:
 //      cell = spreadsheetTable.getSpreadsheetCell(activity, this.mLastDataCellMenued);
@@ -435,12 +737,14 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
         init();
       return true;
     case MENU_ITEM_ID_SET_COLUMN_AS_SORT:
-      setColumnAsSort(spreadsheetTable.getColumnByElementKey(this.mLastHeaderCellMenued.elementKey));
-      init();
+      ColumnDefinition sortColumn =
+          spreadsheetTable.getColumnByElementKey(this.mLastHeaderCellMenued.elementKey);
+      setColumnAsSort(sortColumn);
+      resort(sortColumn);
       return true;
     case MENU_ITEM_ID_UNSET_COLUMN_AS_SORT:
       setColumnAsSort(null);
-      init();
+      resort(null);
       return true;
     case MENU_ITEM_ID_SET_AS_INDEXED_COL:
       setColumnAsIndexedCol(spreadsheetTable
@@ -494,7 +798,16 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
 
     MenuItem mi;
     if (this.hasGroupBys()) {
-      mi = menu.add(ContextMenu.NONE, MENU_ITEM_ID_HISTORY_IN, ContextMenu.NONE, "View Collection");
+      // the size of the group is only known once its rows have been indexed
+      String title = getString(R.string.view_collection);
+      GroupedRowIndex index = groupedRowIndex;
+      Row row = (index == null) ? null : spreadsheetTable.getRowAtIndex(cellInfo.rowId);
+      int group = (row == null) ? -1 : index.getGroupOfRow(row);
+      if (group != -1) {
+        title = getString(index.isExpanded(group) ? R.string.collapse_collection_size :
+            R.string.view_collection_size, index.getGroupSize(group));
+      }
+      mi = menu.add(ContextMenu.NONE, MENU_ITEM_ID_HISTORY_IN, ContextMenu.NONE, title);
       mi.setIcon(R.drawable.ic_view_headline_black_24dp);
     }
     // TODO: display value and use edit icon...
@@ -652,12 +965,14 @@ public class SpreadsheetFragment extends AbsTableDisplayFragment implements
                   getTableId(),
                   getColumnDefinitions(), values, cell.row.getDataByKey(DataTableColumns.ID));
             } finally {
+              Tables.getInstance().getQueryResultCache().invalidateTable(getAppName(),
+                  getTableId());
               if (db != null) {
                 Tables.getInstance().getDatabase().closeDatabase(getAppName(), db);
               }
             }
   
-            init();
+            refreshEditedRow(cell);
           } catch (ActionNotAuthorizedException e) {
             WebLogger.getLogger(getAppName()).printStackTrace(e);
             WebLogger.getLogger(getAppName()).e(TAG, "Action not authorized while accessing "
@@ -103,7 +103,7 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
       try {
         db = Tables.getInstance().getDatabase().openDatabase(appName);
   
-        List<String> tableIds = Tables.getInstance().getDatabase().getAllTableIds(appName, db);
+        List<String> tableIds = Tables.getInstance().getSchemaCache().getTableIds(appName, db);
   
         for (String tableId : tableIds) {
           String localizedDisplayName = TableUtil.get().getLocalizedDisplayName(Tables.getInstance(), appName, db, tableId);
@@ -209,6 +209,9 @@ public class TableManagerFragment extends ListFragment implements DatabaseConnec
               db = Tables.getInstance().getDatabase().openDatabase(appName);
               Tables.getInstance().getDatabase().deleteTableAndAllData(appName, db, tableIdOfSelectedItem);
             } finally {
+              Tables.getInstance().getSchemaCache().invalidateTable(appName, tableIdOfSelectedItem);
+              Tables.getInstance().getQueryResultCache().invalidateTable(appName,
+                  tableIdOfSelectedItem);
               if (db != null) {
                 Tables.getInstance().getDatabase().closeDatabase(appName, db);
               }
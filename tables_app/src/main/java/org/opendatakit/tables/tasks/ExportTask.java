@@ -61,7 +61,7 @@ public class ExportTask
         try {
           String tableId = request.getTableId();
           db = Tables.getInstance().getDatabase().openDatabase(appName);
-          OrderedColumns orderedDefns = Tables.getInstance().getDatabase().getUserDefinedColumns(appName, db, tableId);          // export goes to output/csv directory...
+          OrderedColumns orderedDefns = Tables.getInstance().getSchemaCache().getColumnDefinitions(appName, db, tableId);          // export goes to output/csv directory...
           return cu.exportSeparable(this, db, tableId, orderedDefns, request.getFileQualifier());
         } catch (ServicesAvailabilityException e) {
           WebLogger.getLogger(appName).printStackTrace(e);
@@ -60,6 +60,10 @@ extends AsyncTask<ImportRequest, Integer, Boolean> implements ImportListener {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, "Unable to access database");
         return false;
+      } finally {
+        // the table may have been created, even if the import failed
+        Tables.getInstance().getSchemaCache().invalidateTable(appName, request.getTableId());
+        Tables.getInstance().getQueryResultCache().invalidateTable(appName, request.getTableId());
       }
 	}
 
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.tasks;
+
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.activities.TableDisplayActivity;
+import org.opendatakit.tables.activities.TableDisplayActivity.ViewFragmentType;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.data.PossibleTableViewTypes;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+import android.os.AsyncTask;
+
+/**
+ * Loads everything {@link TableDisplayActivity} needs before it can show a
+ * table, off of the UI thread.
+ * <p>
+ * The table's default views are read first. Then, if the view that will be
+ * shown is the spreadsheet, the first page and size of the query result are
+ * read; if it is the map, which needs the entire result, that is read
+ * instead. Nothing of the activity's is touched from the background thread;
+ * everything is handed to the activity on the UI thread, which displays the
+ * table. If the spreadsheet's rows had been re-ordered in memory before the
+ * table was reloaded, they are re-ordered again before they are handed over,
+ * and the task carries on reading the next few pages of the result so that
+ * they are already in memory when the user scrolls to them.
+ */
+public class LoadTableTask extends AsyncTask<Void, LoadTableTask.Result, Void> {
+
+  private static final String TAG = "LoadTableTask";
+
+  /** Number of pages after the first that are read ahead of time. */
+  private static final int PAGES_TO_READ_AHEAD = 2;
+
+  /**
+   * What has been loaded. Any of the fields may be null if the database could
+   * not be accessed; the paged table is also null if the spreadsheet is not
+   * the view that will be shown, and the user table if the map is not.
+   */
+  public static class Result {
+    public PossibleTableViewTypes possibleTableViewTypes;
+    public PagedUserTable pagedUserTable;
+    public UserTable userTable;
+  }
+
+  private final TableDisplayActivity activity;
+  private final String appName;
+  private final String tableId;
+  private final SQLQueryStruct sqlQueryStruct;
+  private final ViewFragmentType requestedType;
+  private final ColumnDefinition sortColumn;
+
+  /**
+   * @param activity
+   * @param appName
+   * @param tableId
+   * @param sqlQueryStruct
+   *          the query whose result is being displayed.
+   * @param requestedType
+   *          the view that was asked for, or null if the table's default view
+   *          should be used.
+   * @param sortColumn
+   *          the column to re-order the rows by in memory, or null.
+   */
+  public LoadTableTask(TableDisplayActivity activity, String appName, String tableId,
+      SQLQueryStruct sqlQueryStruct, ViewFragmentType requestedType,
+      ColumnDefinition sortColumn) {
+    this.activity = activity;
+    this.appName = appName;
+    this.tableId = tableId;
+    this.sqlQueryStruct = sqlQueryStruct;
+    this.requestedType = requestedType;
+    this.sortColumn = sortColumn;
+  }
+
+  @Override
+  protected Void doInBackground(Void... params) {
+    Result result = new Result();
+    OrderedColumns orderedDefns = null;
+    DbHandle db = null;
+    try {
+      db = Tables.getInstance().getDatabase().openDatabase(appName);
+      // the activity's copy is not to be touched from this thread
+      orderedDefns = Tables.getInstance().getSchemaCache().getColumnDefinitions(appName, db,
+          tableId);
+      result.possibleTableViewTypes = new PossibleTableViewTypes(appName, db, tableId,
+          orderedDefns);
+      if (getViewType(result) == ViewFragmentType.MAP && !isCancelled()) {
+        // the map needs every row; the activity keeps it once handed over.
+        result.userTable = queryUserTable(db, orderedDefns);
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Unable to access database");
+    } finally {
+      if (db != null) {
+        try {
+          Tables.getInstance().getDatabase().closeDatabase(appName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          WebLogger.getLogger(appName).e(TAG, "Unable to close database");
+        }
+      }
+    }
+
+    ViewFragmentType type = getViewType(result);
+    if (orderedDefns == null || type != ViewFragmentType.SPREADSHEET || isCancelled()) {
+      publishProgress(result);
+      return null;
+    }
+
+    // sizing the result set also reads and keeps the first page.
+    PagedUserTable pagedUserTable = new PagedUserTable(appName, tableId,
+        orderedDefns, sqlQueryStruct);
+    int numberOfRows = pagedUserTable.getNumberOfRows();
+    if (sortColumn != null && !isCancelled()) {
+      PagedUserTable.SortKeys sortKeys = pagedUserTable.readSortKeys(sortColumn);
+      if (sortKeys == null
+          || !pagedUserTable.applySort(sortKeys, pagedUserTable.isQueryAscending())) {
+        WebLogger.getLogger(appName).w(TAG, "Unable to re-order the rows by "
+            + sortColumn.getElementKey());
+      }
+    }
+    result.pagedUserTable = pagedUserTable;
+    publishProgress(result);
+
+    int lastPage = (numberOfRows - 1) / pagedUserTable.getPageSize();
+    for (int i = 1; i <= PAGES_TO_READ_AHEAD && i <= lastPage && !isCancelled(); ++i) {
+      pagedUserTable.prefetchPage(i);
+    }
+    return null;
+  }
+
+  /**
+   * @param result
+   * @return the view that will be shown.
+   */
+  private ViewFragmentType getViewType(Result result) {
+    ViewFragmentType type = requestedType;
+    if (type == null && result.possibleTableViewTypes != null) {
+      type = result.possibleTableViewTypes.getDefaultViewType();
+    }
+    if (type == null) {
+      // as the activity defaults to
+      type = ViewFragmentType.SPREADSHEET;
+    }
+    return type;
+  }
+
+  /**
+   * Read the entire result of the query, as the activity's
+   * {@link TableDisplayActivity#getUserTable()} would.
+   *
+   * @param db
+   * @param orderedDefns
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  private UserTable queryUserTable(DbHandle db, OrderedColumns orderedDefns)
+      throws ServicesAvailabilityException {
+    String[] emptyArray = {};
+    return Tables.getInstance().getQueryResultCache().query(appName, db, tableId, orderedDefns,
+        sqlQueryStruct.whereClause,
+        (sqlQueryStruct.selectionArgs == null) ? emptyArray : sqlQueryStruct.selectionArgs,
+        (sqlQueryStruct.groupBy == null) ? emptyArray : sqlQueryStruct.groupBy,
+        sqlQueryStruct.having,
+        (sqlQueryStruct.orderByElementKey == null) ? emptyArray
+            : new String[] { sqlQueryStruct.orderByElementKey },
+        (sqlQueryStruct.orderByDirection == null) ? emptyArray
+            : new String[] { sqlQueryStruct.orderByDirection }, null, null);
+  }
+
+  @Override
+  protected void onProgressUpdate(Result... results) {
+    if (!isCancelled()) {
+      activity.onTableLoaded(this, results[0]);
+    }
+  }
+}
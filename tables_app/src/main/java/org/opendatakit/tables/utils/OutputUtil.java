@@ -98,7 +98,7 @@ public class OutputUtil {
     DbHandle db = null;
     try {
       db = Tables.getInstance().getDatabase().openDatabase(appName);
-      List<String> tableIds = Tables.getInstance().getDatabase().getAllTableIds(appName, db);
+      List<String> tableIds = Tables.getInstance().getSchemaCache().getTableIds(appName, db);
       for (String tableId : tableIds) {
 
         String localizedDisplayName;
@@ -147,7 +147,7 @@ public class OutputUtil {
     String defaultListFileName = null;
     Map<String, String> keyToDisplayName = new HashMap<String, String>();
 
-    orderedDefns = Tables.getInstance().getDatabase().getUserDefinedColumns(appName, db, tableId);
+    orderedDefns = Tables.getInstance().getSchemaCache().getColumnDefinitions(appName, db, tableId);
     defaultDetailFileName = TableUtil.get().getDetailViewFilename(Tables.getInstance(), appName, db, tableId);
     defaultListFileName = TableUtil.get().getListViewFilename(Tables.getInstance(), appName, db, tableId);
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+/**
+ * Cache of the rendered display text of the spreadsheet's cells.
+ * <p>
+ * Formatting a cell (dates, numbers, choice labels) is far more expensive than
+ * drawing it, so each cell is formatted once, the first time it is drawn, and
+ * the resulting string reused on every later frame. Rows are grouped into
+ * fixed-size blocks; each block holds one array of strings per spreadsheet
+ * column. Only a bounded number of blocks are kept, with the least recently
+ * used block dropped to make room for a new one.
+ * <p>
+ * Lookups of cells that are already cached do not allocate. The blocks are
+ * only read and written on the UI thread: text formatted ahead of time on a
+ * background thread is handed over and stored with
+ * {@link #put(int, int, String)} there, never from the worker.
+ */
+class DisplayTextCache {
+
+  /**
+   * Supplies the text for a cell that is not yet cached.
+   */
+  interface Formatter {
+    /**
+     * @param rowIndex
+     * @param columnIndex
+     *          index of the column in the spreadsheet's column order.
+     * @return the display text, or null if the cell is not available yet
+     *         (e.g. its row has not been read), which is not cached.
+     */
+    String format(int rowIndex, int columnIndex);
+  }
+
+  private static final String EMPTY = "";
+
+  private final Formatter mFormatter;
+  private final int mNumberOfColumns;
+  private final int mBlockSize;
+  private final int mMaxBlocks;
+
+  /** blockIndex -> columnIndex -> offset within block -> text */
+  private String[][][] mBlocks;
+  /** blockIndex -> value of mClock when it was last read */
+  private long[] mLastUsed;
+  private int mResidentBlocks = 0;
+  private long mClock = 0;
+  /** number of lookups of cells that were not available */
+  private long mUnavailable = 0;
+
+  DisplayTextCache(Formatter formatter, int numberOfRows, int numberOfColumns, int blockSize,
+      int maxBlocks) {
+    this.mFormatter = formatter;
+    this.mNumberOfColumns = numberOfColumns;
+    this.mBlockSize = blockSize;
+    this.mMaxBlocks = maxBlocks;
+    int numberOfBlocks = (numberOfRows + blockSize - 1) / blockSize;
+    this.mBlocks = new String[numberOfBlocks][][];
+    this.mLastUsed = new long[numberOfBlocks];
+  }
+
+  /**
+   * Get the display text of the cell, formatting and caching it if it has not
+   * been seen before. A cell that is not available yet is shown as empty, and
+   * formatted again on the next lookup.
+   *
+   * @param rowIndex
+   * @param columnIndex
+   * @return the display text; never null.
+   */
+  String get(int rowIndex, int columnIndex) {
+    int blockIndex = rowIndex / mBlockSize;
+    if (blockIndex < 0 || blockIndex >= mBlocks.length || columnIndex < 0
+        || columnIndex >= mNumberOfColumns) {
+      SpreadsheetDrawStats.get().recordTextLookup(false);
+      String text = mFormatter.format(rowIndex, columnIndex);
+      if (text == null) {
+        ++mUnavailable;
+        return EMPTY;
+      }
+      return text;
+    }
+    String[] column = getColumn(blockIndex, columnIndex);
+    int offset = rowIndex % mBlockSize;
+    String text = column[offset];
+    SpreadsheetDrawStats.get().recordTextLookup(text != null);
+    if (text == null) {
+      text = mFormatter.format(rowIndex, columnIndex);
+      if (text == null) {
+        ++mUnavailable;
+        return EMPTY;
+      }
+      column[offset] = text;
+    }
+    return text;
+  }
+
+  /**
+   * @return the number of lookups so far of cells that were not available;
+   *         whoever renders cells can compare it before and after to tell
+   *         whether everything they drew was real.
+   */
+  long getUnavailableLookups() {
+    return mUnavailable;
+  }
+
+  /**
+   * Store text formatted elsewhere (e.g. on a background thread) for a cell
+   * that is not yet cached.
+   *
+   * @param rowIndex
+   * @param columnIndex
+   * @param text
+   *          the display text; ignored if null.
+   */
+  void put(int rowIndex, int columnIndex, String text) {
+    int blockIndex = rowIndex / mBlockSize;
+    if (text == null || blockIndex < 0 || blockIndex >= mBlocks.length || columnIndex < 0
+        || columnIndex >= mNumberOfColumns) {
+      return;
+    }
+    String[] column = getColumn(blockIndex, columnIndex);
+    int offset = rowIndex % mBlockSize;
+    if (column[offset] == null) {
+      column[offset] = text;
+    }
+  }
+
+  /**
+   * Discard the cached text of a single row, e.g. after it has been edited.
+   *
+   * @param rowIndex
+   */
+  void invalidateRow(int rowIndex) {
+    int blockIndex = rowIndex / mBlockSize;
+    if (blockIndex < 0 || blockIndex >= mBlocks.length) {
+      return;
+    }
+    String[][] block = mBlocks[blockIndex];
+    if (block == null) {
+      return;
+    }
+    int offset = rowIndex % mBlockSize;
+    for (String[] column : block) {
+      if (column != null) {
+        column[offset] = null;
+      }
+    }
+  }
+
+  /**
+   * Discard all cached text.
+   */
+  void invalidate() {
+    for (int i = 0; i < mBlocks.length; ++i) {
+      mBlocks[i] = null;
+      mLastUsed[i] = 0;
+    }
+    mResidentBlocks = 0;
+  }
+
+  private String[] getColumn(int blockIndex, int columnIndex) {
+    String[][] block = mBlocks[blockIndex];
+    if (block == null) {
+      block = allocateBlock(blockIndex);
+    }
+    mLastUsed[blockIndex] = ++mClock;
+
+    String[] column = block[columnIndex];
+    if (column == null) {
+      column = new String[mBlockSize];
+      block[columnIndex] = column;
+    }
+    return column;
+  }
+
+  private String[][] allocateBlock(int blockIndex) {
+    if (mResidentBlocks >= mMaxBlocks) {
+      // evict the least recently used block. This scan only happens on a
+      // miss, which is already paying to format the cell.
+      int eldest = -1;
+      for (int i = 0; i < mBlocks.length; ++i) {
+        if (mBlocks[i] != null && (eldest == -1 || mLastUsed[i] < mLastUsed[eldest])) {
+          eldest = i;
+        }
+      }
+      if (eldest != -1) {
+        mBlocks[eldest] = null;
+        --mResidentBlocks;
+      }
+    }
+    String[][] block = new String[mNumberOfColumns][];
+    mBlocks[blockIndex] = block;
+    ++mResidentBlocks;
+    return block;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+/**
+ * Reads pages of rows ahead of the spreadsheet's viewport while it scrolls.
+ * <p>
+ * The scroll position is reported as it changes. From it the direction and
+ * speed of the scroll are estimated, and the pages the viewport will reach
+ * within the next {@link #LOOKAHEAD_MILLIS} are read on a background thread;
+ * the faster the scroll, the more pages. The display text and colors of each
+ * page's rows are computed on the same thread, and only stored in the caches
+ * holding them, which are not thread safe, once the page is handed to the UI
+ * thread. Reversing direction cancels whatever is still outstanding.
+ * <p>
+ * Scroll positions are reported, and the prefetched pages published, on the
+ * UI thread, which owns all of this class's state and the table's caches. The
+ * background task only touches the {@link SpreadsheetUserTable.RowPreparer}
+ * it was given (which reads the thread safe paged table), never the
+ * {@link SpreadsheetUserTable}.
+ */
+class ScrollPrefetcher {
+
+  /** How far ahead, in time at the current speed, pages are read. */
+  static final long LOOKAHEAD_MILLIS = 1000;
+  static final int MIN_PAGES_AHEAD = 1;
+  static final int MAX_PAGES_AHEAD = 4;
+
+  /**
+   * A longer gap than this between scroll events is a new scroll, not a
+   * measure of speed.
+   */
+  private static final long MAX_SAMPLE_INTERVAL_MILLIS = 250;
+  private static final long DEFAULT_SAMPLE_INTERVAL_MILLIS = 16;
+
+  private final SpreadsheetUserTable mTable;
+  private final int mRowHeight;
+
+  private int mLastScrollY = 0;
+  private long mLastTime = 0;
+  /** 1 when scrolling down, -1 when up, 0 before any scroll */
+  private int mDirection = 0;
+
+  private PrefetchTask mTask = null;
+
+  /**
+   * @param table
+   * @param rowHeight
+   *          the vertical distance, in pixels, from one row to the next.
+   */
+  ScrollPrefetcher(SpreadsheetUserTable table, int rowHeight) {
+    this.mTable = table;
+    this.mRowHeight = rowHeight;
+  }
+
+  /**
+   * Note a new scroll position of the data.
+   *
+   * @param scrollY
+   * @param viewportHeight
+   *          height of the visible part of the data.
+   */
+  void onScrollChanged(int scrollY, int viewportHeight) {
+    long now = SystemClock.uptimeMillis();
+    int dy = scrollY - mLastScrollY;
+    long dt = now - mLastTime;
+    mLastScrollY = scrollY;
+    mLastTime = now;
+    if (dy == 0 || mRowHeight <= 0) {
+      return;
+    }
+    int direction = (dy > 0) ? 1 : -1;
+    if (direction != mDirection) {
+      cancel();
+      mDirection = direction;
+    }
+    if (dt <= 0 || dt > MAX_SAMPLE_INTERVAL_MILLIS) {
+      dt = DEFAULT_SAMPLE_INTERVAL_MILLIS;
+    }
+
+    int pageSize = mTable.getPageSize();
+    int numberOfRows = mTable.getNumberOfRows();
+    if (pageSize <= 0 || numberOfRows == 0) {
+      return;
+    }
+    float pixelsPerMilli = Math.abs(dy) / (float) dt;
+    int pagesAhead = (int) Math.ceil(pixelsPerMilli * LOOKAHEAD_MILLIS
+        / ((float) pageSize * mRowHeight));
+    pagesAhead = Math.max(MIN_PAGES_AHEAD, Math.min(MAX_PAGES_AHEAD, pagesAhead));
+
+    int lastPage = (numberOfRows - 1) / pageSize;
+    int edgeRow = (direction > 0) ? (scrollY + viewportHeight) / mRowHeight : scrollY / mRowHeight;
+    int edgePage = Math.max(0, Math.min(lastPage, edgeRow / pageSize));
+    int farPage = Math.max(0, Math.min(lastPage, edgePage + direction * pagesAhead));
+    if (farPage == edgePage) {
+      return;
+    }
+    if (mTask != null && mTask.getStatus() != AsyncTask.Status.FINISHED
+        && mTask.farPage == farPage) {
+      // already on its way
+      return;
+    }
+    cancel();
+    SpreadsheetUserTable.RowPreparer preparer = mTable.newRowPreparer();
+    if (preparer == null) {
+      return;
+    }
+    int[] pages = new int[Math.abs(farPage - edgePage)];
+    for (int i = 0; i < pages.length; ++i) {
+      pages[i] = edgePage + direction * (i + 1);
+    }
+    mTask = new PrefetchTask(preparer, pages, farPage, pageSize, numberOfRows);
+    mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  /**
+   * Stop reading ahead.
+   */
+  void cancel() {
+    if (mTask != null) {
+      mTask.cancel(false);
+      mTask = null;
+    }
+  }
+
+  private class PrefetchTask extends AsyncTask<Void, SpreadsheetUserTable.PreparedRows, Void> {
+    final SpreadsheetUserTable.RowPreparer preparer;
+    final int[] pages;
+    final int farPage;
+    final int pageSize;
+    final int numberOfRows;
+
+    PrefetchTask(SpreadsheetUserTable.RowPreparer preparer, int[] pages, int farPage,
+        int pageSize, int numberOfRows) {
+      this.preparer = preparer;
+      this.pages = pages;
+      this.farPage = farPage;
+      this.pageSize = pageSize;
+      this.numberOfRows = numberOfRows;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+      for (int page : pages) {
+        if (isCancelled()) {
+          break;
+        }
+        int first = page * pageSize;
+        int last = Math.min(numberOfRows, first + pageSize) - 1;
+        preparer.prefetch(first, last);
+        if (isCancelled()) {
+          break;
+        }
+        // one page per message, so that drawing can interleave.
+        publishProgress(preparer.prepare(first, last));
+      }
+      return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(SpreadsheetUserTable.PreparedRows... values) {
+      if (isCancelled()) {
+        return;
+      }
+      mTable.publishPreparedRows(values[0]);
+    }
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import org.opendatakit.data.ColorGuide;
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+
+/**
+ * Evaluates color rules for the rows of the spreadsheet as they come into
+ * view, and stores the resulting colors for all of the spreadsheet's panes.
+ * <p>
+ * Rules are only applied to the rows that are on screen plus a margin on
+ * either side. The resolved foreground and background of every cell of those
+ * rows are packed into primitive arrays, so looking up the color of a cell
+ * while drawing is an array read. Rows are grouped into fixed-size blocks;
+ * only a bounded number of blocks are kept, with the least recently used
+ * dropped to make room for a new one.
+ * <p>
+ * Each row has one color slot per display column, holding the column's rule
+ * if it matched and otherwise the table's row rule, plus a leading slot for
+ * the status column. A slot with no matching rule holds {@link #NO_COLOR}.
+ * <p>
+ * {@link #evaluateRows(Rules, int, Row[])} is static and works only on an
+ * immutable {@link Rules} and its arguments, so it may run on any thread. The
+ * stored colors, and every other method, belong to the UI thread; evaluated
+ * colors are stored there with {@link #publish(RowColors)}.
+ */
+class SpreadsheetColorEvaluator {
+
+  /**
+   * Marks a slot with no matching rule. Rule colors are parsed from
+   * #RRGGBB strings and so are always opaque; this is fully transparent.
+   */
+  static final int NO_COLOR = 0;
+
+  /** Slot of the status column in a row. */
+  static final int STATUS_SLOT = 0;
+
+  /** Rows evaluated beyond each end of the visible window. */
+  static final int DEFAULT_PREFETCH_MARGIN = 25;
+  /** Number of rows in each block. */
+  static final int DEFAULT_BLOCK_SIZE = 64;
+  /** Maximum number of blocks retained. */
+  static final int DEFAULT_MAX_BLOCKS = 32;
+
+  /**
+   * The rules being evaluated. Immutable, so a snapshot can be handed to a
+   * background thread.
+   */
+  static final class Rules {
+    final ColorRuleGroup rowColorRuleGroup;
+    final ColorRuleGroup statusColorRuleGroup;
+    /** display column index -> rule group of that column, or null */
+    final ColorRuleGroup[] columnColorRuleGroups;
+    final OrderedColumns orderedDefns;
+    /** number of color slots per row */
+    final int slots;
+
+    Rules(ColorRuleGroup rowColorRuleGroup, ColorRuleGroup statusColorRuleGroup,
+        ColorRuleGroup[] columnColorRuleGroups, OrderedColumns orderedDefns) {
+      this.rowColorRuleGroup = rowColorRuleGroup;
+      this.statusColorRuleGroup = statusColorRuleGroup;
+      this.columnColorRuleGroups = columnColorRuleGroups;
+      this.orderedDefns = orderedDefns;
+      this.slots = columnColorRuleGroups.length + 1;
+    }
+  }
+
+  /**
+   * The colors of a range of rows, evaluated on a background thread by
+   * {@link SpreadsheetColorEvaluator#evaluateRows(Rules, int, Row[])}. It is
+   * only read by the thread that evaluated it until it is handed to
+   * {@link SpreadsheetColorEvaluator#publish(RowColors)}.
+   */
+  static final class RowColors {
+    private final Rules rules;
+    private final int firstRow;
+    /** (offset from firstRow * slots + slot) -> color */
+    private final int[] foreground;
+    private final int[] background;
+    /** offset from firstRow -> whether the row existed and was evaluated */
+    private final boolean[] evaluated;
+
+    private RowColors(Rules rules, int firstRow, int numberOfRows) {
+      this.rules = rules;
+      this.firstRow = firstRow;
+      this.foreground = new int[numberOfRows * rules.slots];
+      this.background = new int[numberOfRows * rules.slots];
+      this.evaluated = new boolean[numberOfRows];
+    }
+  }
+
+  private final SpreadsheetUserTable mTable;
+  private final int mPrefetchMargin;
+  private final int mBlockSize;
+  private final int mMaxBlocks;
+
+  private Rules mRules;
+  /** number of color slots per row */
+  private int mSlots;
+
+  /** blockIndex -> (offset within block * mSlots + slot) -> color */
+  private int[][] mForeground;
+  private int[][] mBackground;
+  /** blockIndex -> offset within block -> whether the row has been evaluated */
+  private boolean[][] mEvaluated;
+  /** blockIndex -> value of mClock when it was last read */
+  private long[] mLastUsed;
+  private int mResidentBlocks = 0;
+  private long mClock = 0;
+
+  SpreadsheetColorEvaluator(SpreadsheetUserTable table) {
+    this(table, DEFAULT_PREFETCH_MARGIN, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS);
+  }
+
+  SpreadsheetColorEvaluator(SpreadsheetUserTable table, int prefetchMargin, int blockSize,
+      int maxBlocks) {
+    this.mTable = table;
+    this.mPrefetchMargin = prefetchMargin;
+    this.mBlockSize = blockSize;
+    this.mMaxBlocks = maxBlocks;
+    this.mRules = new Rules(null, null, new ColorRuleGroup[0], null);
+    this.mSlots = mRules.slots;
+    allocateBlocks(0);
+  }
+
+  /**
+   * Set the rule groups to evaluate. Any previously stored colors are
+   * discarded.
+   *
+   * @param rowColorRuleGroup
+   *          the table's row rules.
+   * @param statusColorRuleGroup
+   *          the rules for the status column.
+   * @param columnColorRuleGroups
+   *          the rules for each display column, indexed by display column.
+   * @param numberOfRows
+   */
+  void setColorRuleGroups(ColorRuleGroup rowColorRuleGroup, ColorRuleGroup statusColorRuleGroup,
+      ColorRuleGroup[] columnColorRuleGroups, int numberOfRows) {
+    this.mRules = new Rules(rowColorRuleGroup, statusColorRuleGroup, columnColorRuleGroups,
+        mTable.getColumnDefinitions());
+    this.mSlots = mRules.slots;
+    allocateBlocks(numberOfRows);
+  }
+
+  /**
+   * @return the rules currently being evaluated, for
+   *         {@link #evaluateRows(Rules, int, Row[])}.
+   */
+  Rules getRules() {
+    return mRules;
+  }
+
+  /**
+   * Evaluate the rules for a range of rows. Touches nothing but its
+   * arguments, so it can be called from a background thread.
+   *
+   * @param rules
+   * @param firstRow
+   *          index of the first of the rows.
+   * @param rows
+   *          the rows; a null entry is a row that could not be read.
+   * @return the colors, to be handed to {@link #publish(RowColors)}.
+   */
+  static RowColors evaluateRows(Rules rules, int firstRow, Row[] rows) {
+    RowColors colors = new RowColors(rules, firstRow, rows.length);
+    for (int i = 0; i < rows.length; ++i) {
+      if (rows[i] != null) {
+        evaluateRow(rules, rows[i], colors.foreground, colors.background, i * rules.slots);
+        colors.evaluated[i] = true;
+      }
+    }
+    return colors;
+  }
+
+  /**
+   * Store colors evaluated by {@link #evaluateRows(Rules, int, Row[])} for
+   * the rows that have not been evaluated since. They are dropped if the
+   * rules have changed in the meantime; the caller must also drop them if
+   * the rows have been invalidated.
+   *
+   * @param colors
+   */
+  void publish(RowColors colors) {
+    if (colors.rules != mRules) {
+      return;
+    }
+    for (int i = 0; i < colors.evaluated.length; ++i) {
+      int rowIndex = colors.firstRow + i;
+      int blockIndex = rowIndex / mBlockSize;
+      if (!colors.evaluated[i] || rowIndex < 0 || blockIndex >= mEvaluated.length) {
+        continue;
+      }
+      if (mEvaluated[blockIndex] == null) {
+        allocateBlock(blockIndex);
+      }
+      mLastUsed[blockIndex] = ++mClock;
+      int offset = rowIndex % mBlockSize;
+      if (mEvaluated[blockIndex][offset]) {
+        continue;
+      }
+      System.arraycopy(colors.foreground, i * mSlots, mForeground[blockIndex], offset * mSlots,
+          mSlots);
+      System.arraycopy(colors.background, i * mSlots, mBackground[blockIndex], offset * mSlots,
+          mSlots);
+      mEvaluated[blockIndex][offset] = true;
+    }
+  }
+
+  /**
+   * Make sure the colors are available for the rows in the given window and
+   * the prefetch margin around it. Whether each row of the window was already
+   * evaluated is recorded in the draw statistics.
+   *
+   * @param firstRow
+   *          the first visible row.
+   * @param lastRow
+   *          the last visible row.
+   */
+  void prepareWindow(int firstRow, int lastRow) {
+    int first = Math.max(0, firstRow - mPrefetchMargin);
+    int last = Math.min(mEvaluated.length * mBlockSize - 1, lastRow + mPrefetchMargin);
+    for (int i = first; i <= last; ++i) {
+      if (i >= firstRow && i <= lastRow) {
+        SpreadsheetDrawStats.get().recordColorLookup(isEvaluated(i));
+      }
+      ensureRow(i);
+    }
+  }
+
+  /**
+   * Get the foreground color of the status column of the row.
+   *
+   * @param rowIndex
+   * @return the color, or {@link #NO_COLOR} if no rule matched.
+   */
+  int getStatusForeground(int rowIndex) {
+    return getColor(mForeground, rowIndex, STATUS_SLOT);
+  }
+
+  int getStatusBackground(int rowIndex) {
+    return getColor(mBackground, rowIndex, STATUS_SLOT);
+  }
+
+  /**
+   * Get the foreground color of a cell.
+   *
+   * @param rowIndex
+   * @param columnIndex
+   *          index of the column in the spreadsheet's column order.
+   * @return the color, or {@link #NO_COLOR} if no rule matched.
+   */
+  int getForeground(int rowIndex, int columnIndex) {
+    return getColor(mForeground, rowIndex, columnIndex + 1);
+  }
+
+  int getBackground(int rowIndex, int columnIndex) {
+    return getColor(mBackground, rowIndex, columnIndex + 1);
+  }
+
+  /**
+   * Forget the colors of a single row so that they are re-evaluated when next
+   * needed.
+   *
+   * @param rowIndex
+   */
+  void invalidateRow(int rowIndex) {
+    int blockIndex = rowIndex / mBlockSize;
+    if (blockIndex < 0 || blockIndex >= mEvaluated.length || mEvaluated[blockIndex] == null) {
+      return;
+    }
+    mEvaluated[blockIndex][rowIndex % mBlockSize] = false;
+  }
+
+  /**
+   * Forget all evaluated colors.
+   */
+  void invalidate() {
+    allocateBlocks(mEvaluated.length * mBlockSize);
+  }
+
+  private int getColor(int[][] colors, int rowIndex, int slot) {
+    if (slot < 0 || slot >= mSlots) {
+      return NO_COLOR;
+    }
+    if (!ensureRow(rowIndex)) {
+      return NO_COLOR;
+    }
+    int blockIndex = rowIndex / mBlockSize;
+    return colors[blockIndex][(rowIndex % mBlockSize) * mSlots + slot];
+  }
+
+  private boolean isEvaluated(int rowIndex) {
+    int blockIndex = rowIndex / mBlockSize;
+    return rowIndex >= 0 && blockIndex < mEvaluated.length && mEvaluated[blockIndex] != null
+        && mEvaluated[blockIndex][rowIndex % mBlockSize];
+  }
+
+  /**
+   * Evaluate the row if it has not been already.
+   *
+   * @return false if the row does not exist or could not be retrieved.
+   */
+  private boolean ensureRow(int rowIndex) {
+    int blockIndex = rowIndex / mBlockSize;
+    if (rowIndex < 0 || blockIndex >= mEvaluated.length) {
+      return false;
+    }
+    if (mEvaluated[blockIndex] == null) {
+      allocateBlock(blockIndex);
+    }
+    mLastUsed[blockIndex] = ++mClock;
+    int offset = rowIndex % mBlockSize;
+    if (mEvaluated[blockIndex][offset]) {
+      return true;
+    }
+
+    Row row = mTable.getRowAtIndex(rowIndex);
+    if (row == null) {
+      return false;
+    }
+    evaluateRow(mRules, row, mForeground[blockIndex], mBackground[blockIndex], offset * mSlots);
+    mEvaluated[blockIndex][offset] = true;
+    return true;
+  }
+
+  /**
+   * Evaluate the rules for one row into the slots starting at base.
+   */
+  private static void evaluateRow(Rules rules, Row row, int[] fg, int[] bg, int base) {
+    ColorGuide statusGuide = evaluate(rules, rules.statusColorRuleGroup, row);
+    fg[base + STATUS_SLOT] = (statusGuide == null) ? NO_COLOR : statusGuide.getForeground();
+    bg[base + STATUS_SLOT] = (statusGuide == null) ? NO_COLOR : statusGuide.getBackground();
+
+    ColorGuide rowGuide = evaluate(rules, rules.rowColorRuleGroup, row);
+    for (int j = 0; j < rules.columnColorRuleGroups.length; ++j) {
+      // a matching column rule overrides the row rule.
+      ColorGuide guide = evaluate(rules, rules.columnColorRuleGroups[j], row);
+      if (guide == null) {
+        guide = rowGuide;
+      }
+      fg[base + j + 1] = (guide == null) ? NO_COLOR : guide.getForeground();
+      bg[base + j + 1] = (guide == null) ? NO_COLOR : guide.getBackground();
+    }
+  }
+
+  private static ColorGuide evaluate(Rules rules, ColorRuleGroup crg, Row row) {
+    if (crg == null) {
+      return null;
+    }
+    return crg.getColorGuide(rules.orderedDefns, row);
+  }
+
+  private void allocateBlocks(int numberOfRows) {
+    int numberOfBlocks = (numberOfRows + mBlockSize - 1) / mBlockSize;
+    mForeground = new int[numberOfBlocks][];
+    mBackground = new int[numberOfBlocks][];
+    mEvaluated = new boolean[numberOfBlocks][];
+    mLastUsed = new long[numberOfBlocks];
+    mResidentBlocks = 0;
+  }
+
+  private void allocateBlock(int blockIndex) {
+    if (mResidentBlocks >= mMaxBlocks) {
+      // evict the least recently used block. This scan only happens on a
+      // miss, which is already paying to evaluate the rules.
+      int eldest = -1;
+      for (int i = 0; i < mEvaluated.length; ++i) {
+        if (mEvaluated[i] != null && (eldest == -1 || mLastUsed[i] < mLastUsed[eldest])) {
+          eldest = i;
+        }
+      }
+      if (eldest != -1) {
+        mForeground[eldest] = null;
+        mBackground[eldest] = null;
+        mEvaluated[eldest] = null;
+        --mResidentBlocks;
+      }
+    }
+    mForeground[blockIndex] = new int[mBlockSize * mSlots];
+    mBackground[blockIndex] = new int[mBlockSize * mSlots];
+    mEvaluated[blockIndex] = new boolean[mBlockSize];
+    ++mResidentBlocks;
+  }
+}
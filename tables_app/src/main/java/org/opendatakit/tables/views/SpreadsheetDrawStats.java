@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Draw statistics for the spreadsheet views.
+ * <p>
+ * Records how long each frame of the spreadsheet takes to draw, how many rows
+ * and cells were drawn, and how often the display text and color caches
+ * already held what was drawn. Frame times are kept in a ring buffer of the
+ * most recent frames, from which percentiles are computed on request; the
+ * counters accumulate until {@link #reset()}.
+ * <p>
+ * The statistics can be drawn over the spreadsheet (see
+ * {@link #setOverlayEnabled(boolean)}) and written to the tables debug folder.
+ * There is one instance per process, as only one spreadsheet is shown at a
+ * time. Recording is only done from the UI thread.
+ */
+public class SpreadsheetDrawStats {
+
+  private static final String TAG = "SpreadsheetDrawStats";
+
+  /** Number of recent frames whose times are kept. */
+  public static final int FRAME_HISTORY = 120;
+
+  private static final String STATS_FILE_NAME = "spreadsheetDrawStats.json";
+
+  private static final int OVERLAY_TEXT_SIZE = 24;
+  private static final int OVERLAY_PADDING = 8;
+
+  private static final SpreadsheetDrawStats sInstance = new SpreadsheetDrawStats();
+
+  public static SpreadsheetDrawStats get() {
+    return sInstance;
+  }
+
+  private final long[] mFrameNanos = new long[FRAME_HISTORY];
+  private int mNextFrame = 0;
+  private long mFrameCount = 0;
+
+  private long mRowsDrawn = 0;
+  private long mCellsDrawn = 0;
+  private int mLastFrameCells = 0;
+  private int mCurrentFrameCells = 0;
+
+  private long mTextHits = 0;
+  private long mTextMisses = 0;
+  private long mColorHits = 0;
+  private long mColorMisses = 0;
+
+  private boolean mOverlayEnabled = false;
+  private Paint mOverlayTextPaint;
+  private Paint mOverlayBackgroundPaint;
+
+  private SpreadsheetDrawStats() {
+  }
+
+  /**
+   * Note the start of a frame.
+   *
+   * @return the value to pass to {@link #endFrame(long)}.
+   */
+  long beginFrame() {
+    mCurrentFrameCells = 0;
+    return System.nanoTime();
+  }
+
+  /**
+   * Note the end of a frame begun by {@link #beginFrame()}.
+   *
+   * @param startNanos
+   */
+  void endFrame(long startNanos) {
+    mFrameNanos[mNextFrame] = System.nanoTime() - startNanos;
+    mNextFrame = (mNextFrame + 1) % FRAME_HISTORY;
+    ++mFrameCount;
+    mLastFrameCells = mCurrentFrameCells;
+  }
+
+  void recordDrawn(int rows, int cells) {
+    mRowsDrawn += rows;
+    mCellsDrawn += cells;
+    mCurrentFrameCells += cells;
+  }
+
+  void recordTextLookup(boolean hit) {
+    if (hit) {
+      ++mTextHits;
+    } else {
+      ++mTextMisses;
+    }
+  }
+
+  void recordColorLookup(boolean hit) {
+    if (hit) {
+      ++mColorHits;
+    } else {
+      ++mColorMisses;
+    }
+  }
+
+  /**
+   * Get a percentile of the draw times of the recent frames.
+   *
+   * @param percentile
+   *          between 0 and 100.
+   * @return the draw time in milliseconds, or 0 if no frames have been drawn.
+   */
+  public double getFrameTimePercentile(double percentile) {
+    int n = (int) Math.min(mFrameCount, FRAME_HISTORY);
+    if (n == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(mFrameNanos, n);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100.0 * n) - 1;
+    rank = Math.max(0, Math.min(n - 1, rank));
+    return sorted[rank] / 1000000.0;
+  }
+
+  public long getFrameCount() {
+    return mFrameCount;
+  }
+
+  public long getRowsDrawn() {
+    return mRowsDrawn;
+  }
+
+  public long getCellsDrawn() {
+    return mCellsDrawn;
+  }
+
+  public long getTextHits() {
+    return mTextHits;
+  }
+
+  public long getTextMisses() {
+    return mTextMisses;
+  }
+
+  public long getColorHits() {
+    return mColorHits;
+  }
+
+  public long getColorMisses() {
+    return mColorMisses;
+  }
+
+  /**
+   * Discard everything recorded so far.
+   */
+  public void reset() {
+    Arrays.fill(mFrameNanos, 0);
+    mNextFrame = 0;
+    mFrameCount = 0;
+    mRowsDrawn = 0;
+    mCellsDrawn = 0;
+    mLastFrameCells = 0;
+    mCurrentFrameCells = 0;
+    mTextHits = 0;
+    mTextMisses = 0;
+    mColorHits = 0;
+    mColorMisses = 0;
+  }
+
+  public boolean isOverlayEnabled() {
+    return mOverlayEnabled;
+  }
+
+  /**
+   * Set whether the statistics are drawn over the spreadsheet.
+   *
+   * @param enabled
+   */
+  public void setOverlayEnabled(boolean enabled) {
+    mOverlayEnabled = enabled;
+  }
+
+  /**
+   * Draw a summary of the statistics in the top right corner of the canvas,
+   * if the overlay is enabled.
+   *
+   * @param canvas
+   * @param width
+   *          width of the view being drawn.
+   */
+  void drawOverlay(Canvas canvas, int width) {
+    if (!mOverlayEnabled) {
+      return;
+    }
+    if (mOverlayTextPaint == null) {
+      mOverlayTextPaint = new Paint();
+      mOverlayTextPaint.setAntiAlias(true);
+      mOverlayTextPaint.setColor(Color.WHITE);
+      mOverlayTextPaint.setTextSize(OVERLAY_TEXT_SIZE);
+      mOverlayBackgroundPaint = new Paint();
+      mOverlayBackgroundPaint.setColor(Color.argb(192, 0, 0, 0));
+    }
+    String[] lines = new String[] {
+        String.format(Locale.US, "p50 %.1fms p90 %.1fms p99 %.1fms",
+            getFrameTimePercentile(50), getFrameTimePercentile(90), getFrameTimePercentile(99)),
+        String.format(Locale.US, "cells %d text %d%% color %d%%", mLastFrameCells,
+            hitPercent(mTextHits, mTextMisses), hitPercent(mColorHits, mColorMisses)) };
+    float textWidth = 0;
+    for (String line : lines) {
+      textWidth = Math.max(textWidth, mOverlayTextPaint.measureText(line));
+    }
+    float left = width - textWidth - 2 * OVERLAY_PADDING;
+    float lineHeight = OVERLAY_TEXT_SIZE + OVERLAY_PADDING;
+    canvas.drawRect(left, 0, width, lines.length * lineHeight + OVERLAY_PADDING,
+        mOverlayBackgroundPaint);
+    for (int i = 0; i < lines.length; ++i) {
+      canvas.drawText(lines[i], left + OVERLAY_PADDING, (i + 1) * lineHeight,
+          mOverlayTextPaint);
+    }
+  }
+
+  private static int hitPercent(long hits, long misses) {
+    long total = hits + misses;
+    return (total == 0) ? 0 : (int) (100 * hits / total);
+  }
+
+  /**
+   * @return a copy of the statistics, e.g. to write to a file on another
+   *         thread.
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> stats = new HashMap<String, Object>();
+    stats.put("frameCount", mFrameCount);
+    stats.put("frameTimeP50Ms", getFrameTimePercentile(50));
+    stats.put("frameTimeP90Ms", getFrameTimePercentile(90));
+    stats.put("frameTimeP99Ms", getFrameTimePercentile(99));
+    stats.put("frameTimeMaxMs", getFrameTimePercentile(100));
+    stats.put("rowsDrawn", mRowsDrawn);
+    stats.put("cellsDrawn", mCellsDrawn);
+    stats.put("textHits", mTextHits);
+    stats.put("textMisses", mTextMisses);
+    stats.put("colorHits", mColorHits);
+    stats.put("colorMisses", mColorMisses);
+    return stats;
+  }
+
+  /**
+   * Write statistics taken by {@link #toMap()} to a json file in the tables
+   * debug folder. Does file I/O, so call it off of the UI thread.
+   *
+   * @param appName
+   * @param stats
+   * @return whether the file was written.
+   */
+  public static boolean writeToDebugFolder(String appName, Map<String, Object> stats) {
+    String fileName = ODKFileUtils.getTablesDebugObjectFolder(appName) + File.separator
+        + STATS_FILE_NAME;
+    PrintWriter writer;
+    try {
+      String statsString = ODKFileUtils.mapper.writeValueAsString(stats);
+      writer = new PrintWriter(fileName, CharEncoding.UTF_8);
+      WebLogger.getLogger(appName).d(TAG, "writing draw statistics to: " + fileName);
+      writer.print(statsString);
+      writer.flush();
+      boolean failed = writer.checkError();
+      writer.close();
+      return !failed;
+    } catch (JsonProcessingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (FileNotFoundException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (UnsupportedEncodingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+    return false;
+  }
+}
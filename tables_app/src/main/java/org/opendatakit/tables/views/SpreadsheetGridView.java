@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import java.util.Arrays;
+
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.R;
+import org.opendatakit.tables.data.TablePresentation;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.ContextMenu;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.widget.OverScroller;
+import android.widget.Toast;
+
+/**
+ * A spreadsheet drawn as a single view.
+ * <p>
+ * {@link SpreadsheetView} builds the spreadsheet out of nested scroll views
+ * wrapping one {@link TabularView} per pane, each as tall as the whole table,
+ * and keeps them in step by scrolling each in response to the others. This
+ * view instead draws the status column, the frozen (index) column, the header
+ * row and the body itself, onto one canvas, from a single scroll position. Only
+ * the cells that are on screen are ever drawn, and a touch is mapped to a cell
+ * by binary search over the column offsets.
+ * <p>
+ * It reports to the same {@link SpreadsheetView.Controller} as
+ * {@link SpreadsheetView}, so the two are interchangeable.
+ */
+public class SpreadsheetGridView extends android.view.View implements SpreadsheetView.Display {
+
+  private static final String TAG = "SpreadsheetGridView";
+
+  private static final int DEFAULT_FOREGROUND_COLOR = Color.BLACK;
+  private static final int DEFAULT_DATA_BACKGROUND_COLOR = Color.WHITE;
+  private static final int DEFAULT_BORDER_COLOR = Color.GRAY;
+  private static final int DEFAULT_HEADER_BACKGROUND_COLOR = Color.CYAN;
+
+  private static final int ROW_HEIGHT_PADDING = 14;
+  private static final int HORIZONTAL_CELL_PADDING = 5;
+  private static final int VERTICAL_CELL_PADDING = 9;
+  private static final int BORDER_WIDTH = 1;
+
+  private final SpreadsheetView.Controller controller;
+  private final SpreadsheetUserTable table;
+  private final int rowHeight;
+  private final int numberOfRows;
+
+  /** Display column index of the frozen column, or -1 if there is none. */
+  private final int indexColumn;
+  private final int indexColumnWidth;
+
+  /** Display column indexes of the scrolling columns, in order. */
+  private final int[] mainColumns;
+  private final int[] mainColumnWidths;
+  /**
+   * Offset of the left edge of each scrolling column from the left of the
+   * scrolling area. Used for the binary searches that find the columns on
+   * screen and the column under a touch.
+   */
+  private final int[] mainColumnOffsets;
+  private final int mainContentWidth;
+  private final int contentHeight;
+
+  // fixed areas, in view coordinates
+  private final int statusRight;
+  private final int frozenRight;
+  private final int headerBottom;
+
+  private final Paint textPaint;
+  private final Paint bgPaint;
+  private final Paint highlightPaint;
+
+  private final GestureDetector gestureDetector;
+  private final OverScroller scroller;
+  private int scrollX = 0;
+  private int scrollY = 0;
+
+  private final ScrollPrefetcher prefetcher;
+
+  private CellInfo highlightedCell = null;
+  private CellInfo lastTouchedCell = null;
+  private boolean lastTouchWasHeader = false;
+
+  public SpreadsheetGridView(Context context, SpreadsheetView.Controller controller,
+      SpreadsheetUserTable table) throws ServicesAvailabilityException {
+    super(context);
+    this.controller = controller;
+    this.table = table;
+
+    // loaded, along with the rest of the table's presentation, when the table was
+    TablePresentation presentation = table.getPresentation();
+    int[] completeColWidths = SpreadsheetView.getColumnWidths(table);
+    int fontSize = presentation.getSpreadsheetViewFontSize();
+    table.setColorRuleGroups(presentation.getTableColorRuleGroup(),
+        presentation.getStatusColumnRuleGroup(), presentation.getColumnColorRuleGroups());
+
+    this.rowHeight = fontSize + ROW_HEIGHT_PADDING;
+    this.numberOfRows = table.getNumberOfRows();
+
+    // split the columns into the frozen one and the ones that scroll
+    Integer idx = table.isIndexed() ?
+        table.getColumnIndexOfElementKey(table.getIndexedColumnElementKey()) : null;
+    this.indexColumn = (idx == null) ? -1 : idx;
+    this.indexColumnWidth = (indexColumn == -1) ? 0 : completeColWidths[indexColumn];
+    int numberOfColumns = table.getNumberOfDisplayColumns();
+    int numberOfMainColumns = (indexColumn == -1) ? numberOfColumns : numberOfColumns - 1;
+    this.mainColumns = new int[numberOfMainColumns];
+    this.mainColumnWidths = new int[numberOfMainColumns];
+    this.mainColumnOffsets = new int[numberOfMainColumns];
+    int offset = 0;
+    int j = 0;
+    for (int i = 0; i < numberOfColumns; ++i) {
+      if (i == indexColumn) {
+        continue;
+      }
+      mainColumns[j] = i;
+      mainColumnWidths[j] = completeColWidths[i];
+      mainColumnOffsets[j] = offset;
+      offset += completeColWidths[i] + BORDER_WIDTH;
+      ++j;
+    }
+    this.mainContentWidth = offset + BORDER_WIDTH;
+    this.contentHeight = numberOfRows * (rowHeight + BORDER_WIDTH) + BORDER_WIDTH;
+
+    this.statusRight = BORDER_WIDTH + TabularView.DEFAULT_STATUS_COLUMN_WIDTH;
+    this.frozenRight = (indexColumn == -1) ? statusRight :
+        statusRight + BORDER_WIDTH + indexColumnWidth;
+    this.headerBottom = BORDER_WIDTH + rowHeight;
+
+    textPaint = new Paint();
+    textPaint.setAntiAlias(true);
+    textPaint.setTextSize(fontSize);
+    bgPaint = new Paint();
+    highlightPaint = new Paint();
+    highlightPaint.setColor(Color.CYAN);
+    highlightPaint.setStrokeWidth(3);
+
+    prefetcher = new ScrollPrefetcher(table, rowHeight + BORDER_WIDTH);
+    scroller = new OverScroller(context);
+    gestureDetector = new GestureDetector(context, new GestureListener());
+    setClickable(true);
+    setLongClickable(true);
+    setVerticalScrollBarEnabled(true);
+    setHorizontalScrollBarEnabled(true);
+  }
+
+  @Override
+  public void invalidateRow(int rowIndex) {
+    // nothing is cached at the view level; just redraw.
+    invalidate();
+  }
+
+  @Override
+  public void invalidateContent() {
+    highlightedCell = null;
+    invalidate();
+  }
+
+  // ///////////////////////////////////////////////////////////////////////////
+  // Scrolling
+
+  private int getMaxScrollX() {
+    return Math.max(0, mainContentWidth - (getWidth() - frozenRight));
+  }
+
+  private int getMaxScrollY() {
+    return Math.max(0, contentHeight - (getHeight() - headerBottom));
+  }
+
+  private void setScroll(int x, int y) {
+    int newX = Math.max(0, Math.min(x, getMaxScrollX()));
+    int newY = Math.max(0, Math.min(y, getMaxScrollY()));
+    if (newX != scrollX || newY != scrollY) {
+      scrollX = newX;
+      if (newY != scrollY) {
+        scrollY = newY;
+        prefetcher.onScrollChanged(scrollY, getHeight() - headerBottom);
+      }
+      awakenScrollBars();
+      invalidate();
+    }
+  }
+
+  @Override
+  public void computeScroll() {
+    if (scroller.computeScrollOffset()) {
+      setScroll(scroller.getCurrX(), scroller.getCurrY());
+      if (!scroller.isFinished()) {
+        postInvalidateOnAnimation();
+      }
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    scroller.forceFinished(true);
+    prefetcher.cancel();
+  }
+
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    // re-clamp to the new bounds
+    setScroll(scrollX, scrollY);
+  }
+
+  @Override
+  protected int computeHorizontalScrollRange() {
+    return mainContentWidth;
+  }
+
+  @Override
+  protected int computeHorizontalScrollOffset() {
+    return scrollX;
+  }
+
+  @Override
+  protected int computeHorizontalScrollExtent() {
+    return Math.max(0, getWidth() - frozenRight);
+  }
+
+  @Override
+  protected int computeVerticalScrollRange() {
+    return contentHeight;
+  }
+
+  @Override
+  protected int computeVerticalScrollOffset() {
+    return scrollY;
+  }
+
+  @Override
+  protected int computeVerticalScrollExtent() {
+    return Math.max(0, getHeight() - headerBottom);
+  }
+
+  // ///////////////////////////////////////////////////////////////////////////
+  // Hit testing
+
+  /**
+   * Find the scrolling column whose span contains the given offset into the
+   * scrolling area.
+   */
+  private int findMainColumn(int contentX) {
+    int result = Arrays.binarySearch(mainColumnOffsets, contentX);
+    if (result < 0) {
+      // the insertion point is the column after the one containing contentX
+      result = -result - 2;
+    }
+    return Math.max(0, Math.min(result, mainColumnOffsets.length - 1));
+  }
+
+  /**
+   * Find the cell under the given point of the view.
+   *
+   * @return the cell, or null if the point is not over a header or data cell
+   *         (e.g. it is over the status column or below the last row).
+   */
+  private CellInfo getCellInfo(int x, int y) {
+    if (x < statusRight) {
+      return null;
+    }
+    int rowIndex;
+    if (y < headerBottom) {
+      rowIndex = 0;
+    } else {
+      rowIndex = (y - headerBottom + scrollY) / (rowHeight + BORDER_WIDTH);
+      if (rowIndex >= numberOfRows) {
+        return null;
+      }
+    }
+    int columnIndex;
+    if (x < frozenRight) {
+      columnIndex = indexColumn;
+    } else {
+      if (mainColumns.length == 0) {
+        return null;
+      }
+      columnIndex = mainColumns[findMainColumn(x - frozenRight + scrollX)];
+    }
+    if (columnIndex == -1) {
+      return null;
+    }
+    ColumnDefinition cd = table.getColumnByIndex(columnIndex);
+    return new CellInfo(cd.getElementKey(), columnIndex, rowIndex);
+  }
+
+  private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+
+    @Override
+    public boolean onDown(MotionEvent e) {
+      scroller.forceFinished(true);
+      lastTouchWasHeader = e.getY() < headerBottom;
+      lastTouchedCell = getCellInfo((int) e.getX(), (int) e.getY());
+      highlightedCell = lastTouchWasHeader ? null : lastTouchedCell;
+      invalidate();
+      return true;
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent e) {
+      if (lastTouchedCell != null) {
+        if (lastTouchWasHeader) {
+          controller.headerCellClicked(lastTouchedCell);
+        } else {
+          controller.dataCellClicked(lastTouchedCell);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean onDoubleTap(MotionEvent e) {
+      // same as a long press
+      openContextMenu();
+      return true;
+    }
+
+    @Override
+    public void onLongPress(MotionEvent e) {
+      openContextMenu();
+    }
+
+    @Override
+    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+      setScroll(scrollX + (int) distanceX, scrollY + (int) distanceY);
+      return true;
+    }
+
+    @Override
+    public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+      scroller.fling(scrollX, scrollY, (int) -velocityX, (int) -velocityY, 0, getMaxScrollX(), 0,
+          getMaxScrollY());
+      postInvalidateOnAnimation();
+      return true;
+    }
+  }
+
+  private void openContextMenu() {
+    if (lastTouchedCell == null) {
+      return;
+    }
+    if (lastTouchWasHeader) {
+      controller.openHeaderContextMenu(this);
+    } else {
+      controller.openDataContextMenu(this);
+    }
+  }
+
+  @Override
+  public boolean onTouchEvent(MotionEvent event) {
+    return gestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+  }
+
+  @Override
+  protected void onCreateContextMenu(ContextMenu menu) {
+    try {
+      if (lastTouchWasHeader) {
+        controller.prepHeaderCellOccm(menu, lastTouchedCell);
+      } else {
+        controller.prepDataCellOccm(menu, lastTouchedCell);
+      }
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(table.getAppName()).printStackTrace(e);
+      WebLogger.getLogger(table.getAppName()).e(TAG,
+          "Error accessing database: " + e.toString());
+      Toast.makeText(getContext(), R.string.error_accessing_database, Toast.LENGTH_LONG).show();
+    }
+  }
+
+  // ///////////////////////////////////////////////////////////////////////////
+  // Drawing
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    SpreadsheetDrawStats stats = SpreadsheetDrawStats.get();
+    long start = stats.beginFrame();
+    int width = getWidth();
+    int height = getHeight();
+    // the borders are whatever shows between the cells
+    canvas.drawColor(DEFAULT_BORDER_COLOR);
+
+    int firstRow = 0;
+    int lastRow = -1;
+    if (numberOfRows > 0) {
+      firstRow = scrollY / (rowHeight + BORDER_WIDTH);
+      lastRow = Math.min(numberOfRows - 1,
+          (scrollY + height - headerBottom) / (rowHeight + BORDER_WIDTH));
+      table.prepareColorWindow(firstRow, lastRow);
+    }
+    int firstMainColumn = 0;
+    int lastMainColumn = -1;
+    if (mainColumns.length > 0) {
+      firstMainColumn = findMainColumn(scrollX);
+      lastMainColumn = findMainColumn(scrollX + width - frozenRight);
+    }
+    int rowsDrawn = lastRow - firstRow + 1;
+    stats.recordDrawn(rowsDrawn, rowsDrawn * (lastMainColumn - firstMainColumn + 1
+        + ((indexColumn == -1) ? 0 : 1)));
+
+    // body
+    canvas.save();
+    canvas.clipRect(frozenRight, headerBottom, width, height);
+    for (int r = firstRow; r <= lastRow; ++r) {
+      int y = getRowTop(r);
+      for (int c = firstMainColumn; c <= lastMainColumn; ++c) {
+        drawDataCell(canvas, frozenRight + mainColumnOffsets[c] - scrollX + BORDER_WIDTH, y,
+            mainColumnWidths[c], r, mainColumns[c]);
+      }
+    }
+    canvas.restore();
+
+    // frozen column and status column scroll only vertically
+    canvas.save();
+    canvas.clipRect(0, headerBottom, frozenRight, height);
+    for (int r = firstRow; r <= lastRow; ++r) {
+      int y = getRowTop(r);
+      int fg = table.getStatusForeground(r);
+      int bg = (fg == SpreadsheetColorEvaluator.NO_COLOR) ? DEFAULT_DATA_BACKGROUND_COLOR :
+          table.getStatusBackground(r);
+      drawCell(canvas, BORDER_WIDTH, y, TabularView.DEFAULT_STATUS_COLUMN_WIDTH, " ", bg,
+          DEFAULT_FOREGROUND_COLOR);
+      if (indexColumn != -1) {
+        drawDataCell(canvas, statusRight + BORDER_WIDTH, y, indexColumnWidth, r, indexColumn);
+      }
+    }
+    canvas.restore();
+
+    // header row scrolls only horizontally
+    canvas.save();
+    canvas.clipRect(frozenRight, 0, width, headerBottom);
+    for (int c = firstMainColumn; c <= lastMainColumn; ++c) {
+      drawCell(canvas, frozenRight + mainColumnOffsets[c] - scrollX + BORDER_WIDTH, BORDER_WIDTH,
+          mainColumnWidths[c], table.getHeader(mainColumns[c]), DEFAULT_HEADER_BACKGROUND_COLOR,
+          DEFAULT_FOREGROUND_COLOR);
+    }
+    canvas.restore();
+
+    // the corner does not scroll at all
+    drawCell(canvas, BORDER_WIDTH, BORDER_WIDTH, TabularView.DEFAULT_STATUS_COLUMN_WIDTH, " ",
+        DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_FOREGROUND_COLOR);
+    if (indexColumn != -1) {
+      drawCell(canvas, statusRight + BORDER_WIDTH, BORDER_WIDTH, indexColumnWidth,
+          table.getHeader(indexColumn), DEFAULT_HEADER_BACKGROUND_COLOR,
+          DEFAULT_FOREGROUND_COLOR);
+    }
+
+    if (highlightedCell != null && highlightedCell.rowId >= firstRow
+        && highlightedCell.rowId <= lastRow) {
+      drawHighlight(canvas, highlightedCell, width, height);
+    }
+    stats.endFrame(start);
+    stats.drawOverlay(canvas, width);
+  }
+
+  private int getRowTop(int rowIndex) {
+    return headerBottom + BORDER_WIDTH + rowIndex * (rowHeight + BORDER_WIDTH) - scrollY;
+  }
+
+  private void drawDataCell(Canvas canvas, int x, int y, int columnWidth, int rowIndex,
+      int columnIndex) {
+    int fg = table.getCellForeground(rowIndex, columnIndex);
+    int bg;
+    if (fg == SpreadsheetColorEvaluator.NO_COLOR) {
+      fg = DEFAULT_FOREGROUND_COLOR;
+      bg = DEFAULT_DATA_BACKGROUND_COLOR;
+    } else {
+      bg = table.getCellBackground(rowIndex, columnIndex);
+    }
+    drawCell(canvas, x, y, columnWidth, table.getCachedDisplayText(rowIndex, columnIndex), bg, fg);
+  }
+
+  private void drawCell(Canvas canvas, int x, int y, int columnWidth, String datum,
+      int backgroundColor, int foregroundColor) {
+    bgPaint.setColor(backgroundColor);
+    canvas.drawRect(x, y, x + columnWidth, y + rowHeight, bgPaint);
+    canvas.save();
+    canvas.clipRect(x + HORIZONTAL_CELL_PADDING, y,
+        x + columnWidth - (2 * HORIZONTAL_CELL_PADDING), y + rowHeight);
+    textPaint.setColor(foregroundColor);
+    canvas.drawText(datum, x + HORIZONTAL_CELL_PADDING, (y + rowHeight - VERTICAL_CELL_PADDING),
+        textPaint);
+    canvas.restore();
+  }
+
+  private void drawHighlight(Canvas canvas, CellInfo cell, int width, int height) {
+    int x;
+    int columnWidth;
+    canvas.save();
+    if (cell.colPos == indexColumn) {
+      x = statusRight + BORDER_WIDTH;
+      columnWidth = indexColumnWidth;
+      canvas.clipRect(statusRight, headerBottom, frozenRight, height);
+    } else {
+      int c = Arrays.binarySearch(mainColumns, cell.colPos);
+      if (c < 0) {
+        canvas.restore();
+        return;
+      }
+      x = frozenRight + mainColumnOffsets[c] - scrollX + BORDER_WIDTH;
+      columnWidth = mainColumnWidths[c];
+      canvas.clipRect(frozenRight, headerBottom, width, height);
+    }
+    int y = getRowTop(cell.rowId);
+    canvas.drawLine(x + 1, y + 1, x + columnWidth - 1, y + 1, highlightPaint);
+    canvas.drawLine(x + 1, y + 1, x + 1, y + rowHeight - 1, highlightPaint);
+    canvas.drawLine(x + columnWidth - 1, y + 1, x + columnWidth - 1, y + rowHeight - 1,
+        highlightPaint);
+    canvas.drawLine(x + 1, y + rowHeight - 1, x + columnWidth - 1, y + rowHeight - 1,
+        highlightPaint);
+    canvas.restore();
+  }
+}
@@ -22,13 +22,14 @@ import java.util.Map;
 import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.OrderedColumns;
-import org.opendatakit.database.data.UserTable;
 import org.opendatakit.exception.ServicesAvailabilityException;
-import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.GroupedRowIndex;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.data.TablePresentation;
+import org.opendatakit.tables.data.TablePresentationLoader;
 import org.opendatakit.tables.fragments.AbsTableDisplayFragment;
 
 import android.content.Context;
@@ -36,6 +37,9 @@ import android.content.Context;
 /**
  * Wrapper class for UserTable that presents the table in the way that the
  * configuration says the UserTable should be presented.
+ * <p>
+ * Rows are read through the fragment's {@link PagedUserTable}, so only the
+ * windows of the table that are actually drawn are held in memory.
  *
  * @author Administrator
  *
@@ -45,12 +49,115 @@ public class SpreadsheetUserTable {
   private static final String TAG = "SpreadsheetUserTable";
 
   private final AbsTableDisplayFragment fragment;
+  private final TablePresentation presentation;
   private final String indexColumnElementKey;
   private final String[] header;
   private final String[] spreadsheetIndexToElementKey;
   private final Map<String, Integer> elementKeyToSpreadsheetIndex;
   private final Map<String, ArrayList<Map<String,Object>>> elementKeyToDisplayChoicesList;
-  UserTable userTable;
+  private final PagedUserTable pagedTable;
+  /**
+   * Rendered text of the cells that have been drawn. Created on first use so
+   * that constructing this object does not have to size the table.
+   */
+  private DisplayTextCache displayTextCache;
+  /**
+   * Color rule results for the rows near the viewport, shared by all panes.
+   */
+  private final SpreadsheetColorEvaluator colorEvaluator;
+  /**
+   * When set, the rows shown are those of the expanded and collapsed groups
+   * of this index rather than those of {@link #pagedTable}.
+   */
+  private GroupedRowIndex groupedRows = null;
+  /**
+   * Counts the discards of cached text and colors, so that rows prepared on a
+   * background thread before a discard are not published after it.
+   */
+  private int preparedRowsGeneration = 0;
+
+  /**
+   * What is needed to format and color rows on a background thread, captured
+   * on the UI thread by {@link SpreadsheetUserTable#newRowPreparer()}. It
+   * only reads the paged table, which is thread safe, and its own immutable
+   * fields.
+   */
+  static final class RowPreparer {
+    private final PagedUserTable pagedTable;
+    /** spreadsheet column index -> column */
+    private final ColumnDefinition[] columns;
+    private final SpreadsheetColorEvaluator.Rules rules;
+    private final int generation;
+
+    private RowPreparer(PagedUserTable pagedTable, ColumnDefinition[] columns,
+        SpreadsheetColorEvaluator.Rules rules, int generation) {
+      this.pagedTable = pagedTable;
+      this.columns = columns;
+      this.rules = rules;
+      this.generation = generation;
+    }
+
+    /**
+     * Read the given rows from the database if they are not already in
+     * memory. Called from a background thread.
+     *
+     * @param firstRow
+     * @param lastRow
+     */
+    void prefetch(int firstRow, int lastRow) {
+      pagedTable.prefetchRows(firstRow, lastRow);
+    }
+
+    /**
+     * Compute the display text and colors of the given rows. Called from a
+     * background thread, after the rows have been read.
+     *
+     * @param firstRow
+     * @param lastRow
+     * @return the results, to be handed to
+     *         {@link SpreadsheetUserTable#publishPreparedRows(PreparedRows)}.
+     */
+    PreparedRows prepare(int firstRow, int lastRow) {
+      Row[] rows = new Row[Math.max(0, lastRow - firstRow + 1)];
+      String[][] text = new String[rows.length][];
+      for (int i = 0; i < rows.length; ++i) {
+        int rowIndex = firstRow + i;
+        rows[i] = pagedTable.getRowAtIndex(rowIndex);
+        if ( rows[i] == null ) {
+          continue;
+        }
+        text[i] = new String[columns.length];
+        for (int j = 0; j < columns.length; ++j) {
+          String cellText = pagedTable.getDisplayTextOfData(rowIndex, columns[j].getType(),
+              columns[j].getElementKey());
+          text[i][j] = (cellText == null) ? "" : cellText;
+        }
+      }
+      return new PreparedRows(generation, firstRow, text,
+          SpreadsheetColorEvaluator.evaluateRows(rules, firstRow, rows));
+    }
+  }
+
+  /**
+   * The display text and colors of a range of rows, computed by a
+   * {@link RowPreparer}. Only the thread that computed it reads it until it
+   * is published.
+   */
+  static final class PreparedRows {
+    private final int generation;
+    private final int firstRow;
+    /** offset from firstRow -> spreadsheet column index -> text; null if the row was missing */
+    private final String[][] text;
+    private final SpreadsheetColorEvaluator.RowColors colors;
+
+    private PreparedRows(int generation, int firstRow, String[][] text,
+        SpreadsheetColorEvaluator.RowColors colors) {
+      this.generation = generation;
+      this.firstRow = firstRow;
+      this.text = text;
+      this.colors = colors;
+    }
+  }
 
   public SpreadsheetUserTable(AbsTableDisplayFragment frag) throws ServicesAvailabilityException {
     this.fragment = frag;
@@ -59,10 +166,12 @@ public class SpreadsheetUserTable {
     DbHandle db = null;
     try {
       db = Tables.getInstance().getDatabase().openDatabase(frag.getAppName());
-      userTable = getUserTable();
-      indexColumnElementKey = TableUtil.get().getIndexColumn(Tables.getInstance(), getAppName(), db, getTableId());
-      colOrder = TableUtil.get().getColumnOrder(Tables.getInstance(), frag.getAppName(), db, frag.getTableId(),
-              frag.getColumnDefinitions());
+      pagedTable = frag.getPagedUserTable();
+      colorEvaluator = new SpreadsheetColorEvaluator(this);
+      presentation = TablePresentationLoader.get().load(frag.getAppName(), db, frag.getTableId(),
+          frag.getColumnDefinitions());
+      indexColumnElementKey = presentation.getIndexColumn();
+      colOrder = new ArrayList<String>(presentation.getColumnOrder());
 
       header = new String[colOrder.size()];
       spreadsheetIndexToElementKey = new String[colOrder.size()];
@@ -71,18 +180,11 @@ public class SpreadsheetUserTable {
 
       for (int i = 0; i < colOrder.size(); ++i) {
         String elementKey = colOrder.get(i);
-        String localizedDisplayName;
-        localizedDisplayName = ColumnUtil.get().getLocalizedDisplayName(Tables.getInstance(),
-            getAppName(), db, frag.getTableId(),
-            elementKey);
-
-        header[i] = localizedDisplayName;
+        header[i] = presentation.getLocalizedDisplayName(elementKey);
         spreadsheetIndexToElementKey[i] = elementKey;
         elementKeyToSpreadsheetIndex.put(elementKey, i);
 
-        ArrayList<Map<String,Object>> choices =
-        ColumnUtil.get().getDisplayChoicesList(Tables.getInstance(), getAppName(), db, frag.getTableId(), elementKey);
-        elementKeyToDisplayChoicesList.put(elementKey, choices);
+        elementKeyToDisplayChoicesList.put(elementKey, presentation.getDisplayChoicesList(elementKey));
       }
     } finally {
       if ( db != null ) {
@@ -103,6 +205,13 @@ public class SpreadsheetUserTable {
     return fragment.getColumnDefinitions();
   }
 
+  /**
+   * @return the column order, names, widths, color rules, etc. of the table.
+   */
+  public TablePresentation getPresentation() {
+    return presentation;
+  }
+
   public ArrayList<Map<String,Object>> getColumnDisplayChoicesList(String elementKey) {
     return elementKeyToDisplayChoicesList.get(elementKey);
   }
@@ -124,27 +233,327 @@ public class SpreadsheetUserTable {
   }
 
   int getNumberOfRows() {
-    UserTable table = fragment.getUserTable();
-    if ( table == null ) {
+    if ( groupedRows != null ) {
+      return groupedRows.getNumberOfVisibleRows();
+    }
+    if ( pagedTable == null ) {
       return 0;
     }
-    return table.getNumberOfRows();
+    return pagedTable.getNumberOfRows();
   }
 
   public Row getRowAtIndex(int index) {
-    UserTable table = fragment.getUserTable();
-    if ( table == null ) {
+    if ( groupedRows != null ) {
+      return groupedRows.getRowAtIndex(index);
+    }
+    if ( pagedTable == null ) {
+      return null;
+    }
+    return pagedTable.getRowAtIndex(index);
+  }
+
+  /**
+   * Whether the row at the given index can be read without querying the
+   * database. This never accesses the database.
+   *
+   * @param index
+   * @return
+   */
+  boolean isRowInMemory(int index) {
+    if ( groupedRows != null ) {
+      // the index holds every row
+      return true;
+    }
+    return pagedTable != null && pagedTable.isRowInMemory(index);
+  }
+
+  /**
+   * Get the display text for the cell at the given row index and column.
+   *
+   * @param rowIndex
+   * @param cd
+   * @return the display text, or null if the row is unavailable.
+   */
+  String getDisplayTextOfData(int rowIndex, ColumnDefinition cd) {
+    if ( groupedRows != null ) {
+      return groupedRows.getDisplayTextOfData(rowIndex, cd.getElementKey());
+    }
+    if ( pagedTable == null ) {
+      return null;
+    }
+    return pagedTable.getDisplayTextOfData(rowIndex, cd.getType(), cd.getElementKey());
+  }
+
+  /**
+   * Get the display text for the cell at the given row index and spreadsheet
+   * column index, from the cache if it has already been formatted. This is
+   * what should be used while drawing.
+   *
+   * @param rowIndex
+   * @param columnIndex
+   * @return the display text; never null.
+   */
+  String getCachedDisplayText(int rowIndex, int columnIndex) {
+    return getDisplayTextCache().get(rowIndex, columnIndex);
+  }
+
+  /**
+   * @return the number of lookups so far of cells whose rows were not
+   *         available, and were drawn empty.
+   * @see DisplayTextCache#getUnavailableLookups()
+   */
+  long getUnavailableDisplayTextLookups() {
+    return getDisplayTextCache().getUnavailableLookups();
+  }
+
+  private DisplayTextCache getDisplayTextCache() {
+    if ( displayTextCache == null ) {
+      displayTextCache = new DisplayTextCache(new DisplayTextCache.Formatter() {
+        @Override
+        public String format(int rowIndex, int columnIndex) {
+          String text = getDisplayTextOfData(rowIndex, getColumnByIndex(columnIndex));
+          if ( text == null && getRowAtIndex(rowIndex) != null ) {
+            // the cell is empty, rather than its row unavailable
+            text = "";
+          }
+          return text;
+        }
+      }, getNumberOfRows(), header.length,
+          (pagedTable == null) ? PagedUserTable.DEFAULT_PAGE_SIZE : pagedTable.getPageSize(),
+          PagedUserTable.DEFAULT_MAX_CACHED_PAGES);
+    }
+    return displayTextCache;
+  }
+
+  /**
+   * Discard any cached display text for the given row.
+   *
+   * @param rowIndex
+   */
+  void invalidateDisplayText(int rowIndex) {
+    if ( displayTextCache != null ) {
+      displayTextCache.invalidateRow(rowIndex);
+    }
+  }
+
+  /**
+   * Re-read a single row after one of its cells has been edited, and discard
+   * the row's cached text and colors.
+   *
+   * @param rowIndex
+   * @param rowId
+   * @param elementKey
+   *          the column that was edited.
+   * @return false if the row could not be patched in place (the edit may have
+   *         moved it, or it could not be re-read), in which case the whole
+   *         table needs to be reloaded.
+   */
+  public boolean patchRow(int rowIndex, String rowId, String elementKey) {
+    if ( groupedRows != null || pagedTable == null || !pagedTable.isRowOrderIndependentOf(elementKey) ) {
+      return false;
+    }
+    if ( !pagedTable.refreshRow(rowIndex, rowId) ) {
+      return false;
+    }
+    invalidateRow(rowIndex);
+    return true;
+  }
+
+  /**
+   * Discard the cached text and colors of a row whose data has been re-read.
+   *
+   * @param rowIndex
+   */
+  public void invalidateRow(int rowIndex) {
+    ++preparedRowsGeneration;
+    invalidateDisplayText(rowIndex);
+    colorEvaluator.invalidateRow(rowIndex);
+  }
+
+  /**
+   * @return the number of rows read from the database at a time.
+   */
+  int getPageSize() {
+    return (pagedTable == null) ? PagedUserTable.DEFAULT_PAGE_SIZE : pagedTable.getPageSize();
+  }
+
+  /**
+   * Capture what is needed to compute the display text and colors of rows
+   * ahead of drawing them, on a background thread.
+   *
+   * @return the preparer, or null if the rows shown are those of a grouped
+   *         index, which are all in memory already.
+   */
+  RowPreparer newRowPreparer() {
+    if ( pagedTable == null || groupedRows != null ) {
       return null;
     }
-    return table.getRowAtIndex(index);
+    ColumnDefinition[] columns = new ColumnDefinition[header.length];
+    for (int j = 0; j < header.length; ++j) {
+      columns[j] = getColumnByIndex(j);
+    }
+    return new RowPreparer(pagedTable, columns, colorEvaluator.getRules(),
+        preparedRowsGeneration);
+  }
+
+  /**
+   * Store the display text and colors computed by a {@link RowPreparer} in
+   * the caches, unless they have been discarded since it was created.
+   *
+   * @param prepared
+   */
+  void publishPreparedRows(PreparedRows prepared) {
+    if ( prepared.generation != preparedRowsGeneration || groupedRows != null ) {
+      return;
+    }
+    colorEvaluator.publish(prepared.colors);
+    DisplayTextCache cache = getDisplayTextCache();
+    for (int i = 0; i < prepared.text.length; ++i) {
+      String[] rowText = prepared.text[i];
+      if ( rowText == null ) {
+        continue;
+      }
+      for (int j = 0; j < rowText.length; ++j) {
+        cache.put(prepared.firstRow + i, j, rowText[j]);
+      }
+    }
+  }
+
+  /**
+   * @return whether the rows shown can be re-ordered in memory; they cannot
+   *         while the groups of a grouped query are expanded.
+   */
+  public boolean canSortInMemory() {
+    return groupedRows == null && pagedTable != null;
+  }
+
+  /**
+   * Re-order the rows by the given column in memory, if all of the rows are
+   * held, and discard the cached text and colors, which are by row index.
+   * The rows are ordered in the direction of the query.
+   *
+   * @param cd
+   *          the column to sort by, or null to restore the query's order.
+   * @return false if not every row is held; the sort values must then be
+   *         read with {@link #readSortKeys(ColumnDefinition)}.
+   */
+  public boolean sortInMemory(ColumnDefinition cd) {
+    if ( !canSortInMemory() || !pagedTable.sortInMemory(cd, pagedTable.isQueryAscending()) ) {
+      return false;
+    }
+    invalidateOrder();
+    return true;
+  }
+
+  /**
+   * Read the sort values of every row. Called from a background thread.
+   *
+   * @param cd
+   * @return the values, or null if they could not be read.
+   */
+  public PagedUserTable.SortKeys readSortKeys(ColumnDefinition cd) {
+    return (pagedTable == null) ? null : pagedTable.readSortKeys(cd);
+  }
+
+  /**
+   * Re-order the rows by the values read by
+   * {@link #readSortKeys(ColumnDefinition)}, and discard the cached text and
+   * colors.
+   *
+   * @param sortKeys
+   * @return false if the rows changed since the values were read, in which
+   *         case the whole table needs to be reloaded.
+   */
+  public boolean applySort(PagedUserTable.SortKeys sortKeys) {
+    if ( !canSortInMemory()
+        || !pagedTable.applySort(sortKeys, pagedTable.isQueryAscending()) ) {
+      return false;
+    }
+    invalidateOrder();
+    return true;
+  }
+
+  private void invalidateOrder() {
+    ++preparedRowsGeneration;
+    if ( displayTextCache != null ) {
+      displayTextCache.invalidate();
+    }
+    colorEvaluator.invalidate();
+  }
+
+  /**
+   * Show the rows of the given group index in place of the query's rows, or
+   * go back to the query's rows if it is null. The number of rows may change,
+   * so the views drawing this table must be rebuilt, as must they whenever a
+   * group of the index is expanded or collapsed.
+   *
+   * @param index
+   */
+  public void setGroupedRowIndex(GroupedRowIndex index) {
+    groupedRows = index;
+    ++preparedRowsGeneration;
+    // sized by the number of rows; re-created on next use.
+    displayTextCache = null;
+    colorEvaluator.invalidate();
+  }
+
+  /**
+   * Evaluate the color rules for the given window of rows (and a margin
+   * around it) ahead of drawing them.
+   *
+   * @param firstRow
+   * @param lastRow
+   */
+  void prepareColorWindow(int firstRow, int lastRow) {
+    colorEvaluator.prepareWindow(firstRow, lastRow);
+  }
+
+  /**
+   * Set the color rules applied to the spreadsheet. These are evaluated once
+   * per row and shared by every pane that draws it.
+   *
+   * @param rowColorRuleGroup
+   * @param statusColorRuleGroup
+   * @param elementKeyToColorRuleGroup
+   */
+  void setColorRuleGroups(ColorRuleGroup rowColorRuleGroup, ColorRuleGroup statusColorRuleGroup,
+      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup) {
+    ColorRuleGroup[] columnColorRuleGroups = new ColorRuleGroup[header.length];
+    for (int i = 0; i < header.length; ++i) {
+      columnColorRuleGroups[i] = elementKeyToColorRuleGroup.get(spreadsheetIndexToElementKey[i]);
+    }
+    colorEvaluator.setColorRuleGroups(rowColorRuleGroup, statusColorRuleGroup,
+        columnColorRuleGroups, getNumberOfRows());
+  }
+
+  /**
+   * Get the foreground color the color rules give the cell.
+   *
+   * @param rowIndex
+   * @param columnIndex
+   *          index of the column in the spreadsheet's column order.
+   * @return the color, or {@link SpreadsheetColorEvaluator#NO_COLOR}.
+   */
+  int getCellForeground(int rowIndex, int columnIndex) {
+    return colorEvaluator.getForeground(rowIndex, columnIndex);
+  }
+
+  int getCellBackground(int rowIndex, int columnIndex) {
+    return colorEvaluator.getBackground(rowIndex, columnIndex);
   }
 
-  public UserTable getUserTable() {
-    return fragment.getUserTable();
+  /**
+   * Get the foreground color the status color rules give the row.
+   *
+   * @param rowIndex
+   * @return the color, or {@link SpreadsheetColorEvaluator#NO_COLOR}.
+   */
+  int getStatusForeground(int rowIndex) {
+    return colorEvaluator.getStatusForeground(rowIndex);
   }
 
-  public UserTable getCachedUserTable() {
-    return userTable;
+  int getStatusBackground(int rowIndex) {
+    return colorEvaluator.getStatusBackground(rowIndex);
   }
 
   // ///////////////////////////////////////////////////////////////////////////
@@ -163,8 +572,7 @@ public class SpreadsheetUserTable {
   // These need to be re-worked...
 
   public boolean hasData() {
-    UserTable table = fragment.getUserTable();
-    return !(table == null || (header.length == 0));
+    return !(pagedTable == null || (header.length == 0));
   }
 
   public static class SpreadsheetCell {
@@ -177,16 +585,13 @@ public class SpreadsheetUserTable {
 
   public SpreadsheetCell getSpreadsheetCell(Context context, CellInfo cellInfo) {
     SpreadsheetCell cell = new SpreadsheetCell();
-    userTable = getUserTable();
     cell.rowNum = cellInfo.rowId;
-    cell.row = userTable.getRowAtIndex(cellInfo.rowId);
+    cell.row = getRowAtIndex(cellInfo.rowId);
     cell.elementKey = cellInfo.elementKey;
     OrderedColumns orderedDefns = getColumnDefinitions();
     ColumnDefinition cd = orderedDefns.find(cellInfo.elementKey);
-    getTableId();
-    cell.displayText = userTable
-        .getDisplayTextOfData(cellInfo.rowId, cd.getType(), cellInfo.elementKey);
-    cell.value = cell.row.getDataByKey(cellInfo.elementKey);
+    cell.displayText = getDisplayTextOfData(cellInfo.rowId, cd);
+    cell.value = (cell.row == null) ? null : cell.row.getDataByKey(cellInfo.elementKey);
     return cell;
   }
 
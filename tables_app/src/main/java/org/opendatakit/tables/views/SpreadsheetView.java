@@ -16,24 +16,21 @@
 package org.opendatakit.tables.views;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.opendatakit.data.ColorRuleGroup;
-import org.opendatakit.data.utilities.ColumnUtil;
-import org.opendatakit.data.utilities.TableUtil;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.utilities.*;
-import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.tables.R;
-import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.TablePresentation;
 import org.opendatakit.tables.views.components.LockableHorizontalScrollView;
 import org.opendatakit.tables.views.components.LockableScrollView;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.view.ContextMenu;
 import android.view.MotionEvent;
 import android.view.View;
@@ -54,13 +51,18 @@ import android.widget.Toast;
  * @author sudar.sam@gmail.com
  * @author unknown
  */
-public class SpreadsheetView extends LinearLayout implements TabularView.Controller {
+public class SpreadsheetView extends LinearLayout implements TabularView.Controller,
+    SpreadsheetView.Display {
 
   private static final String TAG = "SpreadsheetView";
 
   private static final int MIN_CLICK_DURATION = 0;
   private static final int MIN_LONG_CLICK_DURATION = 1000;
 
+  // All of the panes' rendered tiles together may use up to this fraction of
+  // the heap.
+  private static final int TILE_CACHE_MEMORY_FRACTION = 32;
+
   private final Context context;
   private final Controller controller;
   private final SpreadsheetUserTable table;
@@ -84,6 +86,7 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
   private TabularView indexHeader;
   private TabularView mainData;
   private TabularView mainHeader;
+  private TabularView statusData;
 
   private View.OnTouchListener mainDataCellClickListener;
   private View.OnTouchListener mainHeaderCellClickListener;
@@ -92,6 +95,11 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
 
   private CellInfo lastHighlightedCellId;
 
+  private ScrollPrefetcher prefetcher;
+
+  private final TileCache.Budget tileBudget = new TileCache.Budget(
+      Runtime.getRuntime().maxMemory() / TILE_CACHE_MEMORY_FRACTION);
+
   public SpreadsheetView(Context context, Controller controller, SpreadsheetUserTable table) throws
       ServicesAvailabilityException {
     super(context);
@@ -109,30 +117,16 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
 
     // We have to initialize the items that will be shared across the
     // TabularView objects.
-    this.mElementKeyToColorRuleGroup = new HashMap<String, ColorRuleGroup>();
-
-    // if a custom font size is defined in the KeyValueStore, use that
-    // if not, use the general font size defined in preferences
-    String appName = table.getAppName();
-    DbHandle db = null;
-    try {
-      db = Tables.getInstance().getDatabase().openDatabase(appName);
-      String[] adminColumns = Tables.getInstance().getDatabase().getAdminColumns();
-      for (ColumnDefinition cd : table.getColumnDefinitions().getColumnDefinitions()) {
-        mElementKeyToColorRuleGroup.put(cd.getElementKey(),
-            table.getColumnColorRuleGroup(db, cd.getElementKey(), adminColumns));
-      }
-      mStatusColumnRuleGroup = ColorRuleGroup.getStatusColumnRuleGroup(Tables.getInstance(),
-          appName, db, table.getTableId(), adminColumns);
-      mTableColorRuleGroup = ColorRuleGroup.getTableColorRuleGroup(Tables.getInstance(),
-          appName, db, table.getTableId(), adminColumns);
-      completeColWidths = getColumnWidths(db);
-      fontSize = TableUtil.get().getSpreadsheetViewFontSize(Tables.getInstance(), appName, db, table.getTableId());
-    } finally {
-      if ( db != null ) {
-        Tables.getInstance().getDatabase().closeDatabase(appName, db);
-      }
-    }
+    // These were all loaded, along with the rest of the table's
+    // presentation, when the table was.
+    TablePresentation presentation = table.getPresentation();
+    this.mElementKeyToColorRuleGroup = presentation.getColumnColorRuleGroups();
+    mStatusColumnRuleGroup = presentation.getStatusColumnRuleGroup();
+    mTableColorRuleGroup = presentation.getTableColorRuleGroup();
+    completeColWidths = getColumnWidths();
+    fontSize = presentation.getSpreadsheetViewFontSize();
+    table.setColorRuleGroups(mTableColorRuleGroup, mStatusColumnRuleGroup,
+        mElementKeyToColorRuleGroup);
 
     initListeners();
     if (!table.isIndexed()) {
@@ -144,6 +138,7 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     }
     mainData.setOnTouchListener(mainDataCellClickListener);
     mainHeader.setOnTouchListener(mainHeaderCellClickListener);
+    initPrefetcher();
   }
 
   /**
@@ -375,9 +370,9 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
       colWidths = new int[1];
       colWidths[0] = completeColWidths[table.getColumnIndexOfElementKey(indexElementKey)];
       dataTable = TabularView.getIndexDataTable(context, this, table, elementKeysToDisplay,
-          colWidths, fontSize, this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          colWidths, fontSize);
       headerTable = TabularView.getIndexHeaderTable(context, this, table, elementKeysToDisplay,
-          colWidths, fontSize, this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          colWidths, fontSize);
     } else {
       int width = (indexElementKey == null || indexElementKey.length() == 0) ? table.getWidth() : table.getWidth() - 1;
       colWidths = new int[width];
@@ -392,9 +387,9 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
         addIndex++;
       }
       dataTable = TabularView.getMainDataTable(context, this, table, elementKeysToDisplay,
-          colWidths, fontSize, this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          colWidths, fontSize);
       headerTable = TabularView.getMainHeaderTable(context, this, table, elementKeysToDisplay,
-          colWidths, fontSize, this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+          colWidths, fontSize);
     }
 
     LockableScrollView dataScroll;
@@ -429,7 +424,8 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
 
     dataStatusScroll = new LockableScrollView(context);
     TabularView dataTable = TabularView.getStatusDataTable(context, this, table, colWidths,
-        fontSize, this.mElementKeyToColorRuleGroup, mStatusColumnRuleGroup);
+        fontSize);
+    statusData = dataTable;
     dataTable.setVerticalFadingEdgeEnabled(true);
     dataTable.setVerticalScrollBarEnabled(false);
     dataStatusScroll.addView(dataTable, new ViewGroup.LayoutParams(dataTable.getTableWidth(),
@@ -437,7 +433,7 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     dataStatusScroll.setVerticalFadingEdgeEnabled(true);
     dataStatusScroll.setHorizontalFadingEdgeEnabled(true);
     TabularView headerTable = TabularView.getStatusHeaderTable(context, this, table, colWidths,
-        fontSize, this.mElementKeyToColorRuleGroup, mTableColorRuleGroup);
+        fontSize);
     LinearLayout wrapper = new LinearLayout(context);
     wrapper.setOrientation(LinearLayout.VERTICAL);
     wrapper.addView(headerTable, headerTable.getTableWidth(), headerTable.getTableHeight());
@@ -450,6 +446,71 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     return wrapper;
   }
 
+  /**
+   * Redraw the cells of a single row after its data has changed. The row's
+   * text and colors must already have been invalidated in the
+   * {@link SpreadsheetUserTable}.
+   *
+   * @param rowIndex
+   */
+  @Override
+  public void invalidateRow(int rowIndex) {
+    mainData.invalidateRow(rowIndex);
+    if (indexData != null) {
+      indexData.invalidateRow(rowIndex);
+    }
+    if (statusData != null) {
+      statusData.invalidateRow(rowIndex);
+    }
+  }
+
+  /**
+   * Start reading rows ahead of the viewport as the data is scrolled. The
+   * other panes follow the main data pane, so it is the only one watched.
+   */
+  private void initPrefetcher() {
+    prefetcher = new ScrollPrefetcher(table, mainData.getRowPitch());
+    mainScroll.setOnScrollChangedListener(new LockableScrollView.OnScrollChangedListener() {
+      @Override
+      public void onScrollChanged(int scrollY, int viewportHeight) {
+        prefetcher.onScrollChanged(scrollY, viewportHeight);
+      }
+    });
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if (prefetcher != null) {
+      prefetcher.cancel();
+    }
+  }
+
+  @Override
+  protected void dispatchDraw(Canvas canvas) {
+    SpreadsheetDrawStats stats = SpreadsheetDrawStats.get();
+    long start = stats.beginFrame();
+    super.dispatchDraw(canvas);
+    stats.endFrame(start);
+    stats.drawOverlay(canvas, getWidth());
+  }
+
+  /**
+   * Redraw every cell after the rows have been re-ordered. The text and
+   * colors must already have been invalidated in the
+   * {@link SpreadsheetUserTable}.
+   */
+  @Override
+  public void invalidateContent() {
+    mainData.invalidateContent();
+    if (indexData != null) {
+      indexData.invalidateContent();
+    }
+    if (statusData != null) {
+      statusData.invalidateContent();
+    }
+  }
+
   /**
    * Gets the x translation of the scroll. This is in particular how far you
    * have scrolled to look at columns that do not begin onscreen.
@@ -477,6 +538,11 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     return result;
   }
 
+  @Override
+  public TileCache.Budget getTileBudget() {
+    return tileBudget;
+  }
+
   @Override
   public void onCreateMainDataContextMenu(ContextMenu menu) {
     try {
@@ -585,6 +651,25 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
     public void openDataContextMenu(View view);
   }
 
+  /**
+   * The operations common to {@link SpreadsheetView} and
+   * {@link SpreadsheetGridView}, so that a fragment can hold either.
+   */
+  public interface Display {
+
+    /**
+     * Redraw a row whose contents have changed.
+     *
+     * @param rowIndex
+     */
+    public void invalidateRow(int rowIndex);
+
+    /**
+     * Redraw every cell, e.g. after the rows have been re-ordered.
+     */
+    public void invalidateContent();
+  }
+
   /**
    * Get the column widths for the table. The values in the array match the
    * order specified in the column order.
@@ -593,19 +678,16 @@ public class SpreadsheetView extends LinearLayout implements TabularView.Control
    * consider if you need to be accessing column widths.
    *
    * @return
-   * @throws ServicesAvailabilityException
    */
-  public int[] getColumnWidths(DbHandle db) throws ServicesAvailabilityException {
-    // So what we want to do is go through and get the column widths for each
-    // column. A problem here is that there is no caching, and if you have a
-    // lot of columns you're really working the gut of the database.
+  public int[] getColumnWidths() {
+    return getColumnWidths(table);
+  }
+
+  static int[] getColumnWidths(SpreadsheetUserTable table) {
     int numberOfDisplayColumns = table.getNumberOfDisplayColumns();
     int[] columnWidths = new int[numberOfDisplayColumns];
-    String appName = table.getAppName();
 
-    Map<String, Integer> colWidths =
-            ColumnUtil
-                .get().getColumnWidths(Tables.getInstance(), appName, db, table.getTableId(), table.getColumnDefinitions());
+    Map<String, Integer> colWidths = table.getPresentation().getColumnWidths();
 
     for (int i = 0; i < numberOfDisplayColumns; i++) {
       ColumnDefinition cd = table.getColumnByIndex(i);
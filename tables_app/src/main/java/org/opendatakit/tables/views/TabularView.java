@@ -19,14 +19,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 import org.opendatakit.data.ColorGuide;
-import org.opendatakit.data.ColorGuideGroup;
-import org.opendatakit.data.ColorRuleGroup;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.logging.WebLogger;
 
 import android.content.Context;
@@ -36,7 +31,6 @@ import android.graphics.Paint;
 import android.util.DisplayMetrics;
 import android.view.ContextMenu;
 import android.view.View;
-import org.opendatakit.database.data.Row;
 
 /**
  * A view that draws a single table. A single table is essentially a grid of of
@@ -91,6 +85,12 @@ class TabularView extends View {
   private final Paint borderPaint;
   private final Paint highlightPaint;
 
+  /**
+   * Rendered tiles of this view's content, or null if there is nothing to
+   * cache.
+   */
+  private final TileCache mTileCache;
+
   /**
    * The abstraction of the table onto which this {@link TabularView} is
    * providing a view.
@@ -102,19 +102,6 @@ class TabularView extends View {
    */
   private final List<String> mElementKeys;
 
-  /**
-   * The map of element key to {@link ColorRuleGroup} objects for the columns of
-   * the table. This will be responsible for coloring the cells of a column.
-   */
-  private Map<String, ColorRuleGroup> mColumnColorRules;
-  private Map<String, ColorGuideGroup> mColumnColorGuideGroup;
-  /**
-   * The {@link ColorRuleGroup} object for the table. This will be responsible
-   * for things like determining row color.
-   */
-  private ColorRuleGroup mRowColorRuleGroup;
-  private ColorGuideGroup mRowColorGuideGroup;
-
   // trying to get the dimensions of the screen
   private final DisplayMetrics metrics;
 
@@ -134,7 +121,7 @@ class TabularView extends View {
    * are applied.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -143,16 +130,14 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getMainDataTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.MAIN_DATA, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        columnWidths, TableLayoutType.MAIN_DATA, fontSize);
   }
 
   /**
@@ -160,7 +145,7 @@ class TabularView extends View {
    * applied.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -169,16 +154,14 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getMainHeaderTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.MAIN_HEADER, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        columnWidths, TableLayoutType.MAIN_HEADER, fontSize);
   }
 
   /**
@@ -186,7 +169,7 @@ class TabularView extends View {
    * applied.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -195,16 +178,14 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getIndexDataTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.INDEX_DATA, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        columnWidths, TableLayoutType.INDEX_DATA, fontSize);
   }
 
   /**
@@ -212,7 +193,7 @@ class TabularView extends View {
    * are applied.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -221,16 +202,14 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getIndexHeaderTable(Context context, Controller controller,
       SpreadsheetUserTable table, List<String> elementKeysToDisplay, int[] columnWidths,
-      int fontSize, Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int fontSize) {
     return new TabularView(context, controller, table, elementKeysToDisplay,
         DEFAULT_FOREGROUND_COLOR, DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR,
-        columnWidths, TableLayoutType.INDEX_HEADER, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        columnWidths, TableLayoutType.INDEX_HEADER, fontSize);
   }
 
   /**
@@ -238,7 +217,7 @@ class TabularView extends View {
    * No data is displayed in the status table.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -246,20 +225,17 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getStatusDataTable(Context context, Controller controller,
-      SpreadsheetUserTable table, int[] columnWidths, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      SpreadsheetUserTable table, int[] columnWidths, int fontSize) {
     List<String> dummyElementKeys = new ArrayList<String>();
     // We need to make this a size one so that the status table knows there's
     // something to display.
     dummyElementKeys.add("data");
     return new TabularView(context, controller, table, dummyElementKeys, DEFAULT_FOREGROUND_COLOR,
         DEFAULT_DATA_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths, TableLayoutType.STATUS_DATA,
-        fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        fontSize);
   }
 
   /**
@@ -267,7 +243,7 @@ class TabularView extends View {
    * data is displayed in the status column.
    * 
    * @see TabularView#TabularView(Context, TabularView.Controller, SpreadsheetUserTable,
-   *      List, int, int, int, int[], TabularView.TableLayoutType, int, Map, Map)
+   *      List, int, int, int, int[], TabularView.TableLayoutType, int)
    * @param context
    * @param controller
    * @param tp
@@ -275,20 +251,17 @@ class TabularView extends View {
    * @param columnWidths
    * @param fontSize
    * @param elementKeyToColumnProperties
-   * @param elementKeyToColorRuleGroup
-   * @param rowColorRuleGroup
    * @return
    */
   public static TabularView getStatusHeaderTable(Context context, Controller controller,
-      SpreadsheetUserTable table, int[] columnWidths, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      SpreadsheetUserTable table, int[] columnWidths, int fontSize) {
     List<String> dummyElementKeys = new ArrayList<String>();
     // We need to make this a size one so that the status table knows there's
     // something to display.
     dummyElementKeys.add("header");
     return new TabularView(context, controller, table, dummyElementKeys, DEFAULT_FOREGROUND_COLOR,
         DEFAULT_HEADER_BACKGROUND_COLOR, DEFAULT_BORDER_COLOR, columnWidths,
-        TableLayoutType.STATUS_HEADER, fontSize, elementKeyToColorRuleGroup, rowColorRuleGroup);
+        TableLayoutType.STATUS_HEADER, fontSize);
   }
 
   /**
@@ -323,14 +296,10 @@ class TabularView extends View {
    *          mapping of element key to the corresponding
    *          {@link ColumnDefinition} object. Must be all the columns, NOT just
    *          those displayed in thie TabularView.
-   * @param elementKeyToColorRuleGroup
-   *          mapping of element key to their corresponding
-   *          {@link ColorRuleGroup} objects.
    */
   private TabularView(Context context, Controller controller, SpreadsheetUserTable table,
       List<String> elementKeys, int defaultForegroundColor, int defaultBackgroundColor,
-      int borderColor, int[] columnWidths, TableLayoutType type, int fontSize,
-      Map<String, ColorRuleGroup> elementKeyToColorRuleGroup, ColorRuleGroup rowColorRuleGroup) {
+      int borderColor, int[] columnWidths, TableLayoutType type, int fontSize) {
     super(context);
     this.controller = controller;
     this.mTable = table;
@@ -350,25 +319,7 @@ class TabularView extends View {
           "Unrecognized TableType in constructor: " + this.type.name());
       this.mNumberOfRows = this.mTable.getNumberOfRows();
     }
-    this.mColumnColorRules = elementKeyToColorRuleGroup;
-
-    this.mRowColorRuleGroup = rowColorRuleGroup;
-
-    // Initialized the ColorGuideGroups
-    if (mTable != null) {
-      this.mRowColorGuideGroup = new ColorGuideGroup(mRowColorRuleGroup, mTable.getUserTable());
-
-      Set<String> keys = elementKeyToColorRuleGroup.keySet();
-      for(String key: keys){
-        ColorRuleGroup crg = elementKeyToColorRuleGroup.get(key);
-        if (crg != null) {
-          if (this.mColumnColorGuideGroup == null) {
-            this.mColumnColorGuideGroup = new TreeMap<String, ColorGuideGroup>();
-          }
-          this.mColumnColorGuideGroup.put(key, new ColorGuideGroup(crg, mTable.getUserTable()));
-        }
-      }
-    }
+
 
     rowHeight = fontSize + ROW_HEIGHT_PADDING;
     highlightedCellInfo = null;
@@ -411,6 +362,21 @@ class TabularView extends View {
         total += BORDER_WIDTH + columnWidths[i];
       }
     }
+    if (this.mNumberOfRows > 0 && this.mElementKeys.size() > 0) {
+      this.mTileCache = new TileCache(new TileCache.Renderer() {
+        @Override
+        public boolean renderRegion(Canvas canvas, int left, int top, int right, int bottom) {
+          return drawRegion(canvas, left, top, right, bottom);
+        }
+
+        @Override
+        public boolean isRegionAvailable(int top, int bottom) {
+          return isHeader() || areRowsInMemory(top, bottom);
+        }
+      }, totalWidth, totalHeight, defaultBackgroundColor, controller.getTileBudget());
+    } else {
+      this.mTileCache = null;
+    }
   }
 
   public int getTableHeight() {
@@ -451,6 +417,69 @@ class TabularView extends View {
     invalidate();
   }
 
+  /**
+   * Drop any rendered content of the given row so that it is redrawn from the
+   * (possibly changed) data.
+   *
+   * @param rowIndex
+   */
+  public void invalidateRow(int rowIndex) {
+    if (isHeader()) {
+      return;
+    }
+    if (mTileCache != null) {
+      int top = rowIndex * (rowHeight + BORDER_WIDTH);
+      mTileCache.invalidateRows(top, top + rowHeight + 2 * BORDER_WIDTH);
+    }
+    invalidate();
+  }
+
+  /**
+   * @return the vertical distance, in pixels, from one row to the next.
+   */
+  int getRowPitch() {
+    return rowHeight + BORDER_WIDTH;
+  }
+
+  /**
+   * Drop all rendered content so that it is redrawn from the data, e.g. after
+   * the colors have changed.
+   */
+  public void invalidateContent() {
+    if (mTileCache != null) {
+      mTileCache.invalidate();
+    }
+    invalidate();
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if (mTileCache != null) {
+      mTileCache.invalidate();
+    }
+  }
+
+  /**
+   * @return whether every row within the given vertical range can be drawn
+   *         without reading it from the database.
+   */
+  private boolean areRowsInMemory(int top, int bottom) {
+    int first = top / (rowHeight + BORDER_WIDTH);
+    int last = Math.min(mNumberOfRows - 1, (bottom - 1) / (rowHeight + BORDER_WIDTH));
+    for (int i = first; i <= last; ++i) {
+      if (!mTable.isRowInMemory(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isHeader() {
+    return this.type == TableLayoutType.INDEX_HEADER || this.type == TableLayoutType.MAIN_HEADER
+        || this.type == TableLayoutType.STATUS_HEADER;
+  }
+
   @Override
   public void onDraw(Canvas canvas) {
     // We don't want to do anything if we're not responsible for drawing any
@@ -459,9 +488,51 @@ class TabularView extends View {
       return;
     }
 
-    // drawing the background--so you're redrawing the background every time...
-    canvas.drawRect(0, 0, totalWidth, totalHeight, bgPaint);
+    // Work out which part of the table is on screen. Headers are only
+    // scrolled horizontally.
+    int xScroll = Math.max(0, controller.getMainScrollX());
+    int yScroll = Math.max(0, controller.getMainScrollY());
+    int left = Math.min(xScroll, totalWidth);
+    int right = Math.min(xScroll + metrics.widthPixels, totalWidth);
+    int top;
+    int bottom;
+    if (isHeader()) {
+      top = 0;
+      bottom = totalHeight;
+    } else {
+      top = Math.min(yScroll, totalHeight);
+      bottom = Math.min(yScroll + metrics.heightPixels, totalHeight);
+    }
+    if (right <= left || bottom <= top) {
+      return;
+    }
+
+    if (mTileCache != null) {
+      mTileCache.draw(canvas, left, top, right, bottom);
+    } else {
+      bgPaint.setColor(this.defaultBackgroundColor);
+      canvas.drawRect(left, top, right, bottom, bgPaint);
+      drawRegion(canvas, left, top, right, bottom);
+    }
+
+    // highlighting cell (if necessary). This is drawn over the cached tiles
+    // so that moving the highlight does not require re-rendering them.
+    if (highlightedCellInfo != null) {
+      int rowNum = highlightedCellInfo.rowId;
+      int colPos = highlightedCellInfo.colPos;
+      highlightCell(canvas, xs[colPos], ((rowNum + 1) * BORDER_WIDTH) + (rowNum * rowHeight),
+          columnWidths[colPos]);
+    }
+  }
 
+  /**
+   * Draw the borders and cells that fall within the given rectangle of the
+   * table. The background is assumed to have already been filled.
+   *
+   * @return false if the rows of some of the cells were not available, and
+   *         the cells were drawn empty.
+   */
+  private boolean drawRegion(Canvas canvas, int left, int top, int right, int bottom) {
     /*
      * SS: I am going to try and fix this method. There are several things that
      * need to be considered. First, a spreadsheet view is composed of several
@@ -580,14 +651,6 @@ class TabularView extends View {
      * | | | |leftmost | | | | | | |
      */
 
-    int xScroll = controller.getMainScrollX();
-    int yScroll = controller.getMainScrollY();
-    if (xScroll < 0) {
-      xScroll = 0;
-    }
-    if (yScroll < 0) {
-      yScroll = 0;
-    }
     int topmost;
     int topmostBorder;
     int leftmostBorder;
@@ -603,15 +666,14 @@ class TabularView extends View {
     // different procedures if we are dealing with a header.
     // First we will get the correct topmost row. If this is a header of any
     // sort, the first row should be 0.
-    if (this.type == TableLayoutType.INDEX_HEADER || this.type == TableLayoutType.MAIN_HEADER
-        || this.type == TableLayoutType.STATUS_HEADER) {
+    if (isHeader()) {
       topmost = 0;
       bottommost = 0;
     } else {
       // Otherwise, we need to compute the value.
       // First let's get the row.
-      topmost = yScroll / (BORDER_WIDTH + rowHeight);
-      bottommost = (yScroll + metrics.heightPixels) / (BORDER_WIDTH + rowHeight);
+      topmost = top / (BORDER_WIDTH + rowHeight);
+      bottommost = (bottom - 1) / (BORDER_WIDTH + rowHeight);
       if (bottommost >= this.mNumberOfRows) {
         bottommost = this.mNumberOfRows - 1; // don't want to go beyond the last
                                              // row
@@ -623,12 +685,12 @@ class TabularView extends View {
     bottomBottommost = topBottommostBorder + BORDER_WIDTH + rowHeight;
     // And now let's get the correct column. The math here can't be as simple,
     // b/c unlike rowHeight, columnWidth is not a fixed unit.
-    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(xScroll);
+    int indexOfLeftmostColumn = getLeftmostColumnBasedOnXScroll(left);
     @SuppressWarnings("unused")
     String leftmostElementKey = this.mElementKeys.get(indexOfLeftmostColumn);
     leftLeftmost = xs[indexOfLeftmostColumn];
     leftmostBorder = leftLeftmost - BORDER_WIDTH;
-    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(xScroll + metrics.widthPixels);
+    int indexOfRightmostColumn = getLeftmostColumnBasedOnXScroll(right - 1);
     @SuppressWarnings("unused")
     String rightmostElementKey = this.mElementKeys.get(indexOfRightmostColumn);
     leftRightmost = xs[indexOfRightmostColumn];
@@ -655,23 +717,22 @@ class TabularView extends View {
       userDataIndex[j] = (idx == null) ? -1 : idx;
     }
 
+    if (this.type == TableLayoutType.STATUS_DATA || this.type == TableLayoutType.INDEX_DATA
+        || this.type == TableLayoutType.MAIN_DATA) {
+      this.mTable.prepareColorWindow(topmost, bottommost);
+    }
+    if (bottommost >= topmost) {
+      SpreadsheetDrawStats.get().recordDrawn(bottommost - topmost + 1,
+          (bottommost - topmost + 1) * (indexOfRightmostColumn - indexOfLeftmostColumn + 1));
+    }
+
+    long unavailableBefore = this.mTable.getUnavailableDisplayTextLookups();
+
     // drawing the cells
     int y = topTopmost;
     for (int i = topmost; i < bottommost + 1; i++) {
-      Row theRow = null;
       int theRowIndex = i;
 
-      // we only need to fetch this once for a given row...
-      ColorGuide rowGuide = null;
-      if (this.type == TableLayoutType.STATUS_DATA || this.type == TableLayoutType.INDEX_DATA
-          || this.type == TableLayoutType.MAIN_DATA) {
-        // these are the only cases (below) where this value is used...
-        theRow = this.mTable.getRowAtIndex(theRowIndex);
-        //rowGuide = mRowColorRuleGroup.getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-        rowGuide = mRowColorGuideGroup
-            .getColorGuideForRowId(theRow.getDataByKey(DataTableColumns.ID));
-      }
-
       for (int j = indexOfLeftmostColumn; j < indexOfRightmostColumn + 1; j++) {
 
         String datum = null;
@@ -680,10 +741,7 @@ class TabularView extends View {
         } else if (this.type == TableLayoutType.INDEX_HEADER || this.type == TableLayoutType.MAIN_HEADER) {
           datum = this.mTable.getHeader(userDataIndex[j]);
         } else if (this.type == TableLayoutType.INDEX_DATA || this.type == TableLayoutType.MAIN_DATA) {
-
-          ColumnDefinition cd = this.mTable.getColumnByIndex(userDataIndex[j]);
-          datum = this.mTable.getCachedUserTable()
-              .getDisplayTextOfData(theRowIndex, cd.getType(), cd.getElementKey());
+          datum = this.mTable.getCachedDisplayText(theRowIndex, userDataIndex[j]);
         } else {
           WebLogger.getLogger(this.mTable.getAppName()).e(TAG,
               "unrecognized table type: " + this.type.name());
@@ -694,39 +752,26 @@ class TabularView extends View {
         }
         int foregroundColor = this.defaultForegroundColor;
         int backgroundColor = this.defaultBackgroundColor;
+        // The color store has already resolved column rules over row rules.
+        int ruleForeground = SpreadsheetColorEvaluator.NO_COLOR;
+        int ruleBackground = SpreadsheetColorEvaluator.NO_COLOR;
         if (type == TableLayoutType.INDEX_DATA || type == TableLayoutType.MAIN_DATA) {
-          // First we check for a row rule.
-          if (rowGuide != null) {
-            foregroundColor = rowGuide.getForeground();
-            backgroundColor = rowGuide.getBackground();
-          }
-          //ColorGuide columnGuide = mColumnColorRules.get(this.mElementKeys.get(j)).getColorGuide(this.mTable.getColumnDefinitions(), theRow);
-          ColorGuide columnGuide = mColumnColorGuideGroup.get(this.mElementKeys.get(j))
-              .getColorGuideForRowId(theRow.getDataByKey(DataTableColumns.ID));
-          // Override the role rule if a column rule matched.
-          if (columnGuide != null) {
-            foregroundColor = columnGuide.getForeground();
-            backgroundColor = columnGuide.getBackground();
-          }
+          ruleForeground = this.mTable.getCellForeground(theRowIndex, userDataIndex[j]);
+          ruleBackground = this.mTable.getCellBackground(theRowIndex, userDataIndex[j]);
+        } else if (type == TableLayoutType.STATUS_DATA) {
+          ruleForeground = this.mTable.getStatusForeground(theRowIndex);
+          ruleBackground = this.mTable.getStatusBackground(theRowIndex);
         }
-        if (type == TableLayoutType.STATUS_DATA) {
-          if (rowGuide != null) {
-            foregroundColor = rowGuide.getForeground();
-            backgroundColor = rowGuide.getBackground();
-          }
+        if (ruleForeground != SpreadsheetColorEvaluator.NO_COLOR) {
+          foregroundColor = ruleForeground;
+          backgroundColor = ruleBackground;
         }
         drawCell(canvas, xs[j], y, datum, backgroundColor, foregroundColor, columnWidths[j]);
       }
       y += rowHeight + BORDER_WIDTH;
       /** adding to try and fix draw **/
     }
-    // highlighting cell (if necessary)
-    if (highlightedCellInfo != null) {
-      int rowNum = highlightedCellInfo.rowId;
-      int colPos = highlightedCellInfo.colPos;
-      highlightCell(canvas, xs[colPos], ((rowNum + 1) * BORDER_WIDTH) + (rowNum * rowHeight),
-          columnWidths[colPos]);
-    }
+    return this.mTable.getUnavailableDisplayTextLookups() == unavailableBefore;
   }
 
   /**
@@ -832,5 +877,11 @@ class TabularView extends View {
      * @return
      */
     int getMainScrollY();
+
+    /**
+     * @return the budget for rendered tiles that this view shares with the
+     *         other panes of the spreadsheet.
+     */
+    TileCache.Budget getTileBudget();
   }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * Offscreen render cache for a {@link TabularView}.
+ * <p>
+ * The view's content is divided into fixed-size square tiles. A tile is
+ * rendered into a bitmap the first time any part of it is on screen, and
+ * afterwards is simply copied onto the view's canvas. Tiles whose content
+ * changes are dropped and re-rendered when next drawn. A tile whose content
+ * is not all available yet is drawn straight onto the view's canvas, without
+ * a bitmap, until it is. The total size of the tile bitmaps is held under a
+ * byte budget, shared with the other panes of the same spreadsheet, by
+ * dropping the least recently drawn tiles of any of them.
+ * <p>
+ * Tiles are rendered and drawn from the view's onDraw, and invalidated in
+ * response to changes the UI thread applies, so all of its state, bitmaps
+ * included, lives on the UI thread; it has no locking.
+ */
+class TileCache {
+
+  /**
+   * Renders part of the view's content.
+   */
+  interface Renderer {
+    /**
+     * Draw the content within the given rectangle, which is in the view's
+     * coordinates. The canvas is already translated and has been filled with
+     * the background color.
+     *
+     * @return false if some of the content was not available and was drawn
+     *         as a placeholder, so that the rendering must not be kept.
+     */
+    boolean renderRegion(Canvas canvas, int left, int top, int right, int bottom);
+
+    /**
+     * Whether all of the content within the given vertical range can be
+     * drawn now. Must be cheap; it is asked before rendering each tile.
+     */
+    boolean isRegionAvailable(int top, int bottom);
+  }
+
+  /**
+   * A byte budget shared by the tile caches of the panes of one spreadsheet.
+   * When it runs out, the least recently drawn tile of any of them is
+   * dropped, so the panes split it according to how much of each is drawn.
+   */
+  static final class Budget {
+    private final long mMaxBytes;
+    private final List<TileCache> mCaches = new ArrayList<TileCache>();
+    private long mBytes = 0;
+    private long mClock = 0;
+
+    Budget(long maxBytes) {
+      this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return false if no cache holds a tile.
+     */
+    private boolean evictLeastRecentlyUsed() {
+      TileCache eldestCache = null;
+      int eldestIndex = -1;
+      long eldestUsed = Long.MAX_VALUE;
+      for (TileCache cache : mCaches) {
+        for (int i = 0; i < cache.mResident.size(); ++i) {
+          long used = cache.mResident.get(i).lastUsed;
+          if (used < eldestUsed) {
+            eldestCache = cache;
+            eldestIndex = i;
+            eldestUsed = used;
+          }
+        }
+      }
+      if (eldestCache == null) {
+        return false;
+      }
+      eldestCache.evict(eldestIndex);
+      return true;
+    }
+  }
+
+  /** Edge length, in pixels, of a tile. */
+  static final int TILE_SIZE = 256;
+
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private final Renderer mRenderer;
+  private final int mTotalWidth;
+  private final int mTotalHeight;
+  private final int mBackgroundColor;
+  private final Budget mBudget;
+
+  /** tile row -> tile column -> tile, allocated on demand */
+  private final Tile[][] mGrid;
+  private final int mTileColumns;
+  /** the tiles that currently hold a bitmap */
+  private final List<Tile> mResident = new ArrayList<Tile>();
+  /**
+   * The tiles, by row * columns + column, that were last drawn directly and
+   * complete even though their content was not reported available; they are
+   * rendered into a bitmap when next drawn.
+   */
+  private final BitSet mCompleteWhenDirect = new BitSet();
+  /**
+   * Whether bitmaps may be recycled as soon as they are dropped. This is only
+   * so while drawing to a software canvas, which copies the pixels at once; a
+   * hardware-accelerated canvas records a reference to the bitmap that is
+   * drawn later, on another thread.
+   */
+  private boolean mMayRecycle = true;
+
+  private static final class Tile {
+    final int row;
+    final int col;
+    final Bitmap bitmap;
+    final int bytes;
+    long lastUsed;
+
+    Tile(int row, int col, Bitmap bitmap) {
+      this.row = row;
+      this.col = col;
+      this.bitmap = bitmap;
+      this.bytes = bitmap.getWidth() * bitmap.getHeight() * BYTES_PER_PIXEL;
+    }
+  }
+
+  TileCache(Renderer renderer, int totalWidth, int totalHeight, int backgroundColor,
+      Budget budget) {
+    this.mRenderer = renderer;
+    this.mTotalWidth = totalWidth;
+    this.mTotalHeight = totalHeight;
+    this.mBackgroundColor = backgroundColor;
+    this.mBudget = budget;
+    this.mTileColumns = (totalWidth + TILE_SIZE - 1) / TILE_SIZE;
+    this.mGrid = new Tile[(totalHeight + TILE_SIZE - 1) / TILE_SIZE][];
+    budget.mCaches.add(this);
+  }
+
+  /**
+   * Draw the given region of the view from cached tiles, rendering any that
+   * are missing.
+   */
+  void draw(Canvas canvas, int left, int top, int right, int bottom) {
+    mMayRecycle = !canvas.isHardwareAccelerated();
+    int firstRow = Math.max(0, top / TILE_SIZE);
+    int lastRow = Math.min(mGrid.length - 1, (bottom - 1) / TILE_SIZE);
+    int firstCol = Math.max(0, left / TILE_SIZE);
+    int lastCol = Math.min(mTileColumns - 1, (right - 1) / TILE_SIZE);
+    for (int row = firstRow; row <= lastRow; ++row) {
+      for (int col = firstCol; col <= lastCol; ++col) {
+        int x = col * TILE_SIZE;
+        int y = row * TILE_SIZE;
+        Tile tile = getTile(row, col);
+        if (tile != null) {
+          canvas.drawBitmap(tile.bitmap, x, y, null);
+        } else {
+          // could not be cached, or not all there yet; draw it directly.
+          int width = Math.min(TILE_SIZE, mTotalWidth - x);
+          int height = Math.min(TILE_SIZE, mTotalHeight - y);
+          canvas.save();
+          canvas.clipRect(x, y, x + width, y + height);
+          canvas.drawColor(mBackgroundColor);
+          boolean complete = mRenderer.renderRegion(canvas, x, y, x + width, y + height);
+          canvas.restore();
+          mCompleteWhenDirect.set(row * mTileColumns + col, complete);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the tiles that overlap the given vertical range so that they are
+   * re-rendered when next drawn.
+   */
+  void invalidateRows(int top, int bottom) {
+    int firstRow = Math.max(0, top / TILE_SIZE);
+    int lastRow = Math.min(mGrid.length - 1, (bottom - 1) / TILE_SIZE);
+    for (int i = mResident.size() - 1; i >= 0; --i) {
+      Tile tile = mResident.get(i);
+      if (tile.row >= firstRow && tile.row <= lastRow) {
+        evict(i);
+      }
+    }
+  }
+
+  /**
+   * Drop all tiles.
+   */
+  void invalidate() {
+    for (int i = mResident.size() - 1; i >= 0; --i) {
+      evict(i);
+    }
+    mCompleteWhenDirect.clear();
+  }
+
+  private Tile getTile(int row, int col) {
+    Tile[] tileRow = mGrid[row];
+    Tile tile = (tileRow == null) ? null : tileRow[col];
+    if (tile == null) {
+      tile = renderTile(row, col);
+      if (tile == null) {
+        return null;
+      }
+    }
+    tile.lastUsed = ++mBudget.mClock;
+    return tile;
+  }
+
+  private Tile renderTile(int row, int col) {
+    int x = col * TILE_SIZE;
+    int y = row * TILE_SIZE;
+    int width = Math.min(TILE_SIZE, mTotalWidth - x);
+    int height = Math.min(TILE_SIZE, mTotalHeight - y);
+    long bytes = (long) width * height * BYTES_PER_PIXEL;
+    if (width <= 0 || height <= 0 || bytes > mBudget.mMaxBytes) {
+      return null;
+    }
+    int key = row * mTileColumns + col;
+    if (!mCompleteWhenDirect.get(key) && !mRenderer.isRegionAvailable(y, y + height)) {
+      // it would have to be drawn again once its content is there; don't
+      // spend a bitmap on it.
+      return null;
+    }
+    mCompleteWhenDirect.clear(key);
+    while (mBudget.mBytes + bytes > mBudget.mMaxBytes) {
+      if (!mBudget.evictLeastRecentlyUsed()) {
+        break;
+      }
+    }
+    Bitmap bitmap;
+    try {
+      bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    } catch (OutOfMemoryError e) {
+      // give back everything we hold and draw uncached.
+      invalidate();
+      return null;
+    }
+    bitmap.eraseColor(mBackgroundColor);
+    Canvas canvas = new Canvas(bitmap);
+    canvas.translate(-x, -y);
+    if (!mRenderer.renderRegion(canvas, x, y, x + width, y + height)) {
+      // some of it went missing after all; draw it directly instead.
+      recycle(bitmap);
+      return null;
+    }
+
+    Tile tile = new Tile(row, col, bitmap);
+    if (mGrid[row] == null) {
+      mGrid[row] = new Tile[mTileColumns];
+    }
+    mGrid[row][col] = tile;
+    mResident.add(tile);
+    mBudget.mBytes += tile.bytes;
+    return tile;
+  }
+
+  private void evict(int residentIndex) {
+    Tile tile = mResident.remove(residentIndex);
+    mGrid[tile.row][tile.col] = null;
+    mBudget.mBytes -= tile.bytes;
+    recycle(tile.bitmap);
+  }
+
+  /**
+   * Free a bitmap's pixels now if that is safe, and otherwise leave it to the
+   * garbage collector. A tile dropped in the middle of drawing may already
+   * have been drawn in this frame; that is only harmless on a software canvas
+   * (SpreadsheetView currently forces a software layer). Under hardware
+   * acceleration, recycling it would fail with "trying to use a recycled
+   * bitmap" when the frame is rendered.
+   */
+  private void recycle(Bitmap bitmap) {
+    if (mMayRecycle) {
+      bitmap.recycle();
+    }
+  }
+}
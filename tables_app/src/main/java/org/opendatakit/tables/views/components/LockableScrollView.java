@@ -35,6 +35,7 @@ public class LockableScrollView extends ScrollView {
      * http://stackoverflow.com/questions/8181828/android-detect-when-scrollview-stops-scrolling
      */
     private OnScrollStoppedListener onScrollStoppedListener;
+    private OnScrollChangedListener onScrollChangedListener;
     private int initialPosition;
     private Runnable scrollerTask;
     
@@ -87,6 +88,19 @@ public class LockableScrollView extends ScrollView {
       onScrollStoppedListener = listener;
     }
     
+    public void setOnScrollChangedListener(
+        LockableScrollView.OnScrollChangedListener listener) {
+      onScrollChangedListener = listener;
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+      super.onScrollChanged(l, t, oldl, oldt);
+      if (onScrollChangedListener != null) {
+        onScrollChangedListener.onScrollChanged(t, getHeight());
+      }
+    }
+
     public void startScrollerTask() {
       initialPosition = getScrollY();
       LockableScrollView.this.postDelayed(scrollerTask, newCheck);
@@ -95,4 +109,12 @@ public class LockableScrollView extends ScrollView {
     public interface OnScrollStoppedListener {
       void onScrollStopped();
     }
+
+    /**
+     * Notified of every change to the vertical scroll position, including
+     * those of a fling.
+     */
+    public interface OnScrollChangedListener {
+      void onScrollChanged(int scrollY, int viewportHeight);
+    }
 }
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Where the time goes in the calls of the web views' data bridge.
+ * <p>
+ * Each call is broken down into stages:
+ * <ul>
+ * <li>queueWait: from when the request was queued until the executor started
+ * it,</li>
+ * <li>db: from then until its rows were read (for other calls, until its
+ * response was ready),</li>
+ * <li>metadata: extending the query's metadata, e.g. with the colors,</li>
+ * <li>serialize: from then until its response was serialized, along with the
+ * size of the response,</li>
+ * <li>backpressure: waiting for room in the {@link ResponseChannel},</li>
+ * <li>delivery: from when the response was queued until the web view took
+ * it,</li>
+ * <li>total: all of the above.</li>
+ * </ul>
+ * The stages are aggregated into histograms per table and action, which are
+ * available to the page (see {@link OdkTablesIf#getBridgeDiagnostics()}) and
+ * are written to the tables debug folder every
+ * {@link #SUMMARY_INTERVAL_MILLIS}.
+ * <p>
+ * The timings of a call are begun on the executor's thread, which then
+ * carries them until its response is queued. There is one instance per
+ * process. Thread safe.
+ */
+public class BridgeLatencyStats {
+
+  private static final String TAG = "BridgeLatencyStats";
+
+  /** How often a summary is written to the debug folder, at most. */
+  public static final long SUMMARY_INTERVAL_MILLIS = 60000L;
+
+  private static final String STATS_FILE_NAME = "bridgeLatencyStats.json";
+
+  static final String ACTION_QUERY = "query";
+  static final String ACTION_PREPARED_QUERY = "preparedQuery";
+  /** any call of the executor that is not a query */
+  static final String ACTION_OTHER = "other";
+
+  private static final BridgeLatencyStats sInstance = new BridgeLatencyStats();
+
+  public static BridgeLatencyStats get() {
+    return sInstance;
+  }
+
+  /**
+   * The timings of a single call. Each mark is the value of
+   * {@link System#nanoTime()}, or 0 if the call did not reach that stage.
+   */
+  static final class CallTimings {
+    final String appName;
+    final long queuedNanos;
+    final long startNanos;
+    String tableId;
+    String action = ACTION_OTHER;
+    long metadataStartNanos = 0;
+    long metadataEndNanos = 0;
+    long readyNanos = 0;
+    int responseChars = 0;
+    long backpressureNanos = 0;
+    long deliveryNanos = 0;
+    /** whether the response was queued for the web view */
+    boolean handedOff = false;
+
+    CallTimings(String appName, long queuedNanos, long startNanos) {
+      this.appName = appName;
+      this.queuedNanos = queuedNanos;
+      this.startNanos = startNanos;
+    }
+
+    void markMetadataStart() {
+      metadataStartNanos = System.nanoTime();
+    }
+
+    void markMetadataEnd() {
+      metadataEndNanos = System.nanoTime();
+    }
+
+    void markReady(int responseChars) {
+      this.readyNanos = System.nanoTime();
+      this.responseChars = responseChars;
+    }
+
+    /**
+     * Note that the web view took the response, and record the call.
+     *
+     * @param deliveryNanos
+     *          the time the response spent waiting for the web view.
+     */
+    void delivered(long deliveryNanos) {
+      this.deliveryNanos = deliveryNanos;
+      sInstance.record(this);
+    }
+  }
+
+  /**
+   * A histogram with buckets of exponentially increasing width: bucket i
+   * counts the values v with 2^(i-1) <= v < 2^i, and bucket 0 counts zeros.
+   */
+  static final class Histogram {
+    private static final int BUCKETS = 40;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    void record(long value) {
+      value = Math.max(0, value);
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+      ++mCounts[bucket];
+      ++mCount;
+      mSum += value;
+      mMax = Math.max(mMax, value);
+    }
+
+    long getCount() {
+      return mCount;
+    }
+
+    /**
+     * @param percentile
+     *          between 0 and 100.
+     * @return the upper bound of the bucket holding the percentile, or 0 if
+     *         nothing has been recorded.
+     */
+    long getPercentile(double percentile) {
+      if (mCount == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mCount));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+        seen += mCounts[i];
+        if (seen >= rank) {
+          long upperBound = (i == 0) ? 0 : (1L << i) - 1;
+          return Math.min(upperBound, mMax);
+        }
+      }
+      return mMax;
+    }
+
+    /**
+     * @param scale
+     *          the values are divided by this, e.g. to turn microseconds into
+     *          milliseconds.
+     * @return count, mean, p50, p90, p99 and max.
+     */
+    Map<String, Object> toMap(double scale) {
+      Map<String, Object> map = new HashMap<String, Object>();
+      map.put("count", mCount);
+      map.put("mean", (mCount == 0) ? 0 : mSum / (mCount * scale));
+      map.put("p50", getPercentile(50) / scale);
+      map.put("p90", getPercentile(90) / scale);
+      map.put("p99", getPercentile(99) / scale);
+      map.put("max", mMax / scale);
+      return map;
+    }
+  }
+
+  /** The histograms of the calls of one action against one table. */
+  private static final class Stages {
+    final String tableId;
+    final String action;
+    // in microseconds
+    final Histogram queueWait = new Histogram();
+    final Histogram db = new Histogram();
+    final Histogram metadata = new Histogram();
+    final Histogram serialize = new Histogram();
+    final Histogram backpressure = new Histogram();
+    final Histogram delivery = new Histogram();
+    final Histogram total = new Histogram();
+    // in chars
+    final Histogram responseSize = new Histogram();
+
+    Stages(String tableId, String action) {
+      this.tableId = tableId;
+      this.action = action;
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new HashMap<String, Object>();
+      map.put("tableId", tableId);
+      map.put("action", action);
+      map.put("count", total.getCount());
+      map.put("queueWaitMs", queueWait.toMap(1000.0));
+      map.put("dbMs", db.toMap(1000.0));
+      if (metadata.getCount() != 0) {
+        map.put("metadataMs", metadata.toMap(1000.0));
+        map.put("serializeMs", serialize.toMap(1000.0));
+      }
+      map.put("backpressureMs", backpressure.toMap(1000.0));
+      map.put("deliveryMs", delivery.toMap(1000.0));
+      map.put("totalMs", total.toMap(1000.0));
+      map.put("responseChars", responseSize.toMap(1.0));
+      return map;
+    }
+  }
+
+  /** the call being processed by the current executor thread */
+  private final ThreadLocal<CallTimings> mCurrent = new ThreadLocal<CallTimings>();
+
+  /** "tableId/action" -> stages, sorted for the summaries */
+  private final TreeMap<String, Stages> mStages = new TreeMap<String, Stages>();
+  private long mCalls = 0;
+  private long mLastSummaryNanos = System.nanoTime();
+  private long mCallsAtLastSummary = 0;
+
+  private BridgeLatencyStats() {
+  }
+
+  /**
+   * Begin the timings of a call processed by the current thread.
+   *
+   * @param appName
+   * @param queuedNanos
+   *          when the call was queued.
+   * @return the timings, which are also the current thread's until
+   *         {@link #end(CallTimings)}.
+   */
+  CallTimings begin(String appName, long queuedNanos) {
+    CallTimings timings = new CallTimings(appName, queuedNanos, System.nanoTime());
+    mCurrent.set(timings);
+    return timings;
+  }
+
+  /**
+   * @return the timings of the call being processed by the current thread, or
+   *         null if there is none.
+   */
+  CallTimings current() {
+    return mCurrent.get();
+  }
+
+  /**
+   * Note that the response of the current thread's call is ready to be queued
+   * for the web view.
+   *
+   * @param responseChars
+   * @return the timings of the call, which are now carried by its response, or
+   *         null if the current thread is not processing a call.
+   */
+  CallTimings responseReady(int responseChars) {
+    CallTimings timings = mCurrent.get();
+    if (timings == null || timings.handedOff) {
+      return null;
+    }
+    timings.markReady(responseChars);
+    timings.handedOff = true;
+    return timings;
+  }
+
+  /**
+   * End the timings of the current thread's call. If no response was queued
+   * for it, it is recorded now.
+   *
+   * @param timings
+   */
+  void end(CallTimings timings) {
+    mCurrent.remove();
+    if (!timings.handedOff) {
+      if (timings.readyNanos == 0) {
+        timings.markReady(0);
+      }
+      record(timings);
+    }
+  }
+
+  /**
+   * Record the timings of a call that is complete.
+   *
+   * @param timings
+   */
+  void record(CallTimings timings) {
+    long readyNanos = (timings.readyNanos == 0) ? System.nanoTime() : timings.readyNanos;
+    boolean hasMetadata = (timings.metadataEndNanos != 0);
+    long dbEndNanos = hasMetadata ? timings.metadataStartNanos : readyNanos;
+    String tableId = (timings.tableId == null) ? "" : timings.tableId;
+    String key = tableId + "/" + timings.action;
+
+    boolean writeSummary = false;
+    synchronized (this) {
+      Stages stages = mStages.get(key);
+      if (stages == null) {
+        stages = new Stages(tableId, timings.action);
+        mStages.put(key, stages);
+      }
+      stages.queueWait.record(micros(timings.startNanos - timings.queuedNanos));
+      stages.db.record(micros(dbEndNanos - timings.startNanos));
+      if (hasMetadata) {
+        stages.metadata.record(micros(timings.metadataEndNanos - timings.metadataStartNanos));
+        stages.serialize.record(micros(readyNanos - timings.metadataEndNanos));
+      }
+      stages.backpressure.record(micros(timings.backpressureNanos));
+      stages.delivery.record(micros(timings.deliveryNanos));
+      stages.total.record(micros(readyNanos - timings.queuedNanos + timings.backpressureNanos
+          + timings.deliveryNanos));
+      stages.responseSize.record(timings.responseChars);
+      ++mCalls;
+
+      long now = System.nanoTime();
+      if (now - mLastSummaryNanos >= SUMMARY_INTERVAL_MILLIS * 1000000L) {
+        mLastSummaryNanos = now;
+        writeSummary = (mCalls != mCallsAtLastSummary);
+        mCallsAtLastSummary = mCalls;
+      }
+    }
+    // written outside of the lock, as it touches the disk
+    if (writeSummary && timings.appName != null) {
+      writeToDebugFolder(timings.appName);
+    }
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000L;
+  }
+
+  /**
+   * @return the number of calls recorded.
+   */
+  public synchronized long getCalls() {
+    return mCalls;
+  }
+
+  /**
+   * Discard everything recorded so far.
+   */
+  public synchronized void reset() {
+    mStages.clear();
+    mCalls = 0;
+    mCallsAtLastSummary = 0;
+  }
+
+  /**
+   * @return the histograms, as:
+   *
+   *         <pre>
+   *   {
+   *     calls: 123,
+   *     stages: [ {
+   *       tableId: "id", action: "query", count: 12,
+   *       queueWaitMs: { count: 12, mean: 0.5, p50: 0.5, p90: 1, p99: 2, max: 2.1 },
+   *       dbMs: { ... }, metadataMs: { ... }, serializeMs: { ... },
+   *       backpressureMs: { ... }, deliveryMs: { ... }, totalMs: { ... },
+   *       responseChars: { ... }
+   *     }, ... ]
+   *   }
+   * </pre>
+   *
+   *         The percentiles are the upper bounds of the histogram buckets that
+   *         hold them.
+   */
+  public synchronized Map<String, Object> toMap() {
+    List<Map<String, Object>> stages = new ArrayList<Map<String, Object>>(mStages.size());
+    for (Stages s : mStages.values()) {
+      stages.add(s.toMap());
+    }
+    Map<String, Object> stats = new HashMap<String, Object>();
+    stats.put("calls", mCalls);
+    stats.put("stages", stages);
+    return stats;
+  }
+
+  /**
+   * Write the histograms to a json file in the tables debug folder.
+   *
+   * @param appName
+   */
+  public void writeToDebugFolder(String appName) {
+    String fileName = ODKFileUtils.getTablesDebugObjectFolder(appName) + File.separator
+        + STATS_FILE_NAME;
+    PrintWriter writer;
+    try {
+      String statsString = ODKFileUtils.mapper.writeValueAsString(toMap());
+      writer = new PrintWriter(fileName, CharEncoding.UTF_8);
+      WebLogger.getLogger(appName).d(TAG, "writing bridge latency statistics to: " + fileName);
+      writer.print(statsString);
+      writer.flush();
+      writer.close();
+    } catch (JsonProcessingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (FileNotFoundException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    } catch (UnsupportedEncodingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The distinct foreground and background color pairs used by the color
+ * metadata of a query result.
+ * <p>
+ * Each pair is formatted as hex strings once, when it is first seen. The
+ * colors of the rows can then be sent either as one object per colored row,
+ * or compactly as the palette plus run-length encoded palette indexes (see
+ * {@link #runLengthEncode(int[])}).
+ * <p>
+ * Not thread safe; an instance is used for a single query.
+ */
+final class ColorPalette {
+
+  /** Palette index of a row that has no color. */
+  static final int NO_COLOR = -1;
+
+  /** (foreground, background) as a long -> palette index */
+  private final Map<Long, Integer> mIndexes = new HashMap<Long, Integer>();
+  private final List<String> mForegrounds = new ArrayList<String>();
+  private final List<String> mBackgrounds = new ArrayList<String>();
+
+  /**
+   * Get the palette index of a color pair, adding it if it is new.
+   *
+   * @param foreground
+   * @param background
+   * @return
+   */
+  int indexOf(int foreground, int background) {
+    int fg = 0xFFFFFF & foreground;
+    int bg = 0xFFFFFF & background;
+    Long key = (((long) fg) << 32) | bg;
+    Integer index = mIndexes.get(key);
+    if (index == null) {
+      index = mForegrounds.size();
+      mIndexes.put(key, index);
+      mForegrounds.add(String.format("#%06X", fg));
+      mBackgrounds.add(String.format("#%06X", bg));
+    }
+    return index;
+  }
+
+  String getForeground(int index) {
+    return mForegrounds.get(index);
+  }
+
+  String getBackground(int index) {
+    return mBackgrounds.get(index);
+  }
+
+  /**
+   * @return the palette as a list of [foreground, background] hex pairs, in
+   *         index order.
+   */
+  List<String[]> toList() {
+    List<String[]> pairs = new ArrayList<String[]>(mForegrounds.size());
+    for (int i = 0; i < mForegrounds.size(); ++i) {
+      pairs.add(new String[] { mForegrounds.get(i), mBackgrounds.get(i) });
+    }
+    return pairs;
+  }
+
+  /**
+   * Run-length encode the palette indexes of consecutive rows.
+   *
+   * @param indexes
+   *          the palette index of each row, or {@link #NO_COLOR}.
+   * @return alternating palette indexes and run lengths: [index, count, index,
+   *         count, ...], covering every row.
+   */
+  static List<Integer> runLengthEncode(int[] indexes) {
+    List<Integer> runs = new ArrayList<Integer>();
+    int i = 0;
+    while (i < indexes.length) {
+      int start = i;
+      while (i < indexes.length && indexes[i] == indexes[start]) {
+        ++i;
+      }
+      runs.add(indexes[start]);
+      runs.add(i - start);
+    }
+    return runs;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.application.Tables;
+
+/**
+ * The color rule groups of each table, kept across the queries issued by the
+ * web views.
+ * <p>
+ * Loading the rule groups is one key value store read per group, and there is
+ * a group for every column. Instead, the color rule entries among the table's
+ * key value store entries, which a bridge query already has in hand, are
+ * compared with the entries the cached groups were loaded from, and the groups
+ * are reloaded only if they differ. An unchanged table costs no database
+ * access at all, and an edit to any color rule is picked up by the next query.
+ * Columns with no rules are left out altogether.
+ * <p>
+ * Thread safe; queries are processed on the executor's threads.
+ */
+final class ColorRuleGroupCache {
+
+  private static final ColorRuleGroupCache sInstance = new ColorRuleGroupCache();
+
+  static ColorRuleGroupCache get() {
+    return sInstance;
+  }
+
+  /**
+   * The color rule groups of a single table. Groups that have no rules are
+   * null, or absent for columns.
+   */
+  static final class TableColorRules {
+    private final String fingerprint;
+    final ColorRuleGroup tableRules;
+    final ColorRuleGroup statusRules;
+    /** element key -> rules, for only those columns that have rules */
+    final Map<String, ColorRuleGroup> columnRules;
+
+    private TableColorRules(String fingerprint, ColorRuleGroup tableRules,
+        ColorRuleGroup statusRules, Map<String, ColorRuleGroup> columnRules) {
+      this.fingerprint = fingerprint;
+      this.tableRules = tableRules;
+      this.statusRules = statusRules;
+      this.columnRules = columnRules;
+    }
+  }
+
+  /** appName/tableId -> rules */
+  private final Map<String, TableColorRules> mTables = new HashMap<String, TableColorRules>();
+
+  private ColorRuleGroupCache() {
+  }
+
+  /**
+   * Get the color rule groups of a table, reading the table's key value store
+   * entries to tell whether they have changed. Use
+   * {@link #getColorRules(String, DbHandle, String, List, String[])} instead
+   * where the entries have already been read.
+   *
+   * @param appName
+   * @param db
+   * @param tableId
+   * @param adminColumns
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  TableColorRules getColorRules(String appName, DbHandle db, String tableId,
+      String[] adminColumns) throws ServicesAvailabilityException {
+    List<KeyValueStoreEntry> entries = Tables.getInstance().getDatabase()
+        .getTableMetadata(appName, db, tableId, null, null, null, null).getEntries();
+    return getColorRules(appName, db, tableId, entries, adminColumns);
+  }
+
+  /**
+   * Get the color rule groups of a table, loading them only if the table's
+   * color rules have changed since they were last loaded.
+   *
+   * @param appName
+   * @param db
+   * @param tableId
+   * @param entries
+   *          the table's key value store entries, of all partitions, or null
+   *          to read them.
+   * @param adminColumns
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  TableColorRules getColorRules(String appName, DbHandle db, String tableId,
+      List<KeyValueStoreEntry> entries, String[] adminColumns)
+      throws ServicesAvailabilityException {
+    if (entries == null) {
+      return getColorRules(appName, db, tableId, adminColumns);
+    }
+    List<KeyValueStoreEntry> columnEntries = new ArrayList<KeyValueStoreEntry>();
+    List<KeyValueStoreEntry> tableEntries = new ArrayList<KeyValueStoreEntry>();
+    for (KeyValueStoreEntry entry : entries) {
+      if (LocalKeyValueStoreConstants.ColumnColorRules.PARTITION.equals(entry.partition)) {
+        columnEntries.add(entry);
+      } else if (LocalKeyValueStoreConstants.TableColorRules.PARTITION.equals(entry.partition)) {
+        tableEntries.add(entry);
+      }
+    }
+    String fingerprint = fingerprint(tableEntries) + '\u0002' + fingerprint(columnEntries);
+
+    String cacheKey = appName + File.separator + tableId;
+    synchronized (this) {
+      TableColorRules cached = mTables.get(cacheKey);
+      if (cached != null && cached.fingerprint.equals(fingerprint)) {
+        return cached;
+      }
+    }
+
+    ColorRuleGroup tableRules = nonEmpty(ColorRuleGroup.getTableColorRuleGroup(
+        Tables.getInstance(), appName, db, tableId, adminColumns));
+    ColorRuleGroup statusRules = nonEmpty(ColorRuleGroup.getStatusColumnRuleGroup(
+        Tables.getInstance(), appName, db, tableId, adminColumns));
+    Map<String, ColorRuleGroup> columnRules = new HashMap<String, ColorRuleGroup>();
+    for (KeyValueStoreEntry entry : columnEntries) {
+      // the aspect of a column's rules is its element key
+      if (entry.value == null || columnRules.containsKey(entry.aspect)) {
+        continue;
+      }
+      ColorRuleGroup crg = nonEmpty(ColorRuleGroup.getColumnColorRuleGroup(Tables.getInstance(),
+          appName, db, tableId, entry.aspect, adminColumns));
+      if (crg != null) {
+        columnRules.put(entry.aspect, crg);
+      }
+    }
+    TableColorRules loaded = new TableColorRules(fingerprint, tableRules, statusRules,
+        columnRules);
+    synchronized (this) {
+      mTables.put(cacheKey, loaded);
+    }
+    return loaded;
+  }
+
+  private static ColorRuleGroup nonEmpty(ColorRuleGroup crg) {
+    return (crg == null || crg.getColorRules().isEmpty()) ? null : crg;
+  }
+
+  /**
+   * @param entries
+   * @return a string that differs whenever the entries do, regardless of the
+   *         order they were read in.
+   */
+  private static String fingerprint(List<KeyValueStoreEntry> entries) {
+    List<KeyValueStoreEntry> sorted = new ArrayList<KeyValueStoreEntry>(entries);
+    Collections.sort(sorted, new Comparator<KeyValueStoreEntry>() {
+      @Override
+      public int compare(KeyValueStoreEntry lhs, KeyValueStoreEntry rhs) {
+        int cmp = String.valueOf(lhs.aspect).compareTo(String.valueOf(rhs.aspect));
+        return (cmp != 0) ? cmp : String.valueOf(lhs.key).compareTo(String.valueOf(rhs.key));
+      }
+    });
+    StringBuilder b = new StringBuilder();
+    for (KeyValueStoreEntry entry : sorted) {
+      b.append(entry.aspect).append('\u0000').append(entry.key).append('\u0000')
+          .append(entry.value).append('\u0001');
+    }
+    return b.toString();
+  }
+}
@@ -17,16 +17,20 @@ package org.opendatakit.tables.views.webkits;
 
 import android.content.Intent;
 import android.os.Bundle;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ODKWebView;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.tables.activities.AbsBaseActivity;
+import org.opendatakit.tables.activities.AbsBaseWebActivity;
 import org.opendatakit.tables.activities.MainActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity;
 import org.opendatakit.tables.activities.TableDisplayActivity.ViewFragmentType;
 import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.fragments.MapListViewFragment;
 import org.opendatakit.tables.utils.*;
 import org.opendatakit.tables.utils.Constants.RequestCodes;
 import org.opendatakit.tables.utils.SurveyUtil.SurveyFormParameters;
@@ -41,8 +45,8 @@ public class OdkTables {
   private WeakReference<ODKWebView> mWebView;
   protected AbsBaseActivity mActivity;
   protected String mDefaultTableId;
-  protected Map<String, OrderedColumns> mCachedOrderedDefns = new HashMap<String, OrderedColumns>();
-  private List<String> mTableIds = null;
+  private final QueryCursors mQueryCursors = new QueryCursors();
+  private final PreparedQueries mPreparedQueries = new PreparedQueries();
 
   public OdkTablesIf getJavascriptInterfaceWithWeakReference() {
     return new OdkTablesIf(this);
@@ -67,19 +71,7 @@ public class OdkTables {
   }
 
   private List<String> getTableIds() throws ServicesAvailabilityException {
-    if ( mTableIds == null ) {
-      String appName = mActivity.getAppName();
-      DbHandle db = null;
-      try {
-        db = Tables.getInstance().getDatabase().openDatabase(appName);
-        mTableIds = Tables.getInstance().getDatabase().getAllTableIds(appName, db);
-      } finally {
-        if (db != null) {
-          Tables.getInstance().getDatabase().closeDatabase(appName, db);
-        }
-      }
-    }
-    return mTableIds;
+    return Tables.getInstance().getSchemaCache().getTableIds(mActivity.getAppName());
   }
 
   /**
@@ -89,18 +81,10 @@ public class OdkTables {
    * @return
    * @throws ServicesAvailabilityException
    */
-  synchronized OrderedColumns retrieveColumnDefinitions(DbHandle db,
+  OrderedColumns retrieveColumnDefinitions(DbHandle db,
       String tableId) throws  ServicesAvailabilityException {
-
-    OrderedColumns answer = this.mCachedOrderedDefns.get(tableId);
-    if (answer != null) {
-      return answer;
-    }
-
-    String appName = mActivity.getAppName();
-    answer = Tables.getInstance().getDatabase().getUserDefinedColumns(appName, db, tableId);
-    this.mCachedOrderedDefns.put(tableId, answer);
-    return answer;
+    return Tables.getInstance().getSchemaCache()
+        .getColumnDefinitions(mActivity.getAppName(), db, tableId);
   }
 
   /**
@@ -305,6 +289,222 @@ public class OdkTables {
     return true;
   }
 
+  /**
+   * Open a cursor over the result of a query and read its first chunk.
+   *
+   * @see {@link OdkTablesIf#openQueryCursor(String, String, String[], String[], String, String, String, int)}
+   * @return the first chunk, or null if the table could not be found.
+   * @throws ServicesAvailabilityException
+   * @throws JsonProcessingException
+   */
+  public String helperOpenQueryCursor(String tableId, String sqlWhereClause,
+      String[] sqlSelectionArgs, String[] sqlGroupBy, String sqlHaving,
+      String sqlOrderByElementKey, String sqlOrderByDirection, int chunkSize)
+      throws ServicesAvailabilityException, JsonProcessingException {
+    String appName = retrieveAppName();
+    if (!getTableIds().contains(tableId)) {
+      WebLogger.getLogger(appName).e(TAG,
+          "table [" + tableId + "] could not be found. " + "returning.");
+      return null;
+    }
+    OrderedColumns orderedDefns;
+    DbHandle db = null;
+    try {
+      db = Tables.getInstance().getDatabase().openDatabase(appName);
+      orderedDefns = retrieveColumnDefinitions(db, tableId);
+    } finally {
+      if (db != null) {
+        Tables.getInstance().getDatabase().closeDatabase(appName, db);
+      }
+    }
+    SQLQueryStruct query = new SQLQueryStruct(sqlWhereClause, sqlSelectionArgs, sqlGroupBy,
+        sqlHaving, sqlOrderByElementKey, sqlOrderByDirection);
+    String cursorId = mQueryCursors.open(appName, tableId, orderedDefns,
+        Tables.getInstance().getDatabase().getAdminColumns(), query, chunkSize,
+        isColorMetadataEnabled(tableId));
+    return mQueryCursors.getChunk(cursorId, 0);
+  }
+
+  /**
+   * @see {@link OdkTablesIf#getQueryCursorChunk(String, int)}
+   * @throws JsonProcessingException
+   */
+  public String helperGetQueryCursorChunk(String cursorId, int chunkIndex)
+      throws JsonProcessingException {
+    return mQueryCursors.getChunk(cursorId, chunkIndex);
+  }
+
+  /**
+   * @see {@link OdkTablesIf#closeQueryCursor(String)}
+   */
+  public boolean closeQueryCursor(String cursorId) {
+    return mQueryCursors.close(cursorId);
+  }
+
+  /**
+   * Register a parameterized query under an id chosen by the page.
+   *
+   * @see {@link OdkTablesIf#registerQuery(String, String, String, String[], String, String, String)}
+   * @return false if the table could not be found.
+   * @throws ServicesAvailabilityException
+   * @throws IllegalArgumentException
+   *           if the ordering is not valid for the table.
+   */
+  public boolean helperRegisterQuery(String queryId, String tableId, String sqlWhereClause,
+      String[] sqlGroupBy, String sqlHaving, String sqlOrderByElementKey,
+      String sqlOrderByDirection) throws ServicesAvailabilityException {
+    String appName = retrieveAppName();
+    if (!getTableIds().contains(tableId)) {
+      WebLogger.getLogger(appName).e(TAG,
+          "table [" + tableId + "] could not be found. " + "returning.");
+      return false;
+    }
+    OrderedColumns orderedDefns = Tables.getInstance().getSchemaCache()
+        .getColumnDefinitions(appName, tableId);
+    mPreparedQueries.register(queryId, tableId, orderedDefns,
+        Tables.getInstance().getDatabase().getAdminColumns(), sqlWhereClause, sqlGroupBy,
+        sqlHaving, sqlOrderByElementKey, sqlOrderByDirection);
+    return true;
+  }
+
+  /**
+   * @see {@link OdkTablesIf#executePreparedQuery(String, String[])}
+   * @return the result, or null if no query is registered under that id.
+   * @throws ServicesAvailabilityException
+   * @throws JsonProcessingException
+   * @throws IllegalArgumentException
+   *           if the number of bind values is wrong.
+   */
+  public String helperExecutePreparedQuery(String queryId, String[] sqlBindParams)
+      throws ServicesAvailabilityException, JsonProcessingException {
+    String appName = retrieveAppName();
+    PreparedQueries.PreparedQuery preparedQuery = mPreparedQueries.get(queryId);
+    if (preparedQuery == null) {
+      WebLogger.getLogger(appName).e(TAG,
+          "query [" + queryId + "] is not registered. " + "returning.");
+      return null;
+    }
+    return PreparedQueries.execute(appName, preparedQuery, sqlBindParams,
+        isColorMetadataEnabled(preparedQuery.tableId));
+  }
+
+  /**
+   * Open a cursor over the result of a registered query and read its first
+   * chunk.
+   *
+   * @see {@link OdkTablesIf#openPreparedQueryCursor(String, String[], int)}
+   * @return the first chunk, or null if no query is registered under that id.
+   * @throws JsonProcessingException
+   * @throws IllegalArgumentException
+   *           if the number of bind values is wrong.
+   */
+  public String helperOpenPreparedQueryCursor(String queryId, String[] sqlBindParams,
+      int chunkSize) throws JsonProcessingException {
+    String appName = retrieveAppName();
+    PreparedQueries.PreparedQuery preparedQuery = mPreparedQueries.get(queryId);
+    if (preparedQuery == null) {
+      WebLogger.getLogger(appName).e(TAG,
+          "query [" + queryId + "] is not registered. " + "returning.");
+      return null;
+    }
+    SQLQueryStruct query = preparedQuery.bind(
+        PreparedQueries.checkBindParams(preparedQuery, sqlBindParams));
+    String cursorId = mQueryCursors.open(appName, preparedQuery.tableId,
+        preparedQuery.orderedDefns, Tables.getInstance().getDatabase().getAdminColumns(), query,
+        chunkSize, isColorMetadataEnabled(preparedQuery.tableId));
+    return mQueryCursors.getChunk(cursorId, 0);
+  }
+
+  /**
+   * @return whether the page wants the colors of the rows of the table.
+   */
+  private boolean isColorMetadataEnabled(String tableId) {
+    return (this.mActivity instanceof AbsBaseWebActivity)
+        && ((AbsBaseWebActivity) this.mActivity).isColorMetadataEnabled(tableId);
+  }
+
+  /**
+   * @see {@link OdkTablesIf#unregisterQuery(String)}
+   */
+  public boolean unregisterQuery(String queryId) {
+    return mPreparedQueries.unregister(queryId);
+  }
+
+  /**
+   * @see {@link OdkTablesIf#getBridgeDiagnostics()}
+   * @throws JsonProcessingException
+   */
+  public String helperGetBridgeDiagnostics() throws JsonProcessingException {
+    Map<String, Object> diagnostics = BridgeLatencyStats.get().toMap();
+    if (this.mActivity instanceof AbsBaseWebActivity) {
+      ResponseChannel channel = ((AbsBaseWebActivity) this.mActivity).getResponseChannel();
+      Map<String, Object> responses = new HashMap<String, Object>();
+      responses.put("depth", channel.size());
+      responses.put("maxDepth", channel.getMaxDepth());
+      responses.put("overflows", channel.getOverflows());
+      responses.put("producerWaits", channel.getProducerWaits());
+      responses.put("meanQueuedMs", channel.getMeanQueuedMillis());
+      responses.put("maxQueuedMs", channel.getMaxQueuedMillis());
+      diagnostics.put("responseChannel", responses);
+    }
+    return ODKFileUtils.mapper.writeValueAsString(diagnostics);
+  }
+
+  /**
+   * Forget the queries registered by the page, when another page (or the same
+   * one again) is loaded into the web view.
+   */
+  void resetPageSession() {
+    mPreparedQueries.clear();
+  }
+
+  /**
+   * @see {@link OdkTablesIf#setSelectionHandledByPage(boolean)}
+   */
+  public boolean setSelectionHandledByPage(boolean handled) {
+    if (!(this.mActivity instanceof TableDisplayActivity)) {
+      return false;
+    }
+    MapListViewFragment mapListViewFragment = (MapListViewFragment) this.mActivity
+        .getFragmentManager().findFragmentByTag(Constants.FragmentTags.MAP_LIST);
+    if (mapListViewFragment == null) {
+      return false;
+    }
+    mapListViewFragment.setPageHandlesSelection(handled);
+    return true;
+  }
+
+  /**
+   * Set whether query results for the given table carry color metadata.
+   *
+   * @param tableId
+   * @param enabled
+   * @return false if the activity does not issue queries for a web view.
+   */
+  public boolean setColorMetadataEnabled(String tableId, boolean enabled) {
+    if (!(this.mActivity instanceof AbsBaseWebActivity)) {
+      return false;
+    }
+    ((AbsBaseWebActivity) this.mActivity).setColorMetadataEnabled(tableId, enabled);
+    return true;
+  }
+
+  /**
+   * Set whether query results for the given table carry their color metadata
+   * in the compact encoding.
+   *
+   * @param tableId
+   * @param compact
+   * @return false if the activity does not issue queries for a web view.
+   */
+  public boolean setCompactColorMetadata(String tableId, boolean compact) {
+    if (!(this.mActivity instanceof AbsBaseWebActivity)) {
+      return false;
+    }
+    ((AbsBaseWebActivity) this.mActivity).setCompactColorMetadata(tableId, compact);
+    return true;
+  }
+
   /**
    * Add a row with survey using the specified formId and screenPath. The
    * jsonMap should be a Stringified json map mapping elementName to values to
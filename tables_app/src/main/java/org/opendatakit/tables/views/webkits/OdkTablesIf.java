@@ -16,6 +16,7 @@
 package org.opendatakit.tables.views.webkits;
 
 import android.widget.Toast;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.tables.R;
@@ -154,6 +155,366 @@ public class OdkTablesIf {
     return weakControl.get().launchHTML(relativePath);
   }
 
+  /**
+   * Declare that the list page shown beside a map handles changes to the
+   * selected item itself. When a marker is tapped, the page is then sent an
+   * action outcome with the dispatchString and action
+   * "org.opendatakit.tables.selectItem" and the jsonValue
+   * { status: -1, result: { mapIndex: index } } (index -1 when nothing is
+   * selected), instead of being reloaded. This lasts until the page is
+   * reloaded.
+   *
+   * @param handled
+   * @return false if this is not the list of a map view.
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setSelectionHandledByPage(boolean handled) {
+    if (isInactive()) return false;
+    return weakControl.get().setSelectionHandledByPage(handled);
+  }
+
+  /**
+   * Open a cursor over the result of a query, for results too large to be
+   * returned in a single response. Only one chunk of rows is read and held at
+   * a time; later chunks are read with {@link #getQueryCursorChunk(String, int)}.
+   * At most a few cursors are open at once; opening another closes the least
+   * recently used.
+   *
+   * Each chunk is a stringified JSON object:
+   *
+   * <pre>
+   *   {
+   *     cursorId: "id",
+   *     chunkIndex: 0,
+   *     chunkSize: 200,
+   *     numberOfRows: 1234,
+   *     lastChunk: false,
+   *     elementKeys: [ "col1", ..., "_id", ... ],
+   *     rows: [ [ "value", ... ], ... ],
+   *     colorPalette: [ [ "#FG", "#BG" ], ... ],
+   *     rowColorRuns: [ paletteIndex, count, ... ],
+   *     statusColorRuns: [ ... ],
+   *     columnColorRuns: { elementKey: [ ... ], ... }
+   *   }
+   * </pre>
+   *
+   * numberOfRows is counted when the cursor opens and is not updated; if the
+   * table changes while the cursor is open, rows can shift between chunks.
+   * Reopen the cursor after a change to see a consistent result. The colors
+   * of each chunk's rows are in the compact encoding, as for
+   * {@link #executePreparedQuery(String, String[])}, and are left out if the
+   * page has declined color metadata for the table.
+   *
+   * @param tableId
+   * @param whereClause
+   * @param sqlBindParams
+   * @param groupBy
+   * @param having
+   * @param orderByElementKey
+   * @param orderByDirection
+   * @param chunkSize
+   *          the number of rows per chunk, or 0 for the default.
+   * @return the first chunk, or null if the query could not be run.
+   */
+  @android.webkit.JavascriptInterface
+  public String openQueryCursor(String tableId, String whereClause, String[] sqlBindParams,
+      String[] groupBy, String having, String orderByElementKey, String orderByDirection,
+      int chunkSize) {
+    if (isInactive()) return null;
+    try {
+      return weakControl.get().helperOpenQueryCursor(tableId, whereClause, sqlBindParams,
+          groupBy, having, orderByElementKey, orderByDirection, chunkSize);
+    } catch (ServicesAvailabilityException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error accessing database: " + e.toString());
+      return null;
+    } catch (JsonProcessingException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error serializing rows: " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Read a chunk of rows from a cursor opened by
+   * {@link #openQueryCursor(String, String, String[], String[], String, String, String, int)}.
+   *
+   * @param cursorId
+   * @param chunkIndex
+   * @return the chunk, or null if the cursor is not open.
+   */
+  @android.webkit.JavascriptInterface
+  public String getQueryCursorChunk(String cursorId, int chunkIndex) {
+    if (isInactive()) return null;
+    try {
+      return weakControl.get().helperGetQueryCursorChunk(cursorId, chunkIndex);
+    } catch (JsonProcessingException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error serializing rows: " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Close a cursor, releasing its rows.
+   *
+   * @param cursorId
+   * @return false if the cursor was not open.
+   */
+  @android.webkit.JavascriptInterface
+  public boolean closeQueryCursor(String cursorId) {
+    if (isInactive()) return false;
+    return weakControl.get().closeQueryCursor(cursorId);
+  }
+
+  /**
+   * Register a parameterized query once, under an id of the page's choosing,
+   * so that it can then be run any number of times with
+   * {@link #executePreparedQuery(String, String[])} by passing just the bind
+   * values. The table's column definitions, the columns returned and the
+   * ordering are resolved here rather than on every run, and re-running it
+   * with unchanged bind values is answered from the shared query results
+   * without reading the database. Registering again under the same id replaces
+   * the query. Registered queries are forgotten when the page is reloaded; at
+   * most a few are kept, and registering another forgets the least recently
+   * used.
+   *
+   * @param queryId
+   * @param tableId
+   * @param whereClause
+   *          may contain ? placeholders for the bind values; numbered or named
+   *          placeholders and comments are rejected.
+   * @param groupBy
+   * @param having
+   *          may contain ? placeholders, bound after those of the where clause.
+   * @param orderByElementKey
+   * @param orderByDirection
+   *          ASC, DESC or null.
+   * @return true if the query was registered.
+   */
+  @android.webkit.JavascriptInterface
+  public boolean registerQuery(String queryId, String tableId, String whereClause,
+      String[] groupBy, String having, String orderByElementKey, String orderByDirection) {
+    if (isInactive()) return false;
+    try {
+      return weakControl.get().helperRegisterQuery(queryId, tableId, whereClause, groupBy,
+          having, orderByElementKey, orderByDirection);
+    } catch (ServicesAvailabilityException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error accessing database: " + e.toString());
+      return false;
+    } catch (IllegalArgumentException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).e(TAG, "Invalid query: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Run a query registered by
+   * {@link #registerQuery(String, String, String, String[], String, String, String)}.
+   * The result is a stringified JSON object:
+   *
+   * <pre>
+   *   {
+   *     queryId: "id",
+   *     numberOfRows: 12,
+   *     truncated: false,
+   *     elementKeys: [ "col1", ..., "_id", ... ],
+   *     rows: [ [ "value", ... ], ... ],
+   *     colorPalette: [ [ "#FG", "#BG" ], ... ],
+   *     rowColorRuns: [ paletteIndex, count, ... ],
+   *     statusColorRuns: [ ... ],
+   *     columnColorRuns: { elementKey: [ ... ], ... }
+   *   }
+   * </pre>
+   *
+   * The values of each row are in the order of elementKeys. The query is run
+   * as part of this call, so at most 2000 rows are returned; truncated is true
+   * if there were more, and a result that large should be read with
+   * {@link #openPreparedQueryCursor(String, String[], int)} instead. The
+   * colors are in the compact encoding, and are left out if the page has
+   * declined color metadata for the table.
+   *
+   * @param queryId
+   * @param sqlBindParams
+   *          one value for each ? placeholder of the query.
+   * @return the result, or null if the query is not registered or could not be
+   *         run.
+   */
+  @android.webkit.JavascriptInterface
+  public String executePreparedQuery(String queryId, String[] sqlBindParams) {
+    if (isInactive()) return null;
+    try {
+      return weakControl.get().helperExecutePreparedQuery(queryId, sqlBindParams);
+    } catch (ServicesAvailabilityException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error accessing database: " + e.toString());
+      return null;
+    } catch (JsonProcessingException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error serializing rows: " + e.toString());
+      return null;
+    } catch (IllegalArgumentException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).e(TAG, "Invalid bind values: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Open a cursor over the result of a query registered by
+   * {@link #registerQuery(String, String, String, String[], String, String, String)},
+   * as with
+   * {@link #openQueryCursor(String, String, String[], String[], String, String, String, int)}.
+   *
+   * @param queryId
+   * @param sqlBindParams
+   *          one value for each ? placeholder of the query.
+   * @param chunkSize
+   *          the number of rows per chunk, or 0 for the default.
+   * @return the first chunk, or null if the query is not registered or could
+   *         not be run.
+   */
+  @android.webkit.JavascriptInterface
+  public String openPreparedQueryCursor(String queryId, String[] sqlBindParams, int chunkSize) {
+    if (isInactive()) return null;
+    try {
+      return weakControl.get().helperOpenPreparedQueryCursor(queryId, sqlBindParams, chunkSize);
+    } catch (JsonProcessingException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error serializing rows: " + e.toString());
+      return null;
+    } catch (IllegalArgumentException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).e(TAG, "Invalid bind values: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Forget a registered query.
+   *
+   * @param queryId
+   * @return false if the query was not registered.
+   */
+  @android.webkit.JavascriptInterface
+  public boolean unregisterQuery(String queryId) {
+    if (isInactive()) return false;
+    return weakControl.get().unregisterQuery(queryId);
+  }
+
+  /**
+   * Get where the time went in the calls of the data bridge, for diagnosing
+   * slow views. The result is a stringified JSON object:
+   *
+   * <pre>
+   *   {
+   *     calls: 123,
+   *     stages: [ {
+   *       tableId: "id", action: "query", count: 12,
+   *       queueWaitMs: { count: 12, mean: 0.5, p50: 0.5, p90: 1, p99: 2, max: 2.1 },
+   *       dbMs: { ... }, metadataMs: { ... }, serializeMs: { ... },
+   *       backpressureMs: { ... }, deliveryMs: { ... }, totalMs: { ... },
+   *       responseChars: { ... }
+   *     }, ... ],
+   *     responseChannel: { depth: 0, maxDepth: 3, overflows: 0, producerWaits: 0,
+   *       meanQueuedMs: 1.2, maxQueuedMs: 8.5 }
+   *   }
+   * </pre>
+   *
+   * There is one entry in stages for each action against each table; the
+   * percentiles are approximate, being the upper bounds of histogram buckets.
+   *
+   * @return the diagnostics, or null if they could not be serialized.
+   */
+  @android.webkit.JavascriptInterface
+  public String getBridgeDiagnostics() {
+    if (isInactive()) return null;
+    try {
+      return weakControl.get().helperGetBridgeDiagnostics();
+    } catch (JsonProcessingException e) {
+      String appName = weakControl.get().retrieveAppName();
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "Error serializing diagnostics: " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Request or decline the color metadata (rowColors, statusColors and
+   * columnColors) in the results of the queries that follow against a table.
+   * It is included by default; a view that polls a table without showing its
+   * colors can decline it to make each query cheaper.
+   *
+   * @param tableId
+   * @param enabled
+   *          true to include the color metadata, false to leave it empty.
+   * @return true if the setting was applied
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setColorMetadataEnabled(String tableId, boolean enabled) {
+    if (isInactive()) return false;
+    return weakControl.get().setColorMetadataEnabled(tableId, enabled);
+  }
+
+  /**
+   * Request the compact encoding of the color metadata in the results of the
+   * queries that follow against a table. Instead of rowColors, statusColors
+   * and columnColors, the metadata then holds:
+   *
+   * <pre>
+   *   colorPalette: [ [ "#FG", "#BG" ], ... ],
+   *   rowColorRuns: [ paletteIndex, count, paletteIndex, count, ... ],
+   *   statusColorRuns: [ ... ],
+   *   columnColorRuns: { elementKey: [ ... ], ... }
+   * </pre>
+   *
+   * The runs cover the rows of the result in order; a palette index of -1
+   * means the rows have no color. A list of runs is empty if no row is colored.
+   * A list of runs expands back to one color pair (or null) per row:
+   *
+   * <pre>
+   *   function decodeColorRuns(palette, runs, numRows) {
+   *     var colors = new Array(numRows);
+   *     var row = 0;
+   *     for (var i = 0; i + 1 &lt; runs.length; i += 2) {
+   *       var pair = (runs[i] === -1) ? null : palette[runs[i]];
+   *       for (var end = row + runs[i + 1]; row &lt; end; ++row) {
+   *         colors[row] = (pair === null) ? null
+   *             : { foregroundColor: pair[0], backgroundColor: pair[1] };
+   *       }
+   *     }
+   *     for (; row &lt; numRows; ++row) {
+   *       colors[row] = null;
+   *     }
+   *     return colors;
+   *   }
+   *
+   *   var rowColors = decodeColorRuns(meta.colorPalette, meta.rowColorRuns, n);
+   *   for (var key in meta.columnColorRuns) {
+   *     columnColors[key] = decodeColorRuns(meta.colorPalette,
+   *         meta.columnColorRuns[key], n);
+   *   }
+   * </pre>
+   *
+   * @param tableId
+   * @param compact
+   * @return true if the setting was applied
+   */
+  @android.webkit.JavascriptInterface
+  public boolean setCompactColorMetadata(String tableId, boolean compact) {
+    if (isInactive()) return false;
+    return weakControl.get().setCompactColorMetadata(tableId, compact);
+  }
+
   /**
    * Open the item specified by the index to the detail view.
    *
@@ -15,6 +15,7 @@ import org.opendatakit.tables.utils.Constants;
  */
 public class OdkTablesWebView extends ODKWebView {
   private static final String t = "OdkTablesWebView";
+  private static final String BLANK_PAGE_URL = "about:blank";
 
   private OdkTables tables;
 
@@ -29,6 +30,18 @@ public class OdkTablesWebView extends ODKWebView {
         Constants.JavaScriptHandles.CONTROL);
   }
 
+  /**
+   * Unload the page, so that its javascript stops running while the web view
+   * sits idle in the pool, and forget what it registered. The next
+   * {@link #reloadPage()} loads the page afresh.
+   */
+  public void unloadPage() {
+    stopLoading();
+    tables.resetPageSession();
+    resetLoadPageStatus(BLANK_PAGE_URL);
+    loadUrl(BLANK_PAGE_URL);
+  }
+
   @Override public boolean hasPageFramework() {
     return false;
   }
@@ -49,6 +62,7 @@ public class OdkTablesWebView extends ODKWebView {
 
     if ( baseUrl != null ) {
       resetLoadPageStatus(baseUrl);
+      tables.resetPageSession();
 
       // Ensure that this is run on the UI thread
       if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
@@ -76,6 +90,7 @@ public class OdkTablesWebView extends ODKWebView {
     if ( baseUrl != null ) {
       if ( hasPageFrameworkFinishedLoading() || !baseUrl.equals(getLoadPageUrl()) ) {
         resetLoadPageStatus(baseUrl);
+        tables.resetPageSession();
         log.i(t, "reloadPage: full reload: " + baseUrl);
 
         // Ensure that this is run on the UI thread
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.data.ColorRuleGroup;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Parameterized queries that a page registers once, by a name of its
+ * choosing, and then runs any number of times with just the bind values.
+ * <p>
+ * Everything about the query that does not depend on the bind values is
+ * resolved when it is registered: the table's column definitions, the
+ * columns returned, the number of bind values expected, and the validity of
+ * the ordering. Running it then only checks the number of bind values and
+ * reads the rows, through the process-wide query result cache, so re-running
+ * it with unchanged values does not read the database at all. It is run on
+ * the javascript bridge thread, so at most {@link #MAX_RESULT_ROWS} rows are
+ * returned; larger results are read through a cursor instead.
+ * <p>
+ * The registrations last until the page is reloaded. The number registered is
+ * bounded; registering another forgets the least recently used one.
+ * <p>
+ * Thread safe.
+ */
+final class PreparedQueries {
+
+  static final int MAX_REGISTERED_QUERIES = 16;
+  /** The most rows a single run returns. */
+  static final int MAX_RESULT_ROWS = QueryCursors.MAX_CHUNK_SIZE;
+
+  static final class PreparedQuery {
+    final String queryId;
+    final String tableId;
+    final OrderedColumns orderedDefns;
+    /** the columns returned, in order */
+    final List<String> elementKeys;
+    final SQLQueryStruct query;
+    final int bindParamCount;
+
+    private PreparedQuery(String queryId, String tableId, OrderedColumns orderedDefns,
+        List<String> elementKeys, SQLQueryStruct query, int bindParamCount) {
+      this.queryId = queryId;
+      this.tableId = tableId;
+      this.orderedDefns = orderedDefns;
+      this.elementKeys = elementKeys;
+      this.query = query;
+      this.bindParamCount = bindParamCount;
+    }
+
+    /**
+     * @param bindParams
+     * @return the query, with the given bind values.
+     */
+    SQLQueryStruct bind(String[] bindParams) {
+      return new SQLQueryStruct(query.whereClause, bindParams, query.groupBy, query.having,
+          query.orderByElementKey, query.orderByDirection);
+    }
+  }
+
+  /** query id -> query, least recently used first */
+  private final LinkedHashMap<String, PreparedQuery> mQueries =
+      new LinkedHashMap<String, PreparedQuery>(MAX_REGISTERED_QUERIES + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedQuery> eldest) {
+          return size() > MAX_REGISTERED_QUERIES;
+        }
+      };
+
+  /**
+   * Register a query, replacing any registered under the same id.
+   *
+   * @param queryId
+   * @param tableId
+   * @param orderedDefns
+   * @param adminColumns
+   * @param whereClause
+   *          may contain ? placeholders for the bind values.
+   * @param groupBy
+   * @param having
+   *          may contain ? placeholders, bound after those of the where clause.
+   * @param orderByElementKey
+   * @param orderByDirection
+   * @throws IllegalArgumentException
+   *           if the ordering is not valid for the table, or a clause has
+   *           placeholders other than ? or comments.
+   */
+  synchronized void register(String queryId, String tableId, OrderedColumns orderedDefns,
+      String[] adminColumns, String whereClause, String[] groupBy, String having,
+      String orderByElementKey, String orderByDirection) {
+    List<String> elementKeys = new ArrayList<String>(orderedDefns.getRetentionColumnNames());
+    Collections.addAll(elementKeys, adminColumns);
+    if (orderByElementKey != null && !elementKeys.contains(orderByElementKey)) {
+      throw new IllegalArgumentException("table [" + tableId + "] has no column ["
+          + orderByElementKey + "] to order by");
+    }
+    if (orderByDirection != null && !"ASC".equalsIgnoreCase(orderByDirection)
+        && !"DESC".equalsIgnoreCase(orderByDirection)) {
+      throw new IllegalArgumentException("order by direction must be ASC or DESC");
+    }
+    SQLQueryStruct query = new SQLQueryStruct(whereClause, null, groupBy, having,
+        orderByElementKey, orderByDirection);
+    int bindParamCount = countBindParams(whereClause) + countBindParams(having);
+    mQueries.put(queryId, new PreparedQuery(queryId, tableId, orderedDefns,
+        Collections.unmodifiableList(elementKeys), query, bindParamCount));
+  }
+
+  /**
+   * @param queryId
+   * @return the query, or null if none is registered under that id.
+   */
+  synchronized PreparedQuery get(String queryId) {
+    return mQueries.get(queryId);
+  }
+
+  synchronized boolean unregister(String queryId) {
+    return mQueries.remove(queryId) != null;
+  }
+
+  /**
+   * Forget every query, e.g. when a new page is loaded.
+   */
+  synchronized void clear() {
+    mQueries.clear();
+  }
+
+  /**
+   * Run a registered query and serialize its result as:
+   *
+   * <pre>
+   *   {
+   *     queryId: "id",
+   *     numberOfRows: 12,
+   *     truncated: false,
+   *     elementKeys: [ "col1", ..., "_id", ... ],
+   *     rows: [ [ "value", ... ], ... ],
+   *     colorPalette: [ [ "#FG", "#BG" ], ... ],
+   *     rowColorRuns: [ paletteIndex, count, ... ],
+   *     statusColorRuns: [ ... ],
+   *     columnColorRuns: { elementKey: [ ... ], ... }
+   *   }
+   * </pre>
+   *
+   * At most {@link #MAX_RESULT_ROWS} rows are returned; truncated is true if
+   * there were more, which should be read through a cursor. The colors are in
+   * the compact encoding, and are left out if the page has declined color
+   * metadata for the table.
+   *
+   * @param appName
+   * @param preparedQuery
+   * @param bindParams
+   * @param withColors
+   * @return
+   * @throws ServicesAvailabilityException
+   * @throws JsonProcessingException
+   * @throws IllegalArgumentException
+   *           if the number of bind values is wrong.
+   */
+  static String execute(String appName, PreparedQuery preparedQuery, String[] bindParams,
+      boolean withColors) throws ServicesAvailabilityException, JsonProcessingException {
+    bindParams = checkBindParams(preparedQuery, bindParams);
+    SQLQueryStruct query = preparedQuery.bind(bindParams);
+    // run on the javascript bridge thread, so it is not queued and not delivered
+    long startNanos = System.nanoTime();
+    BridgeLatencyStats.CallTimings timings = new BridgeLatencyStats.CallTimings(appName,
+        startNanos, startNanos);
+    timings.tableId = preparedQuery.tableId;
+    timings.action = BridgeLatencyStats.ACTION_PREPARED_QUERY;
+
+    Map<String, Object> result = new HashMap<String, Object>();
+    DbHandle db = null;
+    try {
+      db = Tables.getInstance().getDatabase().openDatabase(appName);
+      UserTable userTable = Tables.getInstance().getQueryResultCache().query(appName, db,
+          preparedQuery.tableId, preparedQuery.orderedDefns, query.whereClause,
+          query.selectionArgs, query.groupBy, query.having,
+          (query.orderByElementKey == null) ? null : new String[] { query.orderByElementKey },
+          (query.orderByDirection == null) ? null : new String[] { query.orderByDirection },
+          MAX_RESULT_ROWS + 1, null);
+
+      // the extra row only tells whether there are more
+      int numberOfRows = Math.min(userTable.getNumberOfRows(), MAX_RESULT_ROWS);
+      List<List<String>> rows = new ArrayList<List<String>>(numberOfRows);
+      for (int i = 0; i < numberOfRows; ++i) {
+        Row row = userTable.getRowAtIndex(i);
+        List<String> values = new ArrayList<String>(preparedQuery.elementKeys.size());
+        for (String elementKey : preparedQuery.elementKeys) {
+          values.add(row.getDataByKey(elementKey));
+        }
+        rows.add(values);
+      }
+      result.put("queryId", preparedQuery.queryId);
+      result.put("numberOfRows", numberOfRows);
+      result.put("truncated", userTable.getNumberOfRows() > numberOfRows);
+      result.put("elementKeys", preparedQuery.elementKeys);
+      result.put("rows", rows);
+
+      timings.markMetadataStart();
+      if (withColors) {
+        putColors(appName, db, preparedQuery.tableId, preparedQuery.elementKeys, userTable,
+            numberOfRows, result);
+      }
+      timings.markMetadataEnd();
+    } finally {
+      if (db != null) {
+        Tables.getInstance().getDatabase().closeDatabase(appName, db);
+      }
+    }
+    String resultJSON = ODKFileUtils.mapper.writeValueAsString(result);
+    timings.markReady(resultJSON.length());
+    BridgeLatencyStats.get().record(timings);
+    return resultJSON;
+  }
+
+  /**
+   * @return the bind values, never null.
+   * @throws IllegalArgumentException
+   *           if there are not as many as the query has placeholders.
+   */
+  static String[] checkBindParams(PreparedQuery preparedQuery, String[] bindParams) {
+    if (bindParams == null) {
+      bindParams = new String[0];
+    }
+    if (bindParams.length != preparedQuery.bindParamCount) {
+      throw new IllegalArgumentException("query [" + preparedQuery.queryId + "] takes "
+          + preparedQuery.bindParamCount + " bind values, not " + bindParams.length);
+    }
+    return bindParams;
+  }
+
+  /**
+   * Evaluate the table's color rules over the first rows of a result and put
+   * the compact runs (see {@link ColorPalette}) in it.
+   *
+   * @param appName
+   * @param db
+   * @param tableId
+   * @param elementKeys
+   *          the columns in the result; only their column colors are added.
+   * @param userTable
+   * @param numberOfRows
+   *          the number of rows of the result, from the first.
+   * @param result
+   * @throws ServicesAvailabilityException
+   */
+  static void putColors(String appName, DbHandle db, String tableId, List<String> elementKeys,
+      UserTable userTable, int numberOfRows, Map<String, Object> result)
+      throws ServicesAvailabilityException {
+    ColorRuleGroupCache.TableColorRules rules = ColorRuleGroupCache.get().getColorRules(appName,
+        db, tableId, Tables.getInstance().getDatabase().getAdminColumns());
+    ColorPalette palette = new ColorPalette();
+    int[] rowColorIndexes = firstRows(TableDataExecutorProcessor.evaluateColors(userTable,
+        rules.tableRules, palette), numberOfRows);
+    int[] statusColorIndexes = firstRows(TableDataExecutorProcessor.evaluateColors(userTable,
+        rules.statusRules, palette), numberOfRows);
+    Map<String, List<Integer>> columnColorRuns = new HashMap<String, List<Integer>>();
+    for (Map.Entry<String, ColorRuleGroup> entry : rules.columnRules.entrySet()) {
+      if (!elementKeys.contains(entry.getKey())) {
+        continue;
+      }
+      int[] indexes = firstRows(TableDataExecutorProcessor.evaluateColors(userTable,
+          entry.getValue(), palette), numberOfRows);
+      if (indexes != null) {
+        columnColorRuns.put(entry.getKey(), ColorPalette.runLengthEncode(indexes));
+      }
+    }
+    result.put(TableDataExecutorProcessor.COLOR_PALETTE, palette.toList());
+    result.put(TableDataExecutorProcessor.ROW_COLOR_RUNS, ColorPalette.runLengthEncode(
+        (rowColorIndexes == null) ? new int[0] : rowColorIndexes));
+    result.put(TableDataExecutorProcessor.STATUS_COLOR_RUNS, ColorPalette.runLengthEncode(
+        (statusColorIndexes == null) ? new int[0] : statusColorIndexes));
+    result.put(TableDataExecutorProcessor.COLUMN_COLOR_RUNS, columnColorRuns);
+  }
+
+  /**
+   * @return the palette indexes of the first rows only, or null.
+   */
+  private static int[] firstRows(int[] indexes, int numberOfRows) {
+    return (indexes == null || indexes.length <= numberOfRows) ? indexes
+        : Arrays.copyOf(indexes, numberOfRows);
+  }
+
+  /**
+   * @param clause
+   * @return the number of ? placeholders in the clause, outside of quoted
+   *         literals and identifiers.
+   * @throws IllegalArgumentException
+   *           if the clause has numbered (?NNN) or named (:name, @name,
+   *           $name) placeholders, which would be bound out of order, or
+   *           comments, which could hide placeholders.
+   */
+  static int countBindParams(String clause) {
+    if (clause == null) {
+      return 0;
+    }
+    int count = 0;
+    char quote = 0;
+    for (int i = 0; i < clause.length(); ++i) {
+      char c = clause.charAt(i);
+      char next = (i + 1 < clause.length()) ? clause.charAt(i + 1) : 0;
+      if (quote != 0) {
+        // a doubled quote within a literal toggles out and back in again
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (c == '\'' || c == '"' || c == '`') {
+        quote = c;
+      } else if (c == '[') {
+        quote = ']';
+      } else if ((c == '-' && next == '-') || (c == '/' && next == '*')) {
+        throw new IllegalArgumentException("comments are not allowed in [" + clause + "]");
+      } else if (c == '?') {
+        if (Character.isDigit(next)) {
+          throw new IllegalArgumentException("only unnumbered ? placeholders are allowed in ["
+              + clause + "]");
+        }
+        ++count;
+      } else if ((c == ':' || c == '@' || c == '$')
+          && (Character.isLetterOrDigit(next) || next == '_')) {
+        throw new IllegalArgumentException("named placeholders are not allowed in ["
+            + clause + "]");
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.tables.application.Tables;
+import org.opendatakit.tables.data.PagedUserTable;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Query results that are handed to a web view a chunk of rows at a time.
+ * <p>
+ * Rather than serializing the entire result of a query into one response, a
+ * cursor is opened over it and the web view pulls one chunk of rows at a
+ * time. Each cursor reads its rows through a {@link PagedUserTable} whose
+ * page is the chunk and which holds a single page, so only one chunk of rows
+ * is in memory (and in each response string) regardless of the size of the
+ * result. Rows are read with LIMIT/OFFSET as they are requested.
+ * <p>
+ * The rows are counted once, when the first chunk is read, so numberOfRows
+ * and lastChunk describe the result as it was then. A chunk itself is read
+ * when it is requested (through the query result cache, which writes
+ * invalidate), so if the table changes while a cursor is open the rows can
+ * shift between chunks, or a chunk can come back short; a short chunk is
+ * reported as the last one. Reopen the cursor to see a consistent result
+ * after a change.
+ * <p>
+ * Unless the page has declined color metadata for the table, the color rules
+ * are evaluated over the rows of each chunk as it is read, as they are for a
+ * single response.
+ * <p>
+ * The number of open cursors is bounded; opening another closes the least
+ * recently used one.
+ * <p>
+ * Thread safe.
+ */
+final class QueryCursors {
+
+  private static final String TAG = QueryCursors.class.getSimpleName();
+
+  static final int DEFAULT_CHUNK_SIZE = 200;
+  static final int MAX_CHUNK_SIZE = 2000;
+  static final int MAX_OPEN_CURSORS = 4;
+
+  private static final class Cursor {
+    final PagedUserTable rows;
+    final List<String> elementKeys;
+    final boolean withColors;
+
+    Cursor(PagedUserTable rows, List<String> elementKeys, boolean withColors) {
+      this.rows = rows;
+      this.elementKeys = elementKeys;
+      this.withColors = withColors;
+    }
+  }
+
+  /** cursor id -> cursor, least recently used first */
+  private final LinkedHashMap<String, Cursor> mCursors =
+      new LinkedHashMap<String, Cursor>(MAX_OPEN_CURSORS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest) {
+          return size() > MAX_OPEN_CURSORS;
+        }
+      };
+
+  /**
+   * Open a cursor over the result of a query.
+   *
+   * @param appName
+   * @param tableId
+   * @param orderedDefns
+   * @param adminColumns
+   * @param query
+   * @param chunkSize
+   *          the number of rows per chunk; defaulted or capped if out of range.
+   * @param withColors
+   *          whether to add the colors of the rows to each chunk.
+   * @return the id of the cursor.
+   */
+  synchronized String open(String appName, String tableId, OrderedColumns orderedDefns,
+      String[] adminColumns, SQLQueryStruct query, int chunkSize, boolean withColors) {
+    if (chunkSize <= 0) {
+      chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+    chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+    List<String> elementKeys = new ArrayList<String>(orderedDefns.getRetentionColumnNames());
+    for (String adminColumn : adminColumns) {
+      elementKeys.add(adminColumn);
+    }
+    String cursorId = UUID.randomUUID().toString();
+    mCursors.put(cursorId, new Cursor(
+        new PagedUserTable(appName, tableId, orderedDefns, query, chunkSize, 1), elementKeys,
+        withColors));
+    return cursorId;
+  }
+
+  /**
+   * Read a chunk of rows from a cursor, serialized as:
+   *
+   * <pre>
+   *   {
+   *     cursorId: "id",
+   *     chunkIndex: 0,
+   *     chunkSize: 200,
+   *     numberOfRows: 1234,
+   *     lastChunk: false,
+   *     elementKeys: [ "col1", ..., "_id", ... ],
+   *     rows: [ [ "value", ... ], ... ],
+   *     colorPalette: [ [ "#FG", "#BG" ], ... ],
+   *     rowColorRuns: [ paletteIndex, count, ... ],
+   *     statusColorRuns: [ ... ],
+   *     columnColorRuns: { elementKey: [ ... ], ... }
+   *   }
+   * </pre>
+   *
+   * The values of each row are in the order of elementKeys. The colors are in
+   * the compact encoding, their runs starting at the first row of the chunk,
+   * and are left out if the cursor was opened without them.
+   *
+   * @param cursorId
+   * @param chunkIndex
+   * @return the chunk, or null if there is no such cursor.
+   * @throws JsonProcessingException
+   */
+  String getChunk(String cursorId, int chunkIndex) throws JsonProcessingException {
+    Cursor cursor;
+    synchronized (this) {
+      cursor = mCursors.get(cursorId);
+    }
+    if (cursor == null) {
+      return null;
+    }
+    // the database is read outside of the lock on the cursors
+    int chunkSize = cursor.rows.getPageSize();
+    int numberOfRows = cursor.rows.getNumberOfRows();
+    chunkIndex = Math.max(0, chunkIndex);
+    int first = chunkIndex * chunkSize;
+    int end = Math.min(numberOfRows, first + chunkSize);
+    // the chunk is a single page of the cursor's rows
+    UserTable page = (end > first) ? cursor.rows.getPageRows(chunkIndex) : null;
+    int count = (page == null) ? 0 : Math.min(page.getNumberOfRows(), end - first);
+    // a short chunk means the table has fewer rows than were counted when the
+    // cursor opened
+    boolean lastChunk = end >= numberOfRows || count < end - first;
+    List<List<String>> rows = new ArrayList<List<String>>(count);
+    for (int i = 0; i < count; ++i) {
+      Row row = page.getRowAtIndex(i);
+      List<String> values = new ArrayList<String>(cursor.elementKeys.size());
+      for (String elementKey : cursor.elementKeys) {
+        values.add(row.getDataByKey(elementKey));
+      }
+      rows.add(values);
+    }
+
+    Map<String, Object> chunk = new HashMap<String, Object>();
+    chunk.put("cursorId", cursorId);
+    chunk.put("chunkIndex", chunkIndex);
+    chunk.put("chunkSize", chunkSize);
+    chunk.put("numberOfRows", numberOfRows);
+    chunk.put("lastChunk", lastChunk);
+    chunk.put("elementKeys", cursor.elementKeys);
+    chunk.put("rows", rows);
+    if (cursor.withColors && page != null) {
+      putColors(cursor, page, count, chunk);
+    }
+    return ODKFileUtils.mapper.writeValueAsString(chunk);
+  }
+
+  private static void putColors(Cursor cursor, UserTable page, int count,
+      Map<String, Object> chunk) {
+    String appName = cursor.rows.getAppName();
+    DbHandle db = null;
+    try {
+      db = Tables.getInstance().getDatabase().openDatabase(appName);
+      PreparedQueries.putColors(appName, db, cursor.rows.getTableId(), cursor.elementKeys, page,
+          count, chunk);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(TAG, "[getChunk] unable to evaluate color rules");
+    } finally {
+      if (db != null) {
+        try {
+          Tables.getInstance().getDatabase().closeDatabase(appName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Close a cursor, releasing its rows.
+   *
+   * @param cursorId
+   * @return false if there was no such cursor.
+   */
+  synchronized boolean close(String cursorId) {
+    return mCursors.remove(cursorId) != null;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * The responses to the web view's data requests, waiting for the web view to
+ * take them.
+ * <p>
+ * Responses are added by the executor's threads as requests complete and
+ * taken, oldest first, by the javascript bridge thread. The channel has a
+ * capacity: a producer that finds it full waits for the web view to catch up,
+ * which holds back the executor rather than letting responses pile up in
+ * memory. A response is never dropped, though. After
+ * {@link #MAX_PRODUCER_WAIT_MILLIS}, or immediately if the producer may not
+ * wait (e.g. it is the UI thread, which the web view needs in order to be
+ * told of the responses, or there is no web view to take it), it is added
+ * regardless. Producers already waiting when the web view goes away are let
+ * through by {@link #releaseProducers()}.
+ * <p>
+ * The depth of the queue, the time producers spent waiting and the time
+ * responses spent in the queue are recorded. A response added by the
+ * executor's thread carries the timings of its call, which are recorded in the
+ * {@link BridgeLatencyStats} when the web view takes it.
+ * <p>
+ * Thread safe.
+ */
+public class ResponseChannel {
+
+  public static final int DEFAULT_CAPACITY = 32;
+  /** The longest a producer waits for room before adding anyway. */
+  public static final long MAX_PRODUCER_WAIT_MILLIS = 5000;
+
+  private static final class Response {
+    final String json;
+    final long enqueuedNanos;
+    /** the timings of the call that produced it, if known */
+    final BridgeLatencyStats.CallTimings timings;
+
+    Response(String json, long enqueuedNanos, BridgeLatencyStats.CallTimings timings) {
+      this.json = json;
+      this.enqueuedNanos = enqueuedNanos;
+      this.timings = timings;
+    }
+  }
+
+  private final int mCapacity;
+  private final ArrayDeque<Response> mQueue = new ArrayDeque<Response>();
+
+  private int mMaxDepth = 0;
+  private long mResponsesAdded = 0;
+  private long mResponsesTaken = 0;
+  /** number of responses added past the capacity */
+  private long mOverflows = 0;
+  private long mProducerWaits = 0;
+  private long mProducerWaitNanos = 0;
+  private long mQueuedNanos = 0;
+  private long mMaxQueuedNanos = 0;
+  /** bumped to let the producers that are waiting through */
+  private int mReleases = 0;
+
+  public ResponseChannel(int capacity) {
+    this.mCapacity = capacity;
+  }
+
+  /**
+   * Add a response at the end of the channel.
+   *
+   * @param responseJSON
+   * @param mayWait
+   *          whether the caller may be held until there is room.
+   * @return the time, in nanoseconds, spent waiting for room.
+   */
+  public synchronized long put(String responseJSON, boolean mayWait) {
+    BridgeLatencyStats.CallTimings timings = BridgeLatencyStats.get().responseReady(
+        responseJSON.length());
+    long waitedNanos = 0;
+    if (mayWait && mQueue.size() >= mCapacity) {
+      long start = System.nanoTime();
+      long deadline = start + MAX_PRODUCER_WAIT_MILLIS * 1000000L;
+      int releases = mReleases;
+      try {
+        long remaining;
+        while (mQueue.size() >= mCapacity && releases == mReleases
+            && (remaining = deadline - System.nanoTime()) > 0) {
+          wait(Math.max(1, remaining / 1000000L));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      waitedNanos = System.nanoTime() - start;
+      ++mProducerWaits;
+      mProducerWaitNanos += waitedNanos;
+    }
+    if (mQueue.size() >= mCapacity) {
+      ++mOverflows;
+    }
+    if (timings != null) {
+      timings.backpressureNanos = waitedNanos;
+    }
+    mQueue.addLast(new Response(responseJSON, System.nanoTime(), timings));
+    ++mResponsesAdded;
+    mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+    return waitedNanos;
+  }
+
+  /**
+   * Take the oldest response.
+   *
+   * @return the response, or null if there is none.
+   */
+  public String poll() {
+    Response response;
+    long queuedNanos;
+    synchronized (this) {
+      response = mQueue.pollFirst();
+      if (response == null) {
+        return null;
+      }
+      queuedNanos = System.nanoTime() - response.enqueuedNanos;
+      ++mResponsesTaken;
+      mQueuedNanos += queuedNanos;
+      mMaxQueuedNanos = Math.max(mMaxQueuedNanos, queuedNanos);
+      notifyAll();
+    }
+    // recorded outside of the lock, as it may write a summary to disk
+    if (response.timings != null) {
+      response.timings.delivered(queuedNanos);
+    }
+    return response.json;
+  }
+
+  /**
+   * Stop the producers that are waiting for room from waiting any longer,
+   * e.g. because the web view that would have taken the responses is gone.
+   */
+  public synchronized void releaseProducers() {
+    ++mReleases;
+    notifyAll();
+  }
+
+  public synchronized boolean isEmpty() {
+    return mQueue.isEmpty();
+  }
+
+  public synchronized int size() {
+    return mQueue.size();
+  }
+
+  /**
+   * @return the responses, oldest first, e.g. to save them across a
+   *         configuration change.
+   */
+  public synchronized String[] toArray() {
+    String[] responses = new String[mQueue.size()];
+    int i = 0;
+    for (Response response : mQueue) {
+      responses[i++] = response.json;
+    }
+    return responses;
+  }
+
+  /**
+   * Replace the contents of the channel, e.g. with the responses saved by
+   * {@link #toArray()}. The capacity is not enforced.
+   *
+   * @param responses
+   *          oldest first.
+   */
+  public synchronized void restore(Collection<String> responses) {
+    mQueue.clear();
+    long now = System.nanoTime();
+    for (String json : responses) {
+      mQueue.addLast(new Response(json, now, null));
+    }
+    mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+    notifyAll();
+  }
+
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  public synchronized int getMaxDepth() {
+    return mMaxDepth;
+  }
+
+  public synchronized long getResponsesAdded() {
+    return mResponsesAdded;
+  }
+
+  public synchronized long getResponsesTaken() {
+    return mResponsesTaken;
+  }
+
+  public synchronized long getOverflows() {
+    return mOverflows;
+  }
+
+  public synchronized long getProducerWaits() {
+    return mProducerWaits;
+  }
+
+  /**
+   * @return the total time producers spent waiting for room, in milliseconds.
+   */
+  public synchronized double getProducerWaitMillis() {
+    return mProducerWaitNanos / 1000000.0;
+  }
+
+  /**
+   * @return the mean time a response spent in the channel before it was taken,
+   *         in milliseconds.
+   */
+  public synchronized double getMeanQueuedMillis() {
+    return (mResponsesTaken == 0) ? 0 : mQueuedNanos / (mResponsesTaken * 1000000.0);
+  }
+
+  /**
+   * @return the longest time a response spent in the channel, in milliseconds.
+   */
+  public synchronized double getMaxQueuedMillis() {
+    return mMaxQueuedNanos / 1000000.0;
+  }
+}
@@ -22,6 +22,7 @@ import org.opendatakit.database.data.UserTable;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.views.ExecutorContext;
 import org.opendatakit.views.ExecutorProcessor;
+import org.opendatakit.views.ExecutorRequest;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.tables.activities.AbsBaseWebActivity;
@@ -30,9 +31,12 @@ import org.opendatakit.tables.fragments.MapListViewFragment;
 import org.opendatakit.tables.utils.Constants;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author mitchellsundt@gmail.com
@@ -46,51 +50,147 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
   protected static final String COLUMN_COLORS = "columnColors";
   protected static final String MAP_INDEX = "mapIndex";
 
-  enum colorRuleType {
-    TABLE,
-    COLUMN,
-    STATUS
-  };
+  // the compact encoding of the colors, see ColorPalette; the JS decoder is in
+  // the doc of OdkTablesIf.setCompactColorMetadata
+  protected static final String COLOR_PALETTE = "colorPalette";
+  protected static final String ROW_COLOR_RUNS = "rowColorRuns";
+  protected static final String STATUS_COLOR_RUNS = "statusColorRuns";
+  protected static final String COLUMN_COLOR_RUNS = "columnColorRuns";
+
+  /**
+   * The names of the library's request types that only read. Any other
+   * request may have written to the table it names, or to any table if it
+   * names none.
+   */
+  private static final Set<String> READ_ONLY_REQUEST_TYPES = new HashSet<String>(Arrays.asList(
+      "UPDATE_EXECUTOR_CONTEXT", "GET_ROLES_LIST", "GET_DEFAULT_GROUP", "GET_USERS_LIST",
+      "GET_ALL_TABLE_IDS", "GET_TABLE_METADATA", "ARBITRARY_QUERY", "USER_TABLE_QUERY",
+      "USER_TABLE_GET_ROWS", "USER_TABLE_GET_MOST_RECENT_ROW"));
+
+  private final ExecutorContext mContext;
+  /** whether the request processed was a query */
+  private boolean mProcessedQuery = false;
+  /** when the request was queued; the context creates a processor for each */
+  private final long mQueuedNanos = System.nanoTime();
+  private BridgeLatencyStats.CallTimings mTimings;
 
   public TableDataExecutorProcessor(ExecutorContext context, AbsBaseWebActivity activity) {
     super(context);
+    this.mContext = context;
     this.mActivity = activity;
   }
 
   @Override
-  protected void extendQueryMetadata(DbHandle db, List<KeyValueStoreEntry> entries, UserTable userTable, Map<String, Object> metadata) {
-    // TODO: construct color rule data here...
-    String [] adminCols = ADMIN_COLUMNS.toArray(new String[0]);
-
+  public void run() {
+    mProcessedQuery = false;
+    // the request being processed; it is only removed from the queue once done
+    ExecutorRequest request = mContext.peekRequest();
+    mTimings = BridgeLatencyStats.get().begin(
+        (mActivity == null) ? null : mActivity.getAppName(), mQueuedNanos);
+    try {
+      super.run();
+    } finally {
+      BridgeLatencyStats.get().end(mTimings);
+      if (request != null && !mProcessedQuery) {
+        invalidateWrittenTables(request);
+      }
+    }
+  }
 
-    ArrayList<RowColorObject> rowColors = new ArrayList<RowColorObject>();
-    ArrayList<RowColorObject> statusColors = new ArrayList<RowColorObject>();
-    HashMap<String, ArrayList<RowColorObject>> colColors = new HashMap<String, ArrayList<RowColorObject>>();
+  /**
+   * The add, update, delete and checkpoint requests are processed by the
+   * library, so the cached query results of the table a request names are
+   * discarded after every request that is not known to only read.
+   */
+  private void invalidateWrittenTables(ExecutorRequest request) {
+    if (request.executorRequestType != null
+        && READ_ONLY_REQUEST_TYPES.contains(request.executorRequestType.name())) {
+      return;
+    }
+    if (mActivity == null) {
+      Tables.getInstance().getQueryResultCache().invalidateAll();
+    } else if (request.tableId == null) {
+      Tables.getInstance().getQueryResultCache().invalidateApp(mActivity.getAppName());
+    } else {
+      Tables.getInstance().getQueryResultCache().invalidateTable(mActivity.getAppName(),
+          request.tableId);
+    }
+  }
 
+  @Override
+  protected void extendQueryMetadata(DbHandle db, List<KeyValueStoreEntry> entries, UserTable userTable, Map<String, Object> metadata) {
+    mProcessedQuery = true;
+    mTimings.tableId = userTable.getTableId();
+    mTimings.action = BridgeLatencyStats.ACTION_QUERY;
+    mTimings.markMetadataStart();
     try {
-      // Need to get the tables color rules and determine which rows are affected
-      constructRowColorObjects(db, userTable, adminCols, rowColors, colorRuleType.TABLE, null);
-
-      // Need to get the status color rules and determine which rows are affected
-      constructRowColorObjects(db, userTable, adminCols, statusColors, colorRuleType.STATUS, null);
-
-      // Need to get column color rules working
-      Map<String, Integer> elementKeyMap = (Map<String, Integer>) metadata.get("elementKeyMap");
-      for (String elementKey : elementKeyMap.keySet()) {
-        ArrayList<RowColorObject> colColorGuide = new ArrayList<RowColorObject>();
-        constructRowColorObjects(db, userTable, adminCols, colColorGuide, colorRuleType.COLUMN, elementKey);
-        if (colColorGuide.size() > 0) {
-          colColors.put(elementKey, colColorGuide);
+      extendQueryMetadataImpl(db, entries, userTable, metadata);
+    } finally {
+      mTimings.markMetadataEnd();
+    }
+  }
+
+  private void extendQueryMetadataImpl(DbHandle db, List<KeyValueStoreEntry> entries,
+      UserTable userTable, Map<String, Object> metadata) {
+    String [] adminCols = ADMIN_COLUMNS.toArray(new String[0]);
+
+    String tableId = userTable.getTableId();
+    boolean compact = (mActivity != null) && mActivity.isCompactColorMetadata(tableId);
+
+    ColorPalette palette = new ColorPalette();
+    int[] rowColorIndexes = null;
+    int[] statusColorIndexes = null;
+    Map<String, int[]> colColorIndexes = new HashMap<String, int[]>();
+
+    // the web view may have opted out of color metadata for this table
+    if (mActivity == null || mActivity.isColorMetadataEnabled(tableId)) {
+      try {
+        ColorRuleGroupCache.TableColorRules rules = ColorRuleGroupCache.get().getColorRules(
+            userTable.getAppName(), db, tableId, entries, adminCols);
+
+        // Need to get the tables color rules and determine which rows are affected
+        rowColorIndexes = evaluateColors(userTable, rules.tableRules, palette);
+
+        // Need to get the status color rules and determine which rows are affected
+        statusColorIndexes = evaluateColors(userTable, rules.statusRules, palette);
+
+        // Need to get column color rules working; only the columns with rules
+        Map<String, Integer> elementKeyMap = (Map<String, Integer>) metadata.get("elementKeyMap");
+        for (Map.Entry<String, ColorRuleGroup> entry : rules.columnRules.entrySet()) {
+          if (!elementKeyMap.containsKey(entry.getKey())) {
+            continue;
+          }
+          int[] colColorGuide = evaluateColors(userTable, entry.getValue(), palette);
+          if (colColorGuide != null) {
+            colColorIndexes.put(entry.getKey(), colColorGuide);
+          }
         }
-      }
 
-    } catch (ServicesAvailabilityException e) {
-      e.printStackTrace();
+      } catch (ServicesAvailabilityException e) {
+        e.printStackTrace();
+      }
     }
 
-    metadata.put(ROW_COLORS, rowColors);
-    metadata.put(STATUS_COLORS, statusColors);
-    metadata.put(COLUMN_COLORS, colColors);
+    if (compact) {
+      HashMap<String, List<Integer>> colColorRuns = new HashMap<String, List<Integer>>();
+      for (Map.Entry<String, int[]> entry : colColorIndexes.entrySet()) {
+        colColorRuns.put(entry.getKey(), ColorPalette.runLengthEncode(entry.getValue()));
+      }
+      metadata.put(COLOR_PALETTE, palette.toList());
+      metadata.put(ROW_COLOR_RUNS, ColorPalette.runLengthEncode(
+          (rowColorIndexes == null) ? new int[0] : rowColorIndexes));
+      metadata.put(STATUS_COLOR_RUNS, ColorPalette.runLengthEncode(
+          (statusColorIndexes == null) ? new int[0] : statusColorIndexes));
+      metadata.put(COLUMN_COLOR_RUNS, colColorRuns);
+    } else {
+      HashMap<String, ArrayList<RowColorObject>> colColors = new HashMap<String, ArrayList<RowColorObject>>();
+      for (Map.Entry<String, int[]> entry : colColorIndexes.entrySet()) {
+        colColors.put(entry.getKey(), constructRowColorObjects(userTable, entry.getValue(), palette));
+      }
+      metadata.put(ROW_COLORS, constructRowColorObjects(userTable, rowColorIndexes, palette));
+      metadata.put(STATUS_COLORS, constructRowColorObjects(userTable, statusColorIndexes, palette));
+      metadata.put(COLUMN_COLORS, colColors);
+    }
 
     if (mActivity != null) {
       MapListViewFragment mlvFragment = (MapListViewFragment) mActivity.getFragmentManager().findFragmentByTag(Constants.FragmentTags.MAP_LIST);
@@ -101,38 +201,52 @@ public class TableDataExecutorProcessor extends ExecutorProcessor {
     }
   }
 
-  private void constructRowColorObjects(DbHandle db, UserTable userTable, String[] adminCols, ArrayList<RowColorObject>colors, colorRuleType crType, String elementKey) throws
-      ServicesAvailabilityException {
-    // Should reuse this code for column and status color rules
-
-    ColorRuleGroup crg = null;
-
-    // Get the table color rules and determine which rows are affected
-    if (crType == colorRuleType.TABLE) {
-      crg = ColorRuleGroup.getTableColorRuleGroup(Tables.getInstance(), userTable.getAppName(), db, userTable.getTableId(), adminCols);
-    } else if (crType == colorRuleType.COLUMN) {
-      crg = ColorRuleGroup.getColumnColorRuleGroup(Tables.getInstance(), userTable.getAppName(), db, userTable.getTableId(), elementKey, adminCols);
-    } else if (crType == colorRuleType.STATUS) {
-      crg = ColorRuleGroup.getStatusColumnRuleGroup(Tables.getInstance(), userTable.getAppName(), db, userTable.getTableId(), adminCols);
-
-    } else {
-      return;
+  /**
+   * Apply a group of color rules to every row.
+   *
+   * @param userTable
+   * @param crg
+   * @param palette
+   * @return the palette index of each row's colors, or
+   *         {@link ColorPalette#NO_COLOR}. Null if no row is colored.
+   */
+  static int[] evaluateColors(UserTable userTable, ColorRuleGroup crg, ColorPalette palette) {
+    if (crg == null) {
+      // no rules
+      return null;
     }
 
     ColorGuideGroup cgg = new ColorGuideGroup(crg, userTable);
 
+    int[] indexes = new int[userTable.getNumberOfRows()];
+    boolean anyColored = false;
     // Loop through the rows
     for (int i = 0; i < userTable.getNumberOfRows(); i++) {
       ColorGuide tcg = cgg.getColorGuideForRowIndex(i);
 
       if (tcg != null) {
-        //String hexFgString = "#" + Integer.toHexString(0x00FFFFFF & tcg.getForeground());
-        String hexFgString = String.format("#%06X", (0xFFFFFF & tcg.getForeground()));
-        //String hexBgString = "#" + Integer.toHexString(0x00FFFFFF & tcg.getBackground());
-        String hexBgString = String.format("#%06X", (0xFFFFFF & tcg.getBackground()));
-        RowColorObject rco = new RowColorObject(userTable.getRowId(i), i, hexFgString, hexBgString);
+        indexes[i] = palette.indexOf(tcg.getForeground(), tcg.getBackground());
+        anyColored = true;
+      } else {
+        indexes[i] = ColorPalette.NO_COLOR;
+      }
+    }
+    return anyColored ? indexes : null;
+  }
+
+  private ArrayList<RowColorObject> constructRowColorObjects(UserTable userTable, int[] indexes,
+      ColorPalette palette) {
+    ArrayList<RowColorObject> colors = new ArrayList<RowColorObject>();
+    if (indexes == null) {
+      return colors;
+    }
+    for (int i = 0; i < indexes.length; i++) {
+      if (indexes[i] != ColorPalette.NO_COLOR) {
+        RowColorObject rco = new RowColorObject(userTable.getRowId(i), i,
+            palette.getForeground(indexes[i]), palette.getBackground(indexes[i]));
         colors.add(rco);
       }
     }
+    return colors;
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import java.util.ArrayDeque;
+
+import org.opendatakit.tables.activities.AbsBaseWebActivity;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.ViewGroup;
+
+/**
+ * A small pool of {@link OdkTablesWebView}s for the web fragments of an
+ * activity.
+ * <p>
+ * Creating a web view (and the renderer behind it, and the javascript
+ * interfaces bound to it) is a large part of the cost of showing a list,
+ * detail or map list view. The fragments instead borrow a web view when their
+ * view is created and return it when it is destroyed, so that switching
+ * between views, or recreating the fragments on a refresh, only loads the
+ * view's HTML into a web view that already exists. Idle web views can also be
+ * created ahead of time, while the UI thread has nothing else to do.
+ * <p>
+ * The web views are bound to the activity, so each activity has its own pool.
+ * Not thread safe; it is only accessed from the UI thread.
+ */
+public class WebViewPool {
+
+  /** The most web views kept idle; any more returned are destroyed. */
+  public static final int MAX_IDLE_VIEWS = 2;
+
+  private final AbsBaseWebActivity mActivity;
+  private final ArrayDeque<OdkTablesWebView> mIdleViews = new ArrayDeque<OdkTablesWebView>();
+  private boolean mDestroyed = false;
+
+  public WebViewPool(AbsBaseWebActivity activity) {
+    this.mActivity = activity;
+  }
+
+  /**
+   * Borrow a web view, creating one if none is idle. It has no parent and no
+   * page loaded.
+   *
+   * @return
+   */
+  public OdkTablesWebView acquire() {
+    OdkTablesWebView webView = mIdleViews.pollFirst();
+    if (webView == null) {
+      webView = new OdkTablesWebView(mActivity, null);
+    }
+    return webView;
+  }
+
+  /**
+   * Return a borrowed web view, removing it from its parent and unloading its
+   * page so that the page's scripts do not keep running while it is idle.
+   *
+   * @param webView
+   */
+  public void release(OdkTablesWebView webView) {
+    ViewGroup parent = (ViewGroup) webView.getParent();
+    if (parent != null) {
+      parent.removeView(webView);
+    }
+    if (mDestroyed || mIdleViews.size() >= MAX_IDLE_VIEWS) {
+      webView.destroy();
+      return;
+    }
+    webView.unloadPage();
+    mIdleViews.addLast(webView);
+  }
+
+  /**
+   * Create idle web views, one each time the UI thread is idle, until there
+   * are the given number of them.
+   *
+   * @param count
+   *          at most {@link #MAX_IDLE_VIEWS}.
+   */
+  public void prewarm(int count) {
+    final int target = Math.min(count, MAX_IDLE_VIEWS);
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override
+      public boolean queueIdle() {
+        if (mDestroyed || mIdleViews.size() >= target) {
+          return false;
+        }
+        mIdleViews.addLast(new OdkTablesWebView(mActivity, null));
+        // keep going on the next idle, if more are needed
+        return mIdleViews.size() < target;
+      }
+    });
+  }
+
+  /**
+   * Destroy the idle web views. Web views returned afterwards are destroyed
+   * as well.
+   */
+  public void destroy() {
+    mDestroyed = true;
+    for (OdkTablesWebView webView : mIdleViews) {
+      webView.destroy();
+    }
+    mIdleViews.clear();
+  }
+}
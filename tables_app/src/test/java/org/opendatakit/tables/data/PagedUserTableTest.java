@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.ElementType;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.tables.utils.SQLQueryStruct;
+
+public class PagedUserTableTest {
+
+  private static final String APP_NAME = "tables";
+  private static final String TABLE_ID = "people";
+  private static final String NAME = "name";
+  private static final int PAGE_SIZE = 10;
+
+  private FakeRowSource source;
+
+  @Before
+  public void setUp() {
+    source = new FakeRowSource();
+    source.save("r1", "alice", "2016-01-01T00:00:01");
+    source.save("r2", "bob", "2016-01-01T00:00:02");
+    source.save("r3", "carol", "2016-01-01T00:00:03");
+  }
+
+  @Test
+  public void nothingSavedMergesWithoutChanges() {
+    PagedUserTable table = readTable(null);
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertEquals(0, changes.changedRows.length);
+    assertFalse(changes.rowsMoved);
+  }
+
+  @Test
+  public void editedRowIsReReadInPlace() {
+    PagedUserTable table = readTable(null);
+    source.save("r2", "robert", "2016-01-01T00:00:04");
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertArrayEquals(new int[] { 1 }, changes.changedRows);
+    assertFalse(changes.rowsMoved);
+    assertEquals(3, table.getNumberOfRows());
+    assertEquals("robert", nameAt(table, 1));
+    assertEquals("alice", nameAt(table, 0));
+    assertEquals("carol", nameAt(table, 2));
+  }
+
+  @Test
+  public void mergedEditAdvancesWatermark() {
+    PagedUserTable table = readTable(null);
+    source.save("r2", "robert", "2016-01-01T00:00:04");
+    assertNotNull(table.mergeChangesSinceWatermark());
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertEquals(0, changes.changedRows.length);
+    assertFalse(changes.rowsMoved);
+  }
+
+  @Test
+  public void addedRowIsAcceptedAtEnd() {
+    PagedUserTable table = readTable(null);
+    source.save("r4", "dave", "2016-01-01T00:00:04");
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertEquals(0, changes.changedRows.length);
+    assertTrue(changes.rowsMoved);
+    assertEquals(4, table.getNumberOfRows());
+    assertEquals("dave", nameAt(table, 3));
+  }
+
+  @Test
+  public void addedRowThatDoesNotSortLastFallsBackToReload() {
+    PagedUserTable table = readTable(NAME);
+    source.save("r4", "aaron", "2016-01-01T00:00:04");
+
+    assertNull(table.mergeChangesSinceWatermark());
+  }
+
+  @Test
+  public void deletedRowWithNothingSavedFallsBackToReload() {
+    PagedUserTable table = readTable(null);
+    source.delete("r2");
+
+    assertNull(table.mergeChangesSinceWatermark());
+  }
+
+  @Test
+  public void deletedRowAlongsideEditFallsBackToReload() {
+    PagedUserTable table = readTable(null);
+    source.delete("r1");
+    source.save("r3", "caroline", "2016-01-01T00:00:04");
+
+    assertNull(table.mergeChangesSinceWatermark());
+  }
+
+  @Test
+  public void editThatMovesRowInQueryOrderFallsBackToReload() {
+    PagedUserTable table = readTable(NAME);
+    source.save("r1", "zoe", "2016-01-01T00:00:04");
+
+    assertNull(table.mergeChangesSinceWatermark());
+  }
+
+  @Test
+  public void sortColumnChangeReSortsInMemory() {
+    PagedUserTable table = readTable(null);
+    assertTrue(table.sortInMemory(column(NAME), true));
+    source.save("r1", "zoe", "2016-01-01T00:00:04");
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertTrue(changes.rowsMoved);
+    assertArrayEquals(new int[] { 2 }, changes.changedRows);
+    assertEquals("bob", nameAt(table, 0));
+    assertEquals("carol", nameAt(table, 1));
+    assertEquals("zoe", nameAt(table, 2));
+  }
+
+  @Test
+  public void otherColumnChangeKeepsInMemorySort() {
+    PagedUserTable table = readTable(null);
+    assertTrue(table.sortInMemory(column(NAME), false));
+    source.save("r1", "alice", "2016-01-01T00:00:04", "age", "30");
+
+    PagedUserTable.MergedChanges changes = table.mergeChangesSinceWatermark();
+
+    assertNotNull(changes);
+    assertFalse(changes.rowsMoved);
+    assertArrayEquals(new int[] { 2 }, changes.changedRows);
+    assertEquals("30", table.getRowAtIndex(2).getDataByKey("age"));
+  }
+
+  private PagedUserTable readTable(String orderByElementKey) {
+    SQLQueryStruct query = new SQLQueryStruct(null, null, null, null, orderByElementKey,
+        (orderByElementKey == null) ? null : "ASC");
+    PagedUserTable table = new PagedUserTable(APP_NAME, TABLE_ID, null, query, PAGE_SIZE, 4,
+        source);
+    assertEquals(source.rows.size(), table.getNumberOfRows());
+    return table;
+  }
+
+  private static String nameAt(PagedUserTable table, int index) {
+    return table.getRowAtIndex(index).getDataByKey(NAME);
+  }
+
+  private static ColumnDefinition column(String elementKey) {
+    ElementType type = mock(ElementType.class);
+    when(type.getDataType()).thenReturn(ElementDataType.string);
+    ColumnDefinition cd = mock(ColumnDefinition.class);
+    when(cd.getElementKey()).thenReturn(elementKey);
+    when(cd.getType()).thenReturn(type);
+    return cd;
+  }
+
+  /**
+   * The rows of a single table, in the order they were first saved. Only the
+   * clauses {@link PagedUserTable} issues itself are understood.
+   */
+  private static final class FakeRowSource implements PagedUserTable.RowSource {
+    final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+
+    void save(String rowId, String name, String savepointTimestamp, String... others) {
+      Map<String, String> row = find(rowId);
+      if (row == null) {
+        row = new HashMap<String, String>();
+        row.put(DataTableColumns.ID, rowId);
+        rows.add(row);
+      }
+      row.put(NAME, name);
+      row.put(DataTableColumns.SAVEPOINT_TIMESTAMP, savepointTimestamp);
+      for (int i = 0; i + 1 < others.length; i += 2) {
+        row.put(others[i], others[i + 1]);
+      }
+    }
+
+    void delete(String rowId) {
+      rows.remove(find(rowId));
+    }
+
+    private Map<String, String> find(String rowId) {
+      for (Map<String, String> row : rows) {
+        if (rowId.equals(row.get(DataTableColumns.ID))) {
+          return row;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public DbHandle openDatabase() {
+      return mock(DbHandle.class);
+    }
+
+    @Override
+    public void closeDatabase(DbHandle db) {
+    }
+
+    @Override
+    public UserTable query(DbHandle db, SQLQueryStruct query, int limit, int offset) {
+      return simpleQuery(db, query.whereClause, query.selectionArgs, query.groupBy, query.having,
+          (query.orderByElementKey == null) ? null : new String[] { query.orderByElementKey },
+          (query.orderByDirection == null) ? null : new String[] { query.orderByDirection },
+          limit, offset);
+    }
+
+    @Override
+    public UserTable simpleQuery(DbHandle db, String whereClause, String[] selectionArgs,
+        String[] groupBy, String having, String[] orderByElementKeys,
+        String[] orderByDirections, Integer limit, Integer offset) {
+      List<Map<String, String>> result = new ArrayList<Map<String, String>>(rows);
+      if (whereClause != null) {
+        assertEquals(DataTableColumns.SAVEPOINT_TIMESTAMP + " > ?", whereClause);
+        String since = selectionArgs[0];
+        for (Iterator<Map<String, String>> it = result.iterator(); it.hasNext(); ) {
+          if (it.next().get(DataTableColumns.SAVEPOINT_TIMESTAMP).compareTo(since) <= 0) {
+            it.remove();
+          }
+        }
+      }
+      if (orderByElementKeys != null && orderByElementKeys.length != 0) {
+        final String key = orderByElementKeys[0];
+        final boolean descending = "DESC".equals(orderByDirections[0]);
+        Collections.sort(result, new Comparator<Map<String, String>>() {
+          @Override
+          public int compare(Map<String, String> lhs, Map<String, String> rhs) {
+            int cmp = lhs.get(key).compareTo(rhs.get(key));
+            return descending ? -cmp : cmp;
+          }
+        });
+      }
+      int from = (offset == null) ? 0 : Math.min(offset, result.size());
+      int to = (limit == null) ? result.size() : Math.min(from + limit, result.size());
+      return table(result.subList(from, to));
+    }
+
+    @Override
+    public UserTable getRowsWithId(DbHandle db, String rowId) {
+      Map<String, String> row = find(rowId);
+      List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+      if (row != null) {
+        result.add(row);
+      }
+      return table(result);
+    }
+
+    /**
+     * Snapshot the rows, as a query would.
+     */
+    private static UserTable table(List<Map<String, String>> rows) {
+      UserTable table = mock(UserTable.class);
+      when(table.getNumberOfRows()).thenReturn(rows.size());
+      for (int i = 0; i < rows.size(); ++i) {
+        final Map<String, String> values = new HashMap<String, String>(rows.get(i));
+        Row row = mock(Row.class);
+        when(row.getDataByKey(anyString())).thenAnswer(new Answer<String>() {
+          @Override
+          public String answer(InvocationOnMock invocation) {
+            return values.get(invocation.getArguments()[0]);
+          }
+        });
+        when(table.getRowAtIndex(i)).thenReturn(row);
+      }
+      return table;
+    }
+  }
+}
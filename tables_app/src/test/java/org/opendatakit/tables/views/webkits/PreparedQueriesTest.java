@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.views.webkits;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PreparedQueriesTest {
+
+  @Test
+  public void noClauseHasNoPlaceholders() {
+    assertEquals(0, PreparedQueries.countBindParams(null));
+    assertEquals(0, PreparedQueries.countBindParams(""));
+  }
+
+  @Test
+  public void eachQuestionMarkIsAPlaceholder() {
+    assertEquals(1, PreparedQueries.countBindParams("a = ?"));
+    assertEquals(2, PreparedQueries.countBindParams("a = ? AND b IN (?)"));
+    assertEquals(2, PreparedQueries.countBindParams("a=?AND b=?"));
+  }
+
+  @Test
+  public void havingClauseIsCounted() {
+    assertEquals(1, PreparedQueries.countBindParams("COUNT(*) > ?"));
+    assertEquals(0, PreparedQueries.countBindParams("COUNT(*) > 1"));
+  }
+
+  @Test
+  public void questionMarkInStringLiteralIsNotCounted() {
+    assertEquals(0, PreparedQueries.countBindParams("a = '?'"));
+    assertEquals(1, PreparedQueries.countBindParams("a = '?' AND b = ?"));
+  }
+
+  @Test
+  public void doubledQuoteDoesNotEndStringLiteral() {
+    assertEquals(0, PreparedQueries.countBindParams("a = 'it''s ?'"));
+    assertEquals(1, PreparedQueries.countBindParams("a = 'it''s ?' AND b = ?"));
+    assertEquals(1, PreparedQueries.countBindParams("a = '''' AND b = ?"));
+  }
+
+  @Test
+  public void questionMarkInQuotedIdentifierIsNotCounted() {
+    assertEquals(1, PreparedQueries.countBindParams("\"a?\" = ?"));
+    assertEquals(1, PreparedQueries.countBindParams("\"a\"\"?\" = ?"));
+    assertEquals(1, PreparedQueries.countBindParams("[x?] = ?"));
+    assertEquals(1, PreparedQueries.countBindParams("`x?` = ?"));
+  }
+
+  @Test
+  public void placeholderAndCommentSyntaxInLiteralsIsIgnored() {
+    assertEquals(0, PreparedQueries.countBindParams("a = '12:30'"));
+    assertEquals(0, PreparedQueries.countBindParams("a = '-- ?'"));
+    assertEquals(0, PreparedQueries.countBindParams("a = '/* ? */'"));
+    assertEquals(0, PreparedQueries.countBindParams("a = '?1' AND b = ':n'"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numberedPlaceholderIsRejected() {
+    PreparedQueries.countBindParams("a = ?1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void colonNamedPlaceholderIsRejected() {
+    PreparedQueries.countBindParams("a = :n");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void atNamedPlaceholderIsRejected() {
+    PreparedQueries.countBindParams("a = @n");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void dollarNamedPlaceholderIsRejected() {
+    PreparedQueries.countBindParams("a = $n");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void lineCommentIsRejected() {
+    PreparedQueries.countBindParams("a = ? -- ?");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void blockCommentIsRejected() {
+    PreparedQueries.countBindParams("a = ? /* ? */");
+  }
+}